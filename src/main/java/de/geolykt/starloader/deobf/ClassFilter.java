@@ -0,0 +1,146 @@
+package de.geolykt.starloader.deobf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * An immutable filter that decides which classes are within the scope of the deobfuscator based on
+ * their internal names. Classes outside of the scope (usually shaded libraries such as libGDX) are not analysed,
+ * transformed or remapped, but may still be used for hierarchy information.
+ *
+ * <p>A class is within the scope if it matches at least one include pattern (or if there are no include patterns)
+ * and does not match any exclude pattern. The patterns are globs where "*" matches any amount of characters
+ * within a single package, "**" matches any amount of characters across packages and "?" matches a single character
+ * that is not a package separator. Both "." and "/" are accepted as package separators, so "com.badlogic.**"
+ * and "com/badlogic/**" are equivalent.
+ */
+public final class ClassFilter implements Predicate<String> {
+
+    /**
+     * A filter that considers every class to be within the scope.
+     */
+    @NotNull
+    public static final ClassFilter ALL = new ClassFilter(Collections.emptyList(), Collections.emptyList());
+
+    @NotNull
+    private static Pattern compileGlob(@NotNull String glob) {
+        StringBuilder regex = new StringBuilder(glob.length() + 8);
+        int length = glob.length();
+        for (int i = 0; i < length; i++) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                if (i + 1 < length && glob.charAt(i + 1) == '*') {
+                    regex.append(".*");
+                    i++;
+                } else {
+                    regex.append("[^/]*");
+                }
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else if (c == '.' || c == '/') {
+                regex.append('/');
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * Parses a filter from a comma-separated list of globs. Globs prefixed with "!" are exclude patterns,
+     * all other globs are include patterns. For example "!com/badlogic/**,!org/json/**" excludes libGDX and
+     * org.json while including everything else.
+     *
+     * @param spec The comma-separated list of globs
+     * @return The parsed filter
+     */
+    @NotNull
+    public static ClassFilter parse(@NotNull String spec) {
+        ClassFilter filter = ALL;
+        for (String glob : spec.split(",")) {
+            glob = glob.trim();
+            if (glob.isEmpty()) {
+                continue;
+            }
+            if (glob.charAt(0) == '!') {
+                filter = filter.exclude(glob.substring(1));
+            } else {
+                filter = filter.include(glob);
+            }
+        }
+        return filter;
+    }
+
+    @NotNull
+    private final List<Pattern> excludes;
+
+    @NotNull
+    private final List<Pattern> includes;
+
+    private ClassFilter(@NotNull List<Pattern> includes, @NotNull List<Pattern> excludes) {
+        this.includes = includes;
+        this.excludes = excludes;
+    }
+
+    /**
+     * Creates a filter that excludes all classes matching the glob in addition to the classes excluded by this filter.
+     *
+     * @param glob The glob to exclude
+     * @return The new filter
+     */
+    @NotNull
+    @Contract(pure = true)
+    public ClassFilter exclude(@NotNull String glob) {
+        List<Pattern> excludes = new ArrayList<>(this.excludes);
+        excludes.add(compileGlob(glob));
+        return new ClassFilter(this.includes, Collections.unmodifiableList(excludes));
+    }
+
+    /**
+     * Creates a filter that includes all classes matching the glob in addition to the classes included by this filter.
+     *
+     * @param glob The glob to include
+     * @return The new filter
+     */
+    @NotNull
+    @Contract(pure = true)
+    public ClassFilter include(@NotNull String glob) {
+        List<Pattern> includes = new ArrayList<>(this.includes);
+        includes.add(compileGlob(glob));
+        return new ClassFilter(Collections.unmodifiableList(includes), this.excludes);
+    }
+
+    /**
+     * Checks whether a class is within the scope of this filter.
+     *
+     * @param internalName The internal name of the class
+     * @return True if the class is within the scope
+     */
+    @Override
+    public boolean test(String internalName) {
+        if (!this.includes.isEmpty()) {
+            boolean included = false;
+            for (Pattern include : this.includes) {
+                if (include.matcher(internalName).matches()) {
+                    included = true;
+                    break;
+                }
+            }
+            if (!included) {
+                return false;
+            }
+        }
+        for (Pattern exclude : this.excludes) {
+            if (exclude.matcher(internalName).matches()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
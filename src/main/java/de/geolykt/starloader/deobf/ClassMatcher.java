@@ -0,0 +1,415 @@
+package de.geolykt.starloader.deobf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import org.jetbrains.annotations.NotNull;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Matches the classes of two versions of the same obfuscated application based on their structure.
+ * This allows to carry over names (such as intermediary names) from one version to the next even if the
+ * obfuscated names of the classes have changed in between.
+ *
+ * <p>Every class is reduced to a set of structural features: the shape of it's hierarchy, the descriptors
+ * of it's members, a histogram of the opcodes used within it's methods and the string constants it uses.
+ * References to classes of the application itself are erased from the descriptors as their names are
+ * not stable between versions. The similarity of two classes is the jaccard index of their feature sets.
+ *
+ * <p>In order to not compare every class of the old version with every class of the new version,
+ * locality-sensitive hashing is employed: a MinHash signature is computed for every feature set and split into
+ * bands. Only classes that share at least one band are compared with each other. A pair of classes is only matched if
+ * both classes are the unique best candidate of each other, which means that classes that cannot be told apart
+ * (for example because they are structurally identical) are never matched.
+ */
+public final class ClassMatcher {
+
+    private static final class Fingerprint {
+
+        @NotNull
+        private final long[] features;
+        @NotNull
+        private final String name;
+        @NotNull
+        private final long[] signature;
+
+        private Fingerprint(@NotNull String name, @NotNull long[] features) {
+            this.name = name;
+            this.features = features;
+            this.signature = new long[SIGNATURE_LENGTH];
+            Arrays.fill(this.signature, Long.MAX_VALUE);
+            for (long feature : features) {
+                for (int i = 0; i < SIGNATURE_LENGTH; i++) {
+                    long hash = mix(feature ^ SEEDS[i]);
+                    if (hash < this.signature[i]) {
+                        this.signature[i] = hash;
+                    }
+                }
+            }
+        }
+
+        private long getBandHash(int band) {
+            long hash = band;
+            for (int i = band * ROWS; i < (band + 1) * ROWS; i++) {
+                hash = mix(hash * 31 + this.signature[i]);
+            }
+            return hash;
+        }
+    }
+
+    private static final int BANDS = 16;
+
+    /**
+     * The maximum amount of old classes that may share the same band before the band is discarded.
+     * Larger buckets are made of classes that are barely distinguishable and would only cause quadratic
+     * amounts of comparisons.
+     */
+    private static final int MAX_BUCKET_SIZE = 32;
+
+    private static final int ROWS = 4;
+
+    private static final long[] SEEDS;
+
+    private static final int SIGNATURE_LENGTH = BANDS * ROWS;
+
+    static {
+        SEEDS = new long[SIGNATURE_LENGTH];
+        long seed = 0x5DEECE66DL;
+        for (int i = 0; i < SIGNATURE_LENGTH; i++) {
+            seed = mix(seed + 0x9E3779B97F4A7C15L);
+            SEEDS[i] = seed;
+        }
+    }
+
+    private static void addCumulativeFeature(@NotNull Set<String> features, @NotNull String prefix, int count) {
+        // Similar counts should result in similar feature sets, which is why power-of-two steps are used
+        for (int step = 1; step <= count; step <<= 1) {
+            features.add(prefix + step);
+        }
+    }
+
+    /**
+     * Computes the 64-bit FNV-1a hash of a string.
+     *
+     * @param string The string to hash
+     * @return The hash of the string
+     */
+    private static long hash(@NotNull String string) {
+        long hash = 0xCBF29CE484222325L;
+        int length = string.length();
+        for (int i = 0; i < length; i++) {
+            hash ^= string.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    private static int intersectionSize(@NotNull long[] a, @NotNull long[] b) {
+        int i = 0;
+        int j = 0;
+        int count = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                count++;
+                i++;
+                j++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The finaliser of the 64-bit MurmurHash3 hash function.
+     *
+     * @param hash The value to mix
+     * @return The mixed value
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Replaces all references to classes within a descriptor that are part of the application with a placeholder.
+     *
+     * @param desc The descriptor
+     * @param applicationClasses The classes that make up the application
+     * @return The normalised descriptor
+     */
+    @NotNull
+    private static String normalizeDescriptor(@NotNull String desc, @NotNull Map<String, ClassNode> applicationClasses) {
+        int start = desc.indexOf('L');
+        if (start == -1) {
+            return desc;
+        }
+        StringBuilder builder = new StringBuilder(desc.length());
+        int last = 0;
+        while (start != -1) {
+            int end = desc.indexOf(';', start);
+            String className = desc.substring(start + 1, end);
+            builder.append(desc, last, start + 1);
+            builder.append(applicationClasses.containsKey(className) ? "?" : className);
+            last = end;
+            start = desc.indexOf('L', end);
+        }
+        builder.append(desc, last, desc.length());
+        return builder.toString();
+    }
+
+    private double threshold = 0.5D;
+
+    @NotNull
+    private final Map<String, ClassNode> newNodes;
+
+    @NotNull
+    private final Map<String, ClassNode> oldNodes;
+
+    /**
+     * Constructor.
+     *
+     * @param oldNodes The classes of the old version of the application
+     * @param newNodes The classes of the new version of the application
+     */
+    public ClassMatcher(@NotNull Collection<ClassNode> oldNodes, @NotNull Collection<ClassNode> newNodes) {
+        this.oldNodes = new HashMap<>();
+        for (ClassNode node : oldNodes) {
+            this.oldNodes.put(node.name, node);
+        }
+        this.newNodes = new HashMap<>();
+        for (ClassNode node : newNodes) {
+            this.newNodes.put(node.name, node);
+        }
+    }
+
+    @NotNull
+    private Fingerprint computeFingerprint(@NotNull ClassNode node, @NotNull Map<String, ClassNode> applicationClasses,
+            @NotNull Map<String, Integer> subtypeCounts) {
+        Set<String> features = new HashSet<>();
+
+        // Hierarchy shape
+        if ((node.access & Opcodes.ACC_ANNOTATION) != 0) {
+            features.add("k:annotation");
+        } else if ((node.access & Opcodes.ACC_INTERFACE) != 0) {
+            features.add("k:interface");
+        } else if ((node.access & Opcodes.ACC_ENUM) != 0) {
+            features.add("k:enum");
+        } else if ((node.access & Opcodes.ACC_ABSTRACT) != 0) {
+            features.add("k:abstract");
+        }
+        int depth = 0;
+        String superName = node.superName;
+        while (superName != null && applicationClasses.containsKey(superName)) {
+            superName = applicationClasses.get(superName).superName;
+            if (++depth > 256) {
+                break; // Circular hierarchy
+            }
+        }
+        features.add("super:" + superName + ':' + depth);
+        for (String interfaceName : node.interfaces) {
+            features.add("itf:" + (applicationClasses.containsKey(interfaceName) ? "?" : interfaceName));
+        }
+        addCumulativeFeature(features, "itfs:", node.interfaces.size());
+        addCumulativeFeature(features, "subs:", subtypeCounts.getOrDefault(node.name, 0));
+        features.add("outer:" + (node.outerClass != null) + ':' + (node.outerMethod != null));
+
+        // Member descriptors (as multisets)
+        Map<String, Integer> occurrences = new HashMap<>();
+        for (FieldNode field : node.fields) {
+            String feature = "f:" + (field.access & Opcodes.ACC_STATIC) + ':' + normalizeDescriptor(field.desc, applicationClasses);
+            features.add(feature + '#' + occurrences.merge(feature, 1, Integer::sum));
+        }
+
+        int[] opcodes = new int[256];
+        for (MethodNode method : node.methods) {
+            String desc = normalizeDescriptor(method.desc, applicationClasses);
+            String feature;
+            if (method.name.codePointAt(0) == '<') {
+                feature = "m:" + method.name + desc;
+            } else {
+                feature = "m:" + (method.access & (Opcodes.ACC_STATIC | Opcodes.ACC_ABSTRACT)) + ':' + desc;
+            }
+            features.add(feature + '#' + occurrences.merge(feature, 1, Integer::sum));
+            int instructions = 0;
+            for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+                int opcode = insn.getOpcode();
+                if (opcode == -1) {
+                    continue; // Labels, frames and line numbers
+                }
+                opcodes[opcode]++;
+                instructions++;
+                if (insn instanceof LdcInsnNode && ((LdcInsnNode) insn).cst instanceof String) {
+                    features.add("s:" + ((LdcInsnNode) insn).cst);
+                }
+            }
+            addCumulativeFeature(features, feature + ":insns:", instructions);
+        }
+
+        // Opcode histogram
+        for (int opcode = 0; opcode < opcodes.length; opcode++) {
+            if (opcodes[opcode] != 0) {
+                addCumulativeFeature(features, "op:" + opcode + ':', opcodes[opcode]);
+            }
+        }
+
+        long[] hashedFeatures = new long[features.size()];
+        int i = 0;
+        for (String feature : features) {
+            hashedFeatures[i++] = hash(feature);
+        }
+        Arrays.sort(hashedFeatures);
+        return new Fingerprint(node.name, hashedFeatures);
+    }
+
+    @NotNull
+    private List<Fingerprint> computeFingerprints(@NotNull Map<String, ClassNode> applicationClasses) {
+        Map<String, Integer> subtypeCounts = new HashMap<>();
+        for (ClassNode node : applicationClasses.values()) {
+            if (node.superName != null) {
+                subtypeCounts.merge(node.superName, 1, Integer::sum);
+            }
+            for (String interfaceName : node.interfaces) {
+                subtypeCounts.merge(interfaceName, 1, Integer::sum);
+            }
+        }
+        return new TreeMap<>(applicationClasses).values().parallelStream()
+                .map(node -> computeFingerprint(node, applicationClasses, subtypeCounts))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Matches the classes of the old version with the classes of the new version.
+     * Each class is matched at most once and the result does not depend on the order in which
+     * the classes were supplied to this matcher.
+     *
+     * @return A map of the names of the classes of the new version to the names of the matched classes of the old version
+     */
+    @NotNull
+    public Map<String, String> match() {
+        List<Fingerprint> oldFingerprints = computeFingerprints(this.oldNodes);
+        List<Fingerprint> newFingerprints = computeFingerprints(this.newNodes);
+
+        // Bucket the old classes by each band of their signature
+        List<Map<Long, List<Integer>>> bands = new ArrayList<>(BANDS);
+        for (int band = 0; band < BANDS; band++) {
+            Map<Long, List<Integer>> buckets = new HashMap<>();
+            for (int i = 0; i < oldFingerprints.size(); i++) {
+                buckets.computeIfAbsent(oldFingerprints.get(i).getBandHash(band), (key) -> new ArrayList<>()).add(i);
+            }
+            bands.add(buckets);
+        }
+
+        // Score every candidate pair, each list is sorted by the old index
+        List<Map<Integer, Double>> candidates = newFingerprints.parallelStream().map(newFingerprint -> {
+            Map<Integer, Double> scores = new TreeMap<>();
+            for (int band = 0; band < BANDS; band++) {
+                List<Integer> bucket = bands.get(band).get(newFingerprint.getBandHash(band));
+                if (bucket == null || bucket.size() > MAX_BUCKET_SIZE) {
+                    continue;
+                }
+                for (Integer oldIndex : bucket) {
+                    if (scores.containsKey(oldIndex)) {
+                        continue;
+                    }
+                    long[] oldFeatures = oldFingerprints.get(oldIndex).features;
+                    int intersection = intersectionSize(oldFeatures, newFingerprint.features);
+                    double score = (double) intersection / (oldFeatures.length + newFingerprint.features.length - intersection);
+                    if (score >= this.threshold) {
+                        scores.put(oldIndex, score);
+                    }
+                }
+            }
+            return scores;
+        }).collect(Collectors.toList());
+
+        // Repeatedly match classes that are the unique best candidate of each other.
+        // Matching a pair removes both classes from the candidates of other classes,
+        // which may allow further classes to be matched in the next round.
+        Map<String, String> matches = new TreeMap<>();
+        Set<Integer> matchedOld = new HashSet<>();
+        Set<Integer> matchedNew = new TreeSet<>();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int[] bestNewForOld = new int[oldFingerprints.size()];
+            double[] bestScoreForOld = new double[oldFingerprints.size()];
+            Arrays.fill(bestNewForOld, -1);
+            for (int newIndex = 0; newIndex < candidates.size(); newIndex++) {
+                if (matchedNew.contains(newIndex)) {
+                    continue;
+                }
+                for (Map.Entry<Integer, Double> candidate : candidates.get(newIndex).entrySet()) {
+                    int oldIndex = candidate.getKey();
+                    double score = candidate.getValue();
+                    if (matchedOld.contains(oldIndex) || score < bestScoreForOld[oldIndex]) {
+                        continue;
+                    }
+                    if (score == bestScoreForOld[oldIndex]) {
+                        bestNewForOld[oldIndex] = -2; // Ambiguous
+                    } else {
+                        bestScoreForOld[oldIndex] = score;
+                        bestNewForOld[oldIndex] = newIndex;
+                    }
+                }
+            }
+            for (int newIndex = 0; newIndex < candidates.size(); newIndex++) {
+                if (matchedNew.contains(newIndex)) {
+                    continue;
+                }
+                int bestOld = -1;
+                double bestScore = 0;
+                for (Map.Entry<Integer, Double> candidate : candidates.get(newIndex).entrySet()) {
+                    int oldIndex = candidate.getKey();
+                    if (matchedOld.contains(oldIndex) || candidate.getValue() < bestScore) {
+                        continue;
+                    }
+                    if (candidate.getValue() == bestScore) {
+                        bestOld = -2; // Ambiguous
+                    } else {
+                        bestScore = candidate.getValue();
+                        bestOld = oldIndex;
+                    }
+                }
+                if (bestOld >= 0 && bestNewForOld[bestOld] == newIndex) {
+                    matches.put(newFingerprints.get(newIndex).name, oldFingerprints.get(bestOld).name);
+                    matchedNew.add(newIndex);
+                    matchedOld.add(bestOld);
+                    changed = true;
+                }
+            }
+        }
+        return Collections.unmodifiableMap(matches);
+    }
+
+    /**
+     * Sets the minimum similarity two classes need to have in order to be matched.
+     * The similarity ranges from 0 (nothing in common) to 1 (structurally identical). Defaults to 0.5.
+     *
+     * @param threshold The minimum similarity
+     */
+    public void setThreshold(double threshold) {
+        this.threshold = threshold;
+    }
+}
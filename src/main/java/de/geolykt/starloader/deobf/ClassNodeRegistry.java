@@ -0,0 +1,129 @@
+package de.geolykt.starloader.deobf;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.objectweb.asm.tree.ClassNode;
+
+/**
+ * A lookup of class nodes by their internal name that is shared between the components operating on the same
+ * set of class nodes, such as {@link Oaktree}, {@link ClassWrapperPool}, the {@link de.geolykt.starloader.deobf.remapper.Remapper Remapper}
+ * and the {@link IntermediaryGenerator}. Components that rename classes update the registry as part of the rename,
+ * so the other components do not need to maintain or rebuild their own lookups.
+ *
+ * <p>This class is thread-safe. Lookups do not block, while modifications are serialized. A batch of renames is
+ * applied under a single lock so that other modifications never observe a partially applied batch. However,
+ * lookups that run concurrently with renames may still observe the registry while the batch is being applied.
+ */
+public final class ClassNodeRegistry {
+
+    private final List<Consumer<Map<String, String>>> listeners = new CopyOnWriteArrayList<>();
+    private final Map<String, ClassNode> nodes = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a listener that is notified after classes were renamed within the registry through {@link #rename(Map)}
+     * or {@link #refresh()}. Used by caches that store information about classes by their name so they can
+     * update the affected entries instead of discarding everything.
+     * The listener is invoked while the registry is locked and must not modify the registry.
+     *
+     * @param listener A consumer that accepts a map of the old internal names of the renamed classes to their new names
+     */
+    public void addRenameListener(@NotNull Consumer<Map<String, String>> listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Obtains the class node that is registered under the given name.
+     *
+     * @param name The internal name of the class
+     * @return The class node, or null if no class is registered under the name
+     */
+    @Nullable
+    @Contract(pure = true)
+    public ClassNode get(@NotNull String name) {
+        return this.nodes.get(name);
+    }
+
+    @Contract(pure = true)
+    public boolean isEmpty() {
+        return this.nodes.isEmpty();
+    }
+
+    /**
+     * Registers a class node under its current name, replacing any class node that is registered under the same name.
+     *
+     * @param node The class node to register
+     * @return The class node that was previously registered under the name, or null if there was none
+     */
+    @Nullable
+    public synchronized ClassNode put(@NotNull ClassNode node) {
+        return this.nodes.put(node.name, node);
+    }
+
+    /**
+     * Registers a class node under its current name unless another class node is registered under the same name.
+     *
+     * @param node The class node to register
+     * @return The class node that is already registered under the name, or null if the node was registered
+     */
+    @Nullable
+    public synchronized ClassNode putIfAbsent(@NotNull ClassNode node) {
+        return this.nodes.putIfAbsent(node.name, node);
+    }
+
+    /**
+     * Re-registers all class nodes whose name no longer matches the name they are registered under.
+     * Only needs to be called if classes were renamed without going through {@link #rename(Map)}.
+     */
+    public synchronized void refresh() {
+        Map<ClassNode, String> renamed = new IdentityHashMap<>();
+        this.nodes.forEach((name, node) -> {
+            if (!name.equals(node.name)) {
+                renamed.put(node, name);
+            }
+        });
+        if (!renamed.isEmpty()) {
+            rename(renamed);
+        }
+    }
+
+    /**
+     * Unregisters a class node. Nothing happens if another class node is registered under the name of the node.
+     *
+     * @param node The class node to unregister
+     * @return True if the node was registered
+     */
+    public synchronized boolean remove(@NotNull ClassNode node) {
+        return this.nodes.remove(node.name, node);
+    }
+
+    /**
+     * Updates the registry after classes were renamed. All renames are applied as a single batch,
+     * so classes are allowed to swap names.
+     *
+     * @param oldNames A map of the renamed class nodes to the name they were registered under before the rename
+     */
+    public synchronized void rename(@NotNull Map<ClassNode, String> oldNames) {
+        Map<String, String> renames = new HashMap<>();
+        oldNames.forEach((node, oldName) -> {
+            this.nodes.remove(oldName, node);
+            if (!oldName.equals(node.name)) {
+                renames.put(oldName, node.name);
+            }
+        });
+        oldNames.keySet().forEach(node -> this.nodes.put(node.name, node));
+        if (!renames.isEmpty()) {
+            Map<String, String> event = Collections.unmodifiableMap(renames);
+            this.listeners.forEach(listener -> listener.accept(event));
+        }
+    }
+}
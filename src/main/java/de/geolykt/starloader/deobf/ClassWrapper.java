@@ -3,6 +3,7 @@ package de.geolykt.starloader.deobf;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 public class ClassWrapper {
@@ -13,7 +14,7 @@ public class ClassWrapper {
     private final String[] superInterfaces;
     private final String superName;
 
-    private Set<String> allInterfacesCache;
+    private volatile Set<String> allInterfacesCache;
 
     protected ClassWrapper(String name, String superName, String[] superInterfaces, boolean isInterface, ClassWrapperPool pool) {
         this.name = name;
@@ -46,25 +47,28 @@ public class ClassWrapper {
      * @return A set of all interfaces implemented by this class or it's supers
      */
     public Set<String> getAllImplementatingInterfaces() {
-        if (allInterfacesCache == null) {
+        Set<String> allInterfaces = allInterfacesCache;
+        if (allInterfaces == null) {
             if (superName == null) {
                 // Probably java/lang/Object
                 allInterfacesCache = Collections.emptySet();
                 return allInterfacesCache;
             }
 
-            allInterfacesCache = new HashSet<>();
+            // The set is only published once it is complete as wrappers may be shared across threads
+            allInterfaces = new HashSet<>();
             for (String interfaceName : getSuperInterfacesName()) {
-                allInterfacesCache.addAll(pool.get(interfaceName).getAllImplementatingInterfaces());
+                allInterfaces.addAll(pool.get(interfaceName).getAllImplementatingInterfaces());
             }
 
             if (itf) {
-                allInterfacesCache.add(name);
+                allInterfaces.add(name);
             } else {
-                allInterfacesCache.addAll(pool.get(superName).getAllImplementatingInterfaces());
+                allInterfaces.addAll(pool.get(superName).getAllImplementatingInterfaces());
             }
+            allInterfacesCache = allInterfaces;
         }
-        return allInterfacesCache;
+        return allInterfaces;
     }
 
     public String getName() {
@@ -96,6 +100,46 @@ public class ClassWrapper {
         return itf;
     }
 
+    /**
+     * Applies class renames to this wrapper. As renames do not alter the hierarchy, the interfaces implemented by
+     * this class are carried over (with the renames applied) instead of being recomputed.
+     *
+     * @param renames A map of old internal names to new internal names
+     * @return A wrapper with the renames applied, or this instance if it does not refer to any renamed class
+     */
+    ClassWrapper rename(Map<String, String> renames) {
+        boolean renamed = renames.containsKey(name) || (superName != null && renames.containsKey(superName));
+        for (int i = 0; i < superInterfaces.length && !renamed; i++) {
+            renamed = renames.containsKey(superInterfaces[i]);
+        }
+        Set<String> allInterfaces = allInterfacesCache;
+        if (!renamed && allInterfaces != null) {
+            for (String interfaceName : allInterfaces) {
+                if (renames.containsKey(interfaceName)) {
+                    renamed = true;
+                    break;
+                }
+            }
+        }
+        if (!renamed) {
+            return this;
+        }
+        String[] newSuperInterfaces = new String[superInterfaces.length];
+        for (int i = 0; i < newSuperInterfaces.length; i++) {
+            newSuperInterfaces[i] = renames.getOrDefault(superInterfaces[i], superInterfaces[i]);
+        }
+        String newSuperName = superName == null ? null : renames.getOrDefault(superName, superName);
+        ClassWrapper wrapper = new ClassWrapper(renames.getOrDefault(name, name), newSuperName, newSuperInterfaces, itf, pool);
+        if (allInterfaces != null) {
+            Set<String> newAllInterfaces = new HashSet<>();
+            for (String interfaceName : allInterfaces) {
+                newAllInterfaces.add(renames.getOrDefault(interfaceName, interfaceName));
+            }
+            wrapper.allInterfacesCache = newAllInterfaces;
+        }
+        return wrapper;
+    }
+
     @Override
     public String toString() {
         return String.format("ClassWrapper[name=%s, itf=%b, extends=%s, implements=%s]", name, itf, superName, Arrays.toString(superInterfaces));
@@ -1,27 +1,118 @@
 package de.geolykt.starloader.deobf;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.ClassNode;
 
 public class ClassWrapperPool {
 
+    private static final int SNAPSHOT_MAGIC = 0x4F414B48; // "OAKH"
+    private static final int SNAPSHOT_VERSION = 1;
+
+    /**
+     * Reads a count or an index of a snapshot and checks whether it lies within the given bounds.
+     *
+     * @param in The stream to read from
+     * @param max The maximum permissible value, inclusive
+     * @return The value, which is between 0 and max (both inclusive)
+     * @throws IOException If the value could not be read or is out of bounds
+     */
+    private static int readCount(DataInputStream in, int max) throws IOException {
+        int value = readVarInt(in);
+        if (value < 0 || value > max) {
+            throw new IOException("Corrupted hierarchy snapshot: Value " + Integer.toUnsignedString(value) + " is not within [0, " + max + "]");
+        }
+        return value;
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable-length integer");
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    // Wrappers of classes that are resolved through the classloader, which never change
+    private final Map<String, ClassWrapper> libraryWrappers = new ConcurrentHashMap<>();
     protected final ClassLoader loader;
-    protected final Map<String, ClassNode> nodes;
+    protected final ClassNodeRegistry nodes;
     protected final Map<String, ClassWrapper> wrappers;
 
-    public ClassWrapperPool(Map<String, ClassNode> nodes, ClassLoader cl) {
+    public ClassWrapperPool(ClassNodeRegistry nodes, ClassLoader cl) {
         this.nodes = nodes;
-        this.wrappers = new HashMap<>();
+        this.wrappers = new ConcurrentHashMap<>();
         this.loader = cl;
+        nodes.addRenameListener(this::applyRenames);
     }
 
     public void addClassnode(ClassNode node) {
-        this.nodes.put(node.name, node);
+        this.nodes.put(node);
+    }
+
+    /**
+     * Copies the library wrappers of another pool into this pool, as if they were read from a snapshot written by
+     * the other pool. Nothing is copied if the other pool resolves library classes in another environment.
+     *
+     * @param source The pool to copy the library wrappers from
+     * @return True if the wrappers were copied
+     */
+    public boolean addLibraryWrappers(ClassWrapperPool source) {
+        if (!source.getSnapshotKey().equals(getSnapshotKey())) {
+            return false;
+        }
+        source.libraryWrappers.forEach((name, wrapper) -> {
+            libraryWrappers.putIfAbsent(name, new ClassWrapper(name, wrapper.getSuper(), wrapper.getSuperInterfacesName(), wrapper.isInterface(), this));
+        });
+        return true;
+    }
+
+    /**
+     * Applies class renames to the cached wrappers. Only the wrappers that refer to a renamed class are replaced,
+     * all other wrappers (including their cached interfaces) stay valid as renames do not alter the hierarchy.
+     *
+     * @param renames A map of old internal names to new internal names
+     */
+    private void applyRenames(Map<String, String> renames) {
+        List<ClassWrapper> renamedWrappers = new ArrayList<>();
+        for (Iterator<ClassWrapper> it = wrappers.values().iterator(); it.hasNext();) {
+            ClassWrapper wrapper = it.next();
+            ClassWrapper renamed = wrapper.rename(renames);
+            if (renamed != wrapper) {
+                it.remove();
+                renamedWrappers.add(renamed);
+            }
+        }
+        for (ClassWrapper wrapper : renamedWrappers) {
+            wrappers.put(wrapper.getName(), wrapper);
+        }
     }
 
     public boolean canAssign(ClassWrapper superType, ClassWrapper subType) {
@@ -50,38 +141,20 @@ public class ClassWrapperPool {
         }
         if (className.equals("java/lang/Object")) {
             wrapper = new ClassWrapper("java/lang/Object", null, new String[0], false, this);
-            wrappers.put("java/lang/Object", wrapper);
-            return wrapper;
+            return putWrapper(wrapper);
         }
         ClassNode asmNode = nodes.get(className);
         if (asmNode == null) {
-            Class<?> clazz;
             try {
-                clazz = Class.forName(className.replace('/', '.'), false, loader);
+                return putWrapper(getLibraryWrapper(className));
             } catch (ClassNotFoundException e) {
                 throw new IllegalStateException("Unable to resolve class: " + className, e);
             }
-            boolean itf = clazz.isInterface();
-            String superName;
-            if (itf) {
-                superName = "java/lang/Object";
-            } else {
-                superName = clazz.getSuperclass().getName().replace('.', '/');
-            }
-            Class<?>[] interfaces = clazz.getInterfaces();
-            String[] superInterfaces = new String[interfaces.length];
-            for (int i = 0; i < interfaces.length; i++) {
-                superInterfaces[i] = interfaces[i].getName().replace('.', '/');
-            }
-            wrapper = new ClassWrapper(className, superName, superInterfaces, itf, this);
-            wrappers.put(className, wrapper);
-            return wrapper;
         } else {
             String[] superInterfaces = asmNode.interfaces.toArray(new String[0]);
             boolean itf = (asmNode.access & Opcodes.ACC_INTERFACE) != 0;
             wrapper = new ClassWrapper(className, asmNode.superName, superInterfaces, itf, this);
-            wrappers.put(className, wrapper);
-            return wrapper;
+            return putWrapper(wrapper);
         }
     }
 
@@ -105,18 +178,65 @@ public class ClassWrapperPool {
         return getCommonSuperClass(class1, get(class2.getSuper()));
     }
 
+    /**
+     * Obtains the wrapper of a class that is resolved through the classloader rather than the registry,
+     * either from the library wrappers that were already resolved or read from a snapshot, or by loading the class.
+     *
+     * @param className The internal name of the class
+     * @return The wrapper, which is not cached in {@link #wrappers} yet
+     * @throws ClassNotFoundException If the class cannot be found by the classloader
+     */
+    private ClassWrapper getLibraryWrapper(String className) throws ClassNotFoundException {
+        ClassWrapper wrapper = libraryWrappers.get(className);
+        if (wrapper != null) {
+            return wrapper;
+        }
+        Class<?> clazz = Class.forName(className.replace('/', '.'), false, loader);
+        boolean itf = clazz.isInterface();
+        String superName;
+        if (itf) {
+            superName = "java/lang/Object";
+        } else {
+            superName = clazz.getSuperclass().getName().replace('.', '/');
+        }
+        Class<?>[] interfaces = clazz.getInterfaces();
+        String[] superInterfaces = new String[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            superInterfaces[i] = interfaces[i].getName().replace('.', '/');
+        }
+        wrapper = new ClassWrapper(className, superName, superInterfaces, itf, this);
+        ClassWrapper existing = libraryWrappers.putIfAbsent(className, wrapper);
+        return existing == null ? wrapper : existing;
+    }
+
+    /**
+     * Obtains the key that identifies the environment in which library classes are resolved, that is the
+     * Java runtime and the classpath of the classloader. Snapshots are only valid for the same key.
+     *
+     * @return The key
+     */
+    String getSnapshotKey() {
+        StringBuilder key = new StringBuilder();
+        key.append(System.getProperty("java.vendor")).append(' ').append(System.getProperty("java.version"));
+        key.append('\n').append(System.getProperty("java.class.path"));
+        for (ClassLoader cl = loader; cl != null; cl = cl.getParent()) {
+            if (cl instanceof URLClassLoader) {
+                for (URL url : ((URLClassLoader) cl).getURLs()) {
+                    key.append('\n').append(url);
+                }
+            }
+        }
+        return key.toString();
+    }
+
     /**
      * Invalidate internal {@link ClassNode} {@link ClassNode#name name} caches.
-     * Should be invoked when for example class nodes are remapped, at which point
-     * internal caches are no longer valid.
+     * Only needs to be invoked when class nodes were renamed without updating the {@link ClassNodeRegistry},
+     * as renames performed through the registry are picked up automatically. Either way only the wrappers
+     * referring to renamed classes are replaced.
      */
     public void invalidateNameCaches() {
-        List<ClassNode> nodes = new ArrayList<>(this.nodes.values());
-        this.nodes.clear();
-        this.wrappers.clear();
-        for (ClassNode node : nodes) {
-            addClassnode(node);
-        }
+        this.nodes.refresh();
     }
 
     public boolean isImplementingInterface(ClassWrapper clazz, String interfaceName) {
@@ -146,39 +266,126 @@ public class ClassWrapperPool {
         }
         if (className.equals("java/lang/Object")) {
             wrapper = new ClassWrapper("java/lang/Object", null, new String[0], false, this);
-            wrappers.put("java/lang/Object", wrapper);
-            return wrapper;
+            return putWrapper(wrapper);
         }
         ClassNode asmNode = nodes.get(className);
         if (asmNode == null) {
-            Class<?> clazz;
             try {
-                clazz = Class.forName(className.replace('/', '.'), false, loader);
+                return putWrapper(getLibraryWrapper(className));
             } catch (ClassNotFoundException e) {
                 return null;
             }
-            boolean itf = clazz.isInterface();
-            String superName;
-            if (itf) {
-                superName = "java/lang/Object";
-            } else {
-                superName = clazz.getSuperclass().getName().replace('.', '/');
-            }
-            Class<?>[] interfaces = clazz.getInterfaces();
-            String[] superInterfaces = new String[interfaces.length];
-            for (int i = 0; i < interfaces.length; i++) {
-                superInterfaces[i] = interfaces[i].getName().replace('.', '/');
-            }
-            wrapper = new ClassWrapper(className, superName, superInterfaces, itf, this);
-            wrappers.put(className, wrapper);
-            return wrapper;
         } else {
             String[] superInterfaces = asmNode.interfaces.toArray(new String[0]);
             boolean itf = (asmNode.access & Opcodes.ACC_INTERFACE) != 0;
             wrapper = new ClassWrapper(className, asmNode.superName, superInterfaces, itf, this);
-            wrappers.put(className, wrapper);
-            return wrapper;
+            return putWrapper(wrapper);
+        }
+    }
+
+    /**
+     * Preloads the library wrappers from a snapshot written by {@link #writeSnapshot(OutputStream)}, so the classes
+     * within the snapshot no longer need to be resolved through the classloader. Classes that are known to the
+     * registry still take precedence over the snapshot. The snapshot is ignored if it was written for another
+     * Java runtime or another classpath.
+     *
+     * @param in The stream to read the snapshot from. It is not closed by this method.
+     * @return True if the snapshot was loaded, false if it was ignored
+     * @throws IOException If the snapshot could not be read or is malformed
+     */
+    public boolean readSnapshot(InputStream in) throws IOException {
+        DataInputStream dataIn = new DataInputStream(in);
+        if (dataIn.readInt() != SNAPSHOT_MAGIC || dataIn.readUnsignedByte() != SNAPSHOT_VERSION) {
+            return false;
+        }
+        // The classpath may exceed the length limit of DataInput#readUTF
+        byte[] expectedKey = getSnapshotKey().getBytes(StandardCharsets.UTF_8);
+        if (readVarInt(dataIn) != expectedKey.length) {
+            return false;
+        }
+        byte[] key = new byte[expectedKey.length];
+        dataIn.readFully(key);
+        if (!Arrays.equals(key, expectedKey)) {
+            return false;
+        }
+        // Counts are not trusted to size arrays upfront, a corrupted count would otherwise exhaust the heap
+        int stringCount = readCount(dataIn, Integer.MAX_VALUE);
+        List<String> strings = new ArrayList<>(Math.min(stringCount, 1024));
+        for (int i = 0; i < stringCount; i++) {
+            strings.add(dataIn.readUTF());
+        }
+        int wrapperCount = readCount(dataIn, Integer.MAX_VALUE);
+        List<ClassWrapper> snapshot = new ArrayList<>(Math.min(wrapperCount, 1024));
+        for (int i = 0; i < wrapperCount; i++) {
+            String name = strings.get(readCount(dataIn, strings.size() - 1));
+            int superIndex = readCount(dataIn, strings.size());
+            boolean itf = dataIn.readBoolean();
+            // The interfaces of a class are distinct, so there cannot be more interfaces than strings
+            String[] superInterfaces = new String[readCount(dataIn, strings.size())];
+            for (int j = 0; j < superInterfaces.length; j++) {
+                superInterfaces[j] = strings.get(readCount(dataIn, strings.size() - 1));
+            }
+            snapshot.add(new ClassWrapper(name, superIndex == 0 ? null : strings.get(superIndex - 1), superInterfaces, itf, this));
+        }
+        // Only apply the snapshot once it was read entirely, a corrupted snapshot must not be applied partially
+        for (ClassWrapper wrapper : snapshot) {
+            libraryWrappers.putIfAbsent(wrapper.getName(), wrapper);
+        }
+        return true;
+    }
+
+    /**
+     * Caches a wrapper unless another thread cached a wrapper for the same class in the meantime,
+     * in which case the wrapper of the other thread is returned.
+     *
+     * @param wrapper The wrapper to cache
+     * @return The cached wrapper
+     */
+    private ClassWrapper putWrapper(ClassWrapper wrapper) {
+        ClassWrapper existing = wrappers.putIfAbsent(wrapper.getName(), wrapper);
+        return existing == null ? wrapper : existing;
+    }
+
+    /**
+     * Writes all library wrappers, that is the wrappers of classes that were resolved through the classloader
+     * or preloaded by {@link #readSnapshot(InputStream)}, as a compact binary snapshot.
+     *
+     * @param out The stream to write the snapshot to. It is not closed by this method.
+     * @throws IOException If the snapshot could not be written
+     */
+    public void writeSnapshot(OutputStream out) throws IOException {
+        List<ClassWrapper> snapshot = new ArrayList<>(libraryWrappers.values());
+        Map<String, Integer> stringIndices = new LinkedHashMap<>();
+        for (ClassWrapper wrapper : snapshot) {
+            stringIndices.putIfAbsent(wrapper.getName(), stringIndices.size());
+            if (wrapper.getSuper() != null) {
+                stringIndices.putIfAbsent(wrapper.getSuper(), stringIndices.size());
+            }
+            for (String interfaceName : wrapper.getSuperInterfacesName()) {
+                stringIndices.putIfAbsent(interfaceName, stringIndices.size());
+            }
+        }
+        DataOutputStream dataOut = new DataOutputStream(out);
+        dataOut.writeInt(SNAPSHOT_MAGIC);
+        dataOut.writeByte(SNAPSHOT_VERSION);
+        byte[] key = getSnapshotKey().getBytes(StandardCharsets.UTF_8);
+        writeVarInt(dataOut, key.length);
+        dataOut.write(key);
+        writeVarInt(dataOut, stringIndices.size());
+        for (String string : stringIndices.keySet()) {
+            dataOut.writeUTF(string);
+        }
+        writeVarInt(dataOut, snapshot.size());
+        for (ClassWrapper wrapper : snapshot) {
+            writeVarInt(dataOut, stringIndices.get(wrapper.getName()));
+            writeVarInt(dataOut, wrapper.getSuper() == null ? 0 : stringIndices.get(wrapper.getSuper()) + 1);
+            dataOut.writeBoolean(wrapper.isInterface());
+            writeVarInt(dataOut, wrapper.getSuperInterfacesName().length);
+            for (String interfaceName : wrapper.getSuperInterfacesName()) {
+                writeVarInt(dataOut, stringIndices.get(interfaceName));
+            }
         }
+        dataOut.flush();
     }
 
 }
@@ -0,0 +1,92 @@
+package de.geolykt.starloader.deobf;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.objectweb.asm.ClassReader;
+
+/**
+ * A compact summary of the UTF8 entries of the constant pool of a class, used to cheaply rule out classes
+ * that cannot reference a certain symbol (such as a class name, a member name or a descriptor) without
+ * visiting their instructions.
+ *
+ * <p>The summary is a bloom filter, so {@link #mayContain(String)} may return true for symbols that are not
+ * within the constant pool, but never returns false for symbols that are. The summary reflects the state of the class
+ * at the time it was read and is not updated when the class is transformed afterwards.
+ */
+final class ConstantPoolSummary {
+
+    private static final int CONSTANT_UTF8 = 1;
+
+    private static int hash2(int hash) {
+        hash *= 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) | 1;
+    }
+
+    /**
+     * Creates the summary of a class.
+     *
+     * @param reader The reader of the class
+     * @return The summary
+     */
+    @NotNull
+    public static ConstantPoolSummary of(@NotNull ClassReader reader) {
+        int itemCount = reader.getItemCount();
+        // At least 8 bits per entry, which results in a false positive rate below 3% with three hashes
+        int words = Math.max(1, Integer.highestOneBit(Math.max(1, itemCount / 8)) << 1);
+        ConstantPoolSummary summary = new ConstantPoolSummary(new long[words]);
+        for (int i = 1; i < itemCount; i++) {
+            int offset = reader.getItem(i);
+            // The slot following a long or double entry is unusable and has no offset
+            if (offset == 0 || reader.readByte(offset - 1) != CONSTANT_UTF8) {
+                continue;
+            }
+            // For ASCII strings the hash equals String#hashCode, which is all that is needed as symbols
+            // that are queried are always ASCII
+            int length = reader.readUnsignedShort(offset);
+            int hash = 0;
+            for (int j = 0; j < length; j++) {
+                hash = 31 * hash + reader.readByte(offset + 2 + j);
+            }
+            summary.add(hash);
+        }
+        return summary;
+    }
+
+    @NotNull
+    private final long[] bits;
+
+    private ConstantPoolSummary(@NotNull long[] bits) {
+        this.bits = bits;
+    }
+
+    private void add(int hash) {
+        int mask = (this.bits.length << 6) - 1;
+        int hash2 = hash2(hash);
+        for (int i = 0; i < 3; i++) {
+            int bit = (hash + i * hash2) & mask;
+            this.bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Checks whether the constant pool may contain all of the given symbols.
+     *
+     * @param symbols The symbols, which need to consist of ASCII characters only
+     * @return False if at least one symbol is definitely not within the constant pool, true otherwise
+     */
+    @Contract(pure = true)
+    public boolean mayContain(@NotNull String... symbols) {
+        int mask = (this.bits.length << 6) - 1;
+        for (String symbol : symbols) {
+            int hash = symbol.hashCode();
+            int hash2 = hash2(hash);
+            for (int i = 0; i < 3; i++) {
+                int bit = (hash + i * hash2) & mask;
+                if ((this.bits[bit >>> 6] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
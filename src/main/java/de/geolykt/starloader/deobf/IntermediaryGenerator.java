@@ -1,6 +1,5 @@
 package de.geolykt.starloader.deobf;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -8,7 +7,6 @@ import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -17,13 +15,19 @@ import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Predicate;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
+import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 
 import org.jetbrains.annotations.NotNull;
@@ -47,6 +51,9 @@ import org.objectweb.asm.tree.TypeInsnNode;
 import org.objectweb.asm.tree.VarInsnNode;
 
 import de.geolykt.starloader.deobf.remapper.ConflicitingMappingException;
+import de.geolykt.starloader.deobf.remapper.MappingFormat;
+import de.geolykt.starloader.deobf.remapper.MappingSet;
+import de.geolykt.starloader.deobf.remapper.MappingSink;
 import de.geolykt.starloader.deobf.remapper.Remapper;
 
 class ClassNodeNameComparator implements Comparator<ClassNode> {
@@ -66,26 +73,63 @@ class ClassNodeNameComparator implements Comparator<ClassNode> {
 } public class IntermediaryGenerator {
 
     private boolean alternateClassNaming;
+    private final List<ClassNode> libraryNodes = new ArrayList<>();
     private final Path map;
+    private MappingFormat mappingFormat = MappingFormat.TINY_V1;
     private final List<ClassNode> nodes = new ArrayList<>();
-    private final Map<String, ClassNode> nameToNode = new HashMap<>();
 
     private final Path output;
-    private final Remapper remapper = new Remapper();
+    private final MappingSet proposedMappings = new MappingSet();
+    @NotNull
+    private final ClassNodeRegistry registry;
+    private final Remapper remapper;
+    private final Set<String> reservedClassNames = new HashSet<>();
     private final List<Map.Entry<String, byte[]>> resources = new ArrayList<>();
+    private final Map<String, String> reusedClassNames = new HashMap<>();
+    @NotNull
+    private Predicate<String> scope = ClassFilter.ALL;
+    private final Map<ClassNode, byte[]> unmodifiedClasses = new IdentityHashMap<>();
 
     public IntermediaryGenerator(@Nullable Path map, Path output, @Nullable Collection<ClassNode> nodes) {
+        this(map, output, nodes, new ClassNodeRegistry());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param map The path to write the mappings to, or null if the mappings should not be written
+     * @param output The path to write the deobfuscated jar to
+     * @param nodes The classes to deobfuscate
+     * @param registry The registry to look up classes in and register the classes in, such as the one obtained by
+     * {@link Oaktree#getClassNodeRegistry()}. Renames are applied to the registry on {@link #deobfuscate()}.
+     */
+    public IntermediaryGenerator(@Nullable Path map, Path output, @Nullable Collection<ClassNode> nodes, @NotNull ClassNodeRegistry registry) {
         this.map = map;
         this.output = output;
+        this.registry = registry;
+        this.remapper = new Remapper(registry);
         if (nodes != null) {
             this.nodes.addAll(nodes);
-            this.nodes.forEach(node -> nameToNode.put(node.name, node));
             this.remapper.addTargets(nodes);
         }
     }
 
     public IntermediaryGenerator(File input, Path map, Path output) {
+        this(input, map, output, ClassFilter.ALL);
+    }
+
+    /**
+     * Constructor. Reads all classes and resources from the input jar, however only the classes within the scope
+     * are deobfuscated. See {@link #setScope(Predicate)}.
+     *
+     * @param input The jar to read
+     * @param map The path to write the mappings to, or null if the mappings should not be written
+     * @param output The path to write the deobfuscated jar to
+     * @param scope A predicate that returns true for the internal names of the classes that are within the scope
+     */
+    public IntermediaryGenerator(File input, Path map, Path output, @NotNull Predicate<String> scope) {
         this(map, output, (Collection<ClassNode>) null);
+        this.scope = scope;
         try {
             JarFile inJar = new JarFile(input);
             Enumeration<JarEntry> entries = inJar.entries();
@@ -101,11 +145,17 @@ class ClassNodeNameComparator implements Comparator<ClassNode> {
                     is.close();
                     continue;
                 }
+                byte[] bytes = JavaInterop.readAllBytes(is);
+                is.close();
+                ClassReader reader = new ClassReader(bytes);
+                if (!scope.test(reader.getClassName())) {
+                    addLibraryClass(reader.getClassName(), bytes);
+                    continue;
+                }
                 ClassNode node = new ClassNode(Opcodes.ASM9);
-                ClassReader reader = new ClassReader(is);
                 reader.accept(node, 0);
                 nodes.add(node);
-                is.close();
+                unmodifiedClasses.put(node, bytes);
             }
             inJar.close();
             remapper.addTargets(nodes);
@@ -114,6 +164,37 @@ class ClassNodeNameComparator implements Comparator<ClassNode> {
         }
     }
 
+    private void addLibraryClass(@NotNull String name, byte @NotNull[] bytes) {
+        ClassNode node = new ClassNode(Opcodes.ASM9);
+        new ClassReader(bytes).accept(node, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        this.libraryNodes.add(node);
+        this.registry.putIfAbsent(node);
+        this.resources.add(new AbstractMap.SimpleImmutableEntry<>(name + ".class", bytes));
+    }
+
+    /**
+     * Adds classes that are outside of the scope of this generator, such as shaded libraries.
+     * These classes are not remapped and no mappings are proposed for them, instead they only contribute hierarchy
+     * information and are written as-is on {@link #deobfuscate()}. Methods that override or are overridden by
+     * methods of library classes are never renamed.
+     *
+     * @param classes A map of the internal names of the classes to their class files, as obtained by {@link Oaktree#getLibraryClasses()}
+     */
+    public void addLibraryClasses(@NotNull Map<String, byte[]> classes) {
+        classes.forEach(this::addLibraryClass);
+    }
+
+    /**
+     * Registers the class files of class nodes passed to the constructor that are unmodified, as obtained by
+     * {@link Oaktree#getUnmodifiedClasses()}. On {@link #deobfuscate()}, classes that are not touched by the
+     * remapping either are written by copying their original class file instead of serializing the class node.
+     *
+     * @param classes A map of unmodified class nodes to the class files they were read from
+     */
+    public void addUnmodifiedClasses(@NotNull Map<ClassNode, byte[]> classes) {
+        this.unmodifiedClasses.putAll(classes);
+    }
+
     /**
      * Adds resources from a jar file at a given location.
      * This is used for the {@link #deobfuscate()} operation if and only if an output folder was chosen.
@@ -140,31 +221,22 @@ class ClassNodeNameComparator implements Comparator<ClassNode> {
         }
     }
 
+    /**
+     * Computes the transitive subtypes of every class based on the direct subtypes of every class.
+     * The subtypes of a class are only listed once, even if they are reachable through multiple paths.
+     *
+     * @param nearbyHierarchy The direct subtypes of every class
+     * @return A map of every class to unmodifiable views of all their subtypes
+     */
     protected Map<String, List<String>> computeFullHierarchy(Map<String, List<String>> nearbyHierarchy) {
+        TypeHierarchy hierarchy = new TypeHierarchy(nearbyHierarchy);
         Map<String, List<String>> allSubtypes = new HashMap<>();
-        for (Map.Entry<String, List<String>> clazz : nearbyHierarchy.entrySet()) {
-            String name = clazz.getKey();
-            List<String> subtypes = new ArrayList<>();
-            for (String subtype : clazz.getValue()) {
-                computeFullHierarchy0(subtypes, nearbyHierarchy, subtype);
-            }
-            allSubtypes.put(name, subtypes);
+        for (String name : hierarchy.getTypes()) {
+            allSubtypes.put(name, hierarchy.getAllSubtypes(name));
         }
         return allSubtypes;
     }
 
-
-    private void computeFullHierarchy0(List<String> out, Map<String, List<String>> nearbyHierarchy, String current) {
-        out.add(current);
-        List<String> l = nearbyHierarchy.get(current);
-        if (l == null) {
-            return;
-        }
-        for (String subtype : l) {
-            computeFullHierarchy0(out, nearbyHierarchy, subtype);
-        }
-    }
-
     private String createString(int num) {
         if (alternateClassNaming) {
             return Integer.toString(num);
@@ -182,16 +254,32 @@ class ClassNodeNameComparator implements Comparator<ClassNode> {
         }
     }
 
-    public void deobfuscate() {
+    /**
+     * Applies the proposed mappings and writes the deobfuscated jar as well as the mappings.
+     * Errors are printed instead of being thrown.
+     *
+     * @return True if the jar and the mappings were written successfully
+     */
+    public boolean deobfuscate() {
+        boolean success = true;
+        // Write the mappings file while the classes are being remapped and written
+        CompletableFuture<Void> mappingsWritten = null;
+        if (this.map != null) {
+            mappingsWritten = this.proposedMappings.writeAsync(this.map, this.mappingFormat);
+        }
         remapper.process();
         if (this.output != null) {
             try (OutputStream rawOut = Files.newOutputStream(output);
                     JarOutputStream jarOut = new JarOutputStream(rawOut)) {
                 for (ClassNode node : this.nodes) {
-                    ClassWriter writer = new ClassWriter(0);
-                    node.accept(writer);
+                    byte[] bytes = this.unmodifiedClasses.get(node);
+                    if (bytes == null || this.remapper.isModified(node)) {
+                        ClassWriter writer = new ClassWriter(0);
+                        node.accept(writer);
+                        bytes = writer.toByteArray();
+                    }
                     jarOut.putNextEntry(new ZipEntry(node.name + ".class"));
-                    jarOut.write(writer.toByteArray());
+                    jarOut.write(bytes);
                     jarOut.closeEntry();
                 }
                 for (Map.Entry<String, byte[]> resource : resources) {
@@ -201,442 +289,298 @@ class ClassNodeNameComparator implements Comparator<ClassNode> {
                 }
             } catch (IOException e) {
                 e.printStackTrace();
+                success = false;
             }
         }
-    }
-
-    /**
-     * Proposes new field names within enum class that can be easily guessed by the computer.
-     */
-    public void doProposeEnumFieldsV2() {
-        BufferedWriter bw = null;
-        if (this.map != null) {
-            try { // Don't think about try-with-resources here
-                BufferedWriter dontcomplain = Files.newBufferedWriter(this.map, StandardCharsets.UTF_8, StandardOpenOption.APPEND, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
-                bw = dontcomplain;
-                bw.write("# begin enum field remapping");
-                bw.newLine();
-            } catch (IOException e) {
-                e.printStackTrace();
+        if (mappingsWritten != null) {
+            try {
+                mappingsWritten.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                success = false;
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+                success = false;
             }
         }
-        // We share this map instance for performance reasons (TM)
-        Map<String, FieldNode> memberNames = new HashMap<>();
-        for (ClassNode node : nodes) {
-            if (node.superName.equals("java/lang/Enum")) {
-                memberNames.clear();
-                String expectedDesc = 'L' + node.name + ';';
-                for (FieldNode field : node.fields) {
-                    if (!field.desc.equals(expectedDesc)) {
-                        continue;
-                    }
-                    memberNames.put(field.name, field);
-                }
-                for (MethodNode method : node.methods) {
-                    if (method.name.equals("<clinit>")) {
-                        AbstractInsnNode instruction = method.instructions.getFirst();
-                        while (instruction != null) {
-                            if (instruction.getOpcode() == Opcodes.NEW) {
-                                TypeInsnNode newCall = (TypeInsnNode) instruction;
-                                instruction = newCall.getNext();
-                                if (instruction == null || instruction.getOpcode() != Opcodes.DUP) {
-                                    break;
-                                }
-                                instruction = instruction.getNext();
-                                if (instruction == null || instruction.getOpcode() != Opcodes.LDC) {
-                                    break;
-                                }
-                                LdcInsnNode enumName = (LdcInsnNode) instruction;
-                                if (!(enumName.cst instanceof String)) {
-                                    continue;
-                                }
-                                instruction = instruction.getNext();
-                                if (instruction == null) {
-                                    break;
-                                }
-                                // SIPUSH or whatever, not relevant
-                                instruction = instruction.getNext();
-                                if (instruction == null) {
-                                    break;
-                                }
-                                // other args for the constructor
-                                AbstractInsnNode formerInsn = instruction;
-                                while (instruction != null && (instruction.getOpcode() != Opcodes.INVOKESPECIAL || !((MethodInsnNode) instruction).owner.equals(newCall.desc))) {
-                                    instruction = instruction.getNext();
-                                }
-                                if (instruction == null) {
-                                    instruction = formerInsn;
-                                    continue;
-                                }
-                                if (!((MethodInsnNode) instruction).name.equals("<init>")) {
-                                    instruction = formerInsn;
-                                    continue;
-                                }
-                                instruction = instruction.getNext();
-                                if (instruction.getOpcode() != Opcodes.PUTSTATIC) {
-                                    instruction = formerInsn;
-                                    continue;
-                                }
-                                FieldInsnNode field = (FieldInsnNode) instruction;
-                                if (!field.owner.equals(node.name) || !field.desc.equals(expectedDesc) || !memberNames.containsKey(field.name)) {
-                                    instruction = formerInsn;
-                                    continue;
-                                }
-                                if (field.name.equals(enumName.cst)) {
-                                    continue;
-                                }
-                                if (bw != null) {
-                                    try {
-                                        // Comment from Nov 21 2021:
-                                        // Yes, this sounds incredibly wrong (right now at least), but apparently is right.
-                                        // For whatever reason
-                                        bw.write("FIELD\t");
-                                        bw.write(node.name);
-                                        bw.write('\t');
-                                        bw.write(expectedDesc);
-                                        bw.write('\t');
-                                        bw.write(field.name);
-                                        bw.write('\t');
-                                        bw.write(enumName.cst.toString());
-                                        bw.write('\n');
-                                    } catch (IOException e) {
-                                        e.printStackTrace();
-                                    }
-                                }
-                                remapper.remapField(node.name, expectedDesc, field.name, enumName.cst.toString());
-                                continue;
-                            }
-                            instruction = instruction.getNext();
-                        }
-                    }
-                }
-            }
+        return success;
+    }
+
+    private void applyEnumFieldProposals(List<Map.Entry<FieldReference, String>> proposals) {
+        for (Map.Entry<FieldReference, String> proposal : proposals) {
+            FieldReference field = proposal.getKey();
+            proposedMappings.acceptField(field.getOwner(), field.getDesc(), field.getName(), proposal.getValue());
+            remapper.remapField(field.getOwner(), field.getDesc(), field.getName(), proposal.getValue());
         }
-        if (bw != null) {
+    }
+
+    private void applyGetterProposals(Map<MethodReference, String> proposedNames) {
+        for (Map.Entry<MethodReference, String> entry : proposedNames.entrySet()) {
+            MethodReference method = entry.getKey();
+            String newName = entry.getValue();
+
             try {
-                bw.flush();
-                bw.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+                remapper.remapMethod(method.getOwner(), method.getDesc(), method.getName(), newName);
+            } catch (ConflicitingMappingException e1) {
+                throw new IllegalStateException("Conflict filtering was not done throughout enough.", e1);
             }
+            proposedMappings.acceptMethod(method.getOwner(), method.getDesc(), method.getName(), newName);
         }
     }
 
-    public List<ClassNode> getAsClassNodes() {
-        return Collections.unmodifiableList(this.nodes);
+    /**
+     * Proposes new field names within enum class that can be easily guessed by the computer.
+     */
+    public void doProposeEnumFieldsV2() {
+        applyEnumFieldProposals(proposeEnumFields());
     }
 
-    private Map<String, List<String>> invertHierarchy(Map<String, List<String>> allSubtypes) {
-        Map<String, List<String>> allSupertypes = new HashMap<>();
-        allSubtypes.forEach((superType, inSubtypes) -> {
-            for (String subtype : inSubtypes) {
-                List<String> outSupertypes = allSupertypes.get(subtype);
-                if (outSupertypes == null) {
-                    outSupertypes = new ArrayList<>();
-                    allSupertypes.put(subtype, outSupertypes);
+    private static void findGetterCandidates(ClassNode node, List<Map.Entry<MethodReference, FieldReference>> out) {
+        for (MethodNode method : node.methods) {
+            if (method.name.length() > 2) {
+                // unlikely to be obfuscated
+                continue;
+            }
+            if (method.desc.codePointAt(1) != ')') {
+                // getter methods must be no-args methods
+                continue;
+            }
+            AbstractInsnNode insn = method.instructions.getFirst();
+            if (insn == null) {
+                // Abstract method? In any case it can never be a getter method
+                continue;
+            }
+            while ((insn instanceof FrameNode || insn instanceof LineNumberNode || insn instanceof LabelNode)) {
+                insn = insn.getNext();
+            }
+            if ((method.access & Opcodes.ACC_STATIC) == 0 && insn instanceof VarInsnNode && ((VarInsnNode) insn).var == 0) {
+                insn = insn.getNext();
+            }
+            if (insn.getOpcode() == Opcodes.GETSTATIC || insn.getOpcode() == Opcodes.GETFIELD) {
+                FieldInsnNode getField = (FieldInsnNode) insn;
+                insn = insn.getNext();
+                while ((insn instanceof FrameNode || insn instanceof LineNumberNode)) {
+                    insn = insn.getNext();
+                }
+                if (!(insn instanceof InsnNode)) {
+                    continue;
+                }
+                if (insn.getOpcode() != Opcodes.ARETURN
+                        && insn.getOpcode() != Opcodes.IRETURN
+                        && insn.getOpcode() != Opcodes.DRETURN
+                        && insn.getOpcode() != Opcodes.FRETURN
+                        && insn.getOpcode() != Opcodes.LRETURN) {
+                    continue;
                 }
-                outSupertypes.add(superType);
+                if (!getField.owner.equals(node.name)) {
+                    continue;
+                }
+                FieldReference fref = new FieldReference(getField);
+                out.add(new AbstractMap.SimpleImmutableEntry<>(new MethodReference(node.name, method), fref));
             }
-        });
-        return allSupertypes;
-    }
-
-    private void propagateDownwards(Map<String, List<String>> directChildren, Collection<MethodReference> output,
-            ClassNode currentNode, MethodReference declaringRef, Map<String, ClassNode> name2Node, OverrideScope currentScope) {
-
-        if (currentScope == OverrideScope.NEVER) {
-            // This is futile
-            return;
         }
+    }
 
-        List<String> children = directChildren.get(currentNode.name);
-        for (String childName : children) {
-            ClassNode childNode = name2Node.get(childName);
-            boolean canOverride = currentScope == OverrideScope.ALWAYS;
-            if (!canOverride) {
-                // scope is OverrideScope.PACKAGE
-                String superMethodPackage = declaringRef.getOwner().substring(0, declaringRef.getOwner().lastIndexOf('/'));
-                String overrdingMethodPackage = childName.substring(0, childName.lastIndexOf('/'));
-                if (superMethodPackage.equals(overrdingMethodPackage)) {
-                    canOverride = true;
+    private static void findOverrides(ClassNode node, TypeHierarchy hierarchy, Map<String, ClassNode> name2Node,
+            Map<MethodReference, MethodNode> methodIndex, List<Map.Entry<MethodReference, MethodReference>> out) {
+        // Supertypes that are not part of the nodes (such as java-specific classes) are not included,
+        // however given the circumstances it shouldn't be too much of an issue (heh)
+        for (String superName : hierarchy.getAllSupertypes(node.name)) {
+            ClassNode superNode = name2Node.get(superName);
+            boolean superInterface = (superNode.access & Opcodes.ACC_INTERFACE) != 0;
+            for (MethodNode superMethod : superNode.methods) {
+                if ((superMethod.access & Opcodes.ACC_PRIVATE) != 0 || superMethod.name.codePointAt(0) == '<') {
+                    continue; // Neither inherited nor overridden
                 }
-            }
-            // This also accounts for implicit inheritance
-            output.add(new MethodReference(childName, declaringRef.getDesc(), declaringRef.getName()));
-            boolean found = false;
-            for (MethodNode childMethod : childNode.methods) {
-                if (childMethod.name.equals(declaringRef.getName())
-                        && childMethod.desc.equals(declaringRef.getDesc())
-                        && (childMethod.access & Opcodes.ACC_STATIC) != 0) {
-                    found = true;
-                    int flagWithoutFinal = childMethod.access & ~Opcodes.ACC_FINAL; // Better be safe than sorry
-                    propagateDownwards(directChildren, output, childNode, declaringRef, name2Node, OverrideScope.fromFlags(flagWithoutFinal));
-                    break;
+                boolean superStatic = (superMethod.access & Opcodes.ACC_STATIC) != 0;
+                // Package-private methods are neither inherited nor overridden outside of their package
+                if (OverrideScope.fromFlags(superMethod.access & ~(Opcodes.ACC_STATIC | Opcodes.ACC_FINAL)) == OverrideScope.PACKAGE
+                        && !isSamePackage(superName, node.name)) {
+                    continue;
                 }
-            }
-            if (!found) {
-                propagateDownwards(directChildren, output, childNode, declaringRef, name2Node, currentScope);
+                MethodReference superRef = new MethodReference(superName, superMethod);
+                MethodReference ref = new MethodReference(node.name, superMethod.desc, superMethod.name);
+                MethodNode method = methodIndex.get(ref);
+                if (method == null) {
+                    if (!superStatic || !superInterface) {
+                        // Implicitly inherited (static interface methods are not inherited though)
+                        out.add(new AbstractMap.SimpleImmutableEntry<>(ref, superRef));
+                    }
+                    continue;
+                }
+                if (superStatic || (method.access & (Opcodes.ACC_STATIC | Opcodes.ACC_PRIVATE)) != 0) {
+                    continue; // Static methods can only hide other methods and private methods never override anything
+                }
+                if ((superMethod.access & Opcodes.ACC_FINAL) != 0) {
+                    continue; // Final methods cannot be overridden
+                }
+                out.add(new AbstractMap.SimpleImmutableEntry<>(ref, superRef));
             }
         }
     }
 
-    private void remapClass(String oldName, String newName, BufferedWriter bw) {
-        remapper.remapClassName(oldName, newName);
-        if (bw != null) {
-            try {
-                bw.write("CLASS\t");
-                bw.write(oldName);
-                bw.write('\t');
-                bw.write(newName);
-                bw.write('\n'); // The tiny format does not make use of system-dependent newlines
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
+    public List<ClassNode> getAsClassNodes() {
+        // The caller may modify the nodes without us knowing
+        this.unmodifiedClasses.clear();
+        return Collections.unmodifiableList(this.nodes);
     }
 
-    public void remapClassesV2() {
-        remapClassesV2(false);
+    /**
+     * Obtains the mappings proposed by this generator so far. These mappings are written to the map file
+     * in a single pass on {@link #deobfuscate()} or {@link #writeMappings()}. Further mappings
+     * can be added through the {@link MappingSink} interface, however they are not applied to the classes
+     * as the {@link #getRemapper() remapper} is not informed about them.
+     *
+     * @return The proposed mappings
+     */
+    @NotNull
+    public MappingSet getMappings() {
+        return this.proposedMappings;
     }
 
-    public void remapClassesV2(boolean findLocalClasses) {
-        final BufferedWriter bw;
-        if (this.map != null) {
-            BufferedWriter temp = null;
-            try { // Don't think about try-with-resources here
-                BufferedWriter dontcomplain = Files.newBufferedWriter(this.map, StandardCharsets.UTF_8, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
-                temp = dontcomplain;
-                temp.write("v1\tofficial\tintermediary\n");
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            bw = temp;
-        } else {
-            bw = null;
-        }
+    /**
+     * Obtains the {@link Remapper} instance that stores the mappings proposed by this generator.
+     * The mappings are applied on {@link #deobfuscate()}, which means that modifications to the remapper
+     * such as {@link Remapper#composeMappings(Remapper)} should be made before that.
+     *
+     * @return The remapper used by this generator
+     */
+    @NotNull
+    public Remapper getRemapper() {
+        return this.remapper;
+    }
 
-        Map<String, String> localClasses;
-        if (findLocalClasses) {
-            Oaktree oaktree = new Oaktree();
-            oaktree.getClassNodesDirectly().addAll(nodes);
-            localClasses = oaktree.guessLocalClasses();
-        } else {
-            localClasses = Collections.emptyMap();
+    private static boolean isSamePackage(String className1, String className2) {
+        int lastSlash = className1.lastIndexOf('/');
+        if (lastSlash != className2.lastIndexOf('/')) {
+            return false;
         }
+        return lastSlash == -1 || className1.regionMatches(0, className2, 0, lastSlash);
+    }
 
-        Map<String, TreeSet<ClassNode>> remappedEnums = new HashMap<>();
-        Map<String, TreeSet<ClassNode>> remappedInterfaces = new HashMap<>();
-        Map<String, TreeSet<ClassNode>> remappedInners = new HashMap<>();
-        Map<String, TreeSet<ClassNode>> remappedLocals = new HashMap<>();
-        Map<String, TreeSet<ClassNode>> remappedPrivateClasses = new HashMap<>();
-        Map<String, TreeSet<ClassNode>> remappedProtectedClasses = new HashMap<>();
-        Map<String, TreeSet<ClassNode>> remappedPublicClasses = new HashMap<>();
+    /**
+     * Proposes new names for the enum constants of all enum classes. The classes are analysed in parallel,
+     * the returned proposals are in the order of the class nodes nonetheless.
+     *
+     * @return The proposed field names
+     */
+    private List<Map.Entry<FieldReference, String>> proposeEnumFields() {
+        return nodes.parallelStream()
+                .filter(node -> "java/lang/Enum".equals(node.superName))
+                .flatMap(node -> {
+                    List<Map.Entry<FieldReference, String>> proposals = new ArrayList<>();
+                    proposeEnumFields(node, proposals);
+                    return proposals.stream();
+                })
+                .collect(Collectors.toList());
+    }
 
-        for (ClassNode node : nodes) {
-            if (localClasses.containsKey(node.name)) {
-                continue; // No need to rename it
-            }
-            int lastSlash = node.name.lastIndexOf('/');
-            String className = node.name.substring(lastSlash + 1);
-            String packageName = node.name.substring(0, lastSlash);
-            if (packageName.startsWith("org/hamcrest") || packageName.startsWith("org/lwjgl")) {
-                // the three (?) packages contain classes that should not be remapped
+    private static void proposeEnumFields(ClassNode node, List<Map.Entry<FieldReference, String>> out) {
+        Map<String, FieldNode> memberNames = new HashMap<>();
+        String expectedDesc = 'L' + node.name + ';';
+        for (FieldNode field : node.fields) {
+            if (!field.desc.equals(expectedDesc)) {
                 continue;
             }
-            if (className.length() < 3) {
-                if ("java/lang/Enum".equals(node.superName)) {
-                    TreeSet<ClassNode> remapSet = remappedEnums.get(packageName);
-                    if (remapSet == null) {
-                        remapSet = new TreeSet<>(ClassNodeNameComparator.INSTANCE);
-                        remappedEnums.put(packageName, remapSet);
-                    }
-                    remapSet.add(node);
-                } else if (node.outerClass != null) {
-                    if (node.outerMethod == null) {
-                        TreeSet<ClassNode> remapSet = remappedInners.get(packageName);
-                        if (remapSet == null) {
-                            remapSet = new TreeSet<>(ClassNodeNameComparator.INSTANCE);
-                            remappedInners.put(packageName, remapSet);
+            memberNames.put(field.name, field);
+        }
+        for (MethodNode method : node.methods) {
+            if (method.name.equals("<clinit>")) {
+                AbstractInsnNode instruction = method.instructions.getFirst();
+                while (instruction != null) {
+                    if (instruction.getOpcode() == Opcodes.NEW) {
+                        TypeInsnNode newCall = (TypeInsnNode) instruction;
+                        instruction = newCall.getNext();
+                        if (instruction == null || instruction.getOpcode() != Opcodes.DUP) {
+                            break;
                         }
-                        remapSet.add(node);
-                    } else {
-                        TreeSet<ClassNode> remapSet = remappedLocals.get(packageName);
-                        if (remapSet == null) {
-                            remapSet = new TreeSet<>(ClassNodeNameComparator.INSTANCE);
-                            remappedLocals.put(packageName, remapSet);
+                        instruction = instruction.getNext();
+                        if (instruction == null || instruction.getOpcode() != Opcodes.LDC) {
+                            break;
                         }
-                        remapSet.add(node);
-                    }
-                } else if ((node.access & Opcodes.ACC_INTERFACE) != 0) {
-                    TreeSet<ClassNode> remapSet = remappedInterfaces.get(packageName);
-                    if (remapSet == null) {
-                        remapSet = new TreeSet<>(ClassNodeNameComparator.INSTANCE);
-                        remappedInterfaces.put(packageName, remapSet);
-                    }
-                    remapSet.add(node);
-                } else if ((node.access & Opcodes.ACC_PUBLIC) != 0) {
-                    TreeSet<ClassNode> remapSet = remappedPublicClasses.get(packageName);
-                    if (remapSet == null) {
-                        remapSet = new TreeSet<>(ClassNodeNameComparator.INSTANCE);
-                        remappedPublicClasses.put(packageName, remapSet);
-                    }
-                    remapSet.add(node);
-                } else if ((node.access & Opcodes.ACC_PROTECTED) != 0) {
-                    TreeSet<ClassNode> remapSet = remappedProtectedClasses.get(packageName);
-                    if (remapSet == null) {
-                        remapSet = new TreeSet<>(ClassNodeNameComparator.INSTANCE);
-                        remappedProtectedClasses.put(packageName, remapSet);
-                    }
-                    remapSet.add(node);
-                } else {
-                    TreeSet<ClassNode> remapSet = remappedPrivateClasses.get(packageName);
-                    if (remapSet == null) {
-                        remapSet = new TreeSet<>(ClassNodeNameComparator.INSTANCE);
-                        remappedPrivateClasses.put(packageName, remapSet);
+                        LdcInsnNode enumName = (LdcInsnNode) instruction;
+                        if (!(enumName.cst instanceof String)) {
+                            continue;
+                        }
+                        instruction = instruction.getNext();
+                        if (instruction == null) {
+                            break;
+                        }
+                        // SIPUSH or whatever, not relevant
+                        instruction = instruction.getNext();
+                        if (instruction == null) {
+                            break;
+                        }
+                        // other args for the constructor
+                        AbstractInsnNode formerInsn = instruction;
+                        while (instruction != null && (instruction.getOpcode() != Opcodes.INVOKESPECIAL || !((MethodInsnNode) instruction).owner.equals(newCall.desc))) {
+                            instruction = instruction.getNext();
+                        }
+                        if (instruction == null) {
+                            instruction = formerInsn;
+                            continue;
+                        }
+                        if (!((MethodInsnNode) instruction).name.equals("<init>")) {
+                            instruction = formerInsn;
+                            continue;
+                        }
+                        instruction = instruction.getNext();
+                        if (instruction.getOpcode() != Opcodes.PUTSTATIC) {
+                            instruction = formerInsn;
+                            continue;
+                        }
+                        FieldInsnNode field = (FieldInsnNode) instruction;
+                        if (!field.owner.equals(node.name) || !field.desc.equals(expectedDesc) || !memberNames.containsKey(field.name)) {
+                            instruction = formerInsn;
+                            continue;
+                        }
+                        if (field.name.equals(enumName.cst)) {
+                            continue;
+                        }
+                        // Comment from Nov 21 2021:
+                        // Yes, this sounds incredibly wrong (right now at least), but apparently is right.
+                        // For whatever reason
+                        out.add(new AbstractMap.SimpleImmutableEntry<>(new FieldReference(node.name, expectedDesc, field.name), enumName.cst.toString()));
+                        continue;
                     }
-                    remapSet.add(node);
+                    instruction = instruction.getNext();
                 }
             }
         }
-
-        Map<String, String> remapMap = new HashMap<>();
-        remapSet(remappedEnums, bw, "enum_", remapMap);
-        remapSet(remappedInterfaces, bw, "interface_", remapMap);
-        remapSet(remappedInners, bw, "innerclass_", remapMap);
-        remapSet(remappedLocals, bw, "localclass_", remapMap);
-        remapSet(remappedPublicClasses, bw, "class_", remapMap);
-        remapSet(remappedProtectedClasses, bw, "pclass_",remapMap); // protected class
-        remapSet(remappedPrivateClasses, bw, "ppclass_", remapMap); // package-private class
-
-        Map<String, List<String>> mappings = new HashMap<>();
-        Set<String> unmappedInnerClasses = new HashSet<>();
-
-        localClasses.forEach((inner, outer) -> {
-            mappings.compute(outer, (key, list) -> {
-                if (list == null) {
-                    list = new ArrayList<>();
-                }
-                list.add(inner);
-                return list;
-            });
-            unmappedInnerClasses.add(inner);
-        });
-
-        while (unmappedInnerClasses.size() != 0) {
-            int oldSize = unmappedInnerClasses.size();
-            mappings.forEach((outer, inners) -> {
-                if (unmappedInnerClasses.contains(outer)) {
-                    return;
-                }
-                inners.sort(String::compareTo);
-                int counter = 0;
-                ClassNode outerNode = nameToNode.get(outer);
-                for (String inner : inners) {
-                    ClassNode innerNode = nameToNode.get(inner);
-                    String innerName = "Local" + counter++;
-                    InnerClassNode icn = new InnerClassNode(inner, outer, innerName, innerNode.access);
-                    outerNode.innerClasses.add(icn);
-                    innerNode.innerClasses.add(icn);
-                    String newName = remapMap.getOrDefault(outer, outer) + '$' + innerName;
-                    remapMap.put(inner, newName);
-                    remapClass(inner, newName, bw);
-                    unmappedInnerClasses.remove(inner);
-                }
-            });
-            if (unmappedInnerClasses.size() == oldSize) {
-                for (String s : unmappedInnerClasses) {
-                    System.out.println("IntermediaryGenerator: " + s + " is part of a nested pair. Discarded from intermediary");
-                }
-                break; // Only nested pairs remaining - Discard all
-            }
-        }
-
-        if (bw != null) {
-            try {
-                bw.flush();
-                bw.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
     }
 
-    public void remapGetters() {
-        BufferedWriter bw = null;
-        if (this.map != null) {
-            try { // Don't think about try-with-resources here
-                BufferedWriter dontcomplain = Files.newBufferedWriter(this.map, StandardCharsets.UTF_8, StandardOpenOption.APPEND, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
-                bw = dontcomplain;
-                bw.write("# begin getter remapping");
-                bw.newLine();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-
+    private Map<MethodReference, String> proposeGetters() {
         Map<String, ClassNode> name2Node = new HashMap<>(nodes.size());
-        List<Map.Entry<MethodReference, FieldReference>> getterCandidates = new ArrayList<>();
         Map<String, List<String>> directSubtypes = new HashMap<>(nodes.size());
-        Map<String, List<MethodReference>> declaredMethods = new HashMap<>();
+        Map<MethodReference, MethodNode> methodIndex = new HashMap<>();
 
-        for (ClassNode node : nodes) {
+        // The following maps make up a snapshot of the hierarchy and the members of all classes.
+        // They are only read from after this point, which is why the per-class analysis can run in parallel.
+        List<ClassNode> hierarchyNodes = new ArrayList<>(nodes.size() + libraryNodes.size());
+        hierarchyNodes.addAll(nodes);
+        hierarchyNodes.addAll(libraryNodes);
+        for (ClassNode node : hierarchyNodes) {
             name2Node.put(node.name, node);
             if ((node.access & Opcodes.ACC_FINAL) != 0) {
                 directSubtypes.put(node.name, Collections.emptyList());
             } else {
                 directSubtypes.put(node.name, new ArrayList<>());
             }
-            List<MethodReference> methods = new ArrayList<>();
-            declaredMethods.put(node.name, methods);
             for (MethodNode method : node.methods) {
-                MethodReference mref = new MethodReference(node.name, method);
-                methods.add(mref);
-                if (method.name.length() > 2) {
-                    // unlikely to be obfuscated
-                    continue;
-                }
-                if (method.desc.codePointAt(1) != ')') {
-                    // getter methods must be no-args methods
-                    continue;
-                }
-                AbstractInsnNode insn = method.instructions.getFirst();
-                if (insn == null) {
-                    // Abstract method? In any case it can never be a getter method
-                    continue;
-                }
-                while ((insn instanceof FrameNode || insn instanceof LineNumberNode || insn instanceof LabelNode)) {
-                    insn = insn.getNext();
-                }
-                if ((method.access & Opcodes.ACC_STATIC) == 0 && insn instanceof VarInsnNode && ((VarInsnNode) insn).var == 0) {
-                    insn = insn.getNext();
-                }
-                if (insn.getOpcode() == Opcodes.GETSTATIC || insn.getOpcode() == Opcodes.GETFIELD) {
-                    FieldInsnNode getField = (FieldInsnNode) insn;
-                    insn = insn.getNext();
-                    while ((insn instanceof FrameNode || insn instanceof LineNumberNode)) {
-                        insn = insn.getNext();
-                    }
-                    if (!(insn instanceof InsnNode)) {
-                        continue;
-                    }
-                    if (insn.getOpcode() != Opcodes.ARETURN
-                            && insn.getOpcode() != Opcodes.IRETURN
-                            && insn.getOpcode() != Opcodes.DRETURN
-                            && insn.getOpcode() != Opcodes.FRETURN
-                            && insn.getOpcode() != Opcodes.LRETURN) {
-                        continue;
-                    }
-                    if (!getField.owner.equals(node.name)) {
-                        continue;
-                    }
-                    FieldReference fref = new FieldReference(getField);
-                    getterCandidates.add(new AbstractMap.SimpleImmutableEntry<>(mref, fref));
-                }
+                methodIndex.put(new MethodReference(node.name, method), method);
             }
         }
 
+        List<Map.Entry<MethodReference, FieldReference>> getterCandidates = nodes.parallelStream()
+                .flatMap(node -> {
+                    List<Map.Entry<MethodReference, FieldReference>> candidates = new ArrayList<>();
+                    findGetterCandidates(node, candidates);
+                    return candidates.stream();
+                })
+                .collect(Collectors.toList());
+
         // Calculate nearby hierarchy
-        for (ClassNode node : nodes) {
+        for (ClassNode node : hierarchyNodes) {
             // As of now this has to be on another loop and cannot be merged easily into the loop above, albeit this is theoretically possible
             List<String> a = directSubtypes.get(node.superName);
             if (a != null) {
@@ -672,81 +616,34 @@ class ClassNodeNameComparator implements Comparator<ClassNode> {
         }
 
         // calculate the full hierarchy based on the nearby hierarchy
-        Map<String, List<String>> allSubtypes = computeFullHierarchy(directSubtypes); // super -> children map
-        Map<String, List<String>> allSupertypes = invertHierarchy(allSubtypes); // child -> super
+        TypeHierarchy hierarchy = new TypeHierarchy(directSubtypes);
 
         // Based on the hierarchy and the declared method's access flags, we can try to identify the methods that are the same.
         // In our case, we will call these connected methods a "method group".
-        Map<MethodReference, Set<MethodReference>> methodGroups = new HashMap<>();
-
-        declaredMethods.forEach((declarerName, declaredMethodRefs) -> {
-            ClassNode declarerNode = name2Node.get(declarerName);
-
-            List<String> supers = allSupertypes.get(declarerName);
-            if (supers == null) {
-                // This can likely happen if a class is a superclass of a class that does not exit or is java-specific. However given the circumstances it shouldn't be too much of an issue (heh)
-                // System.err.println(declarerName + " extends " + declarerNode.superName + " and implements " + Arrays.toString(declarerNode.interfaces.toArray()));
-                supers = Collections.emptyList();
-            }
-            List<ClassNode> superNodes = new ArrayList<>();
-            supers.forEach(name -> superNodes.add(name2Node.get(name)));
-            List<MethodNode> declaredMethodNodes = new ArrayList<>(); // This is required in order to obtain the access flags of the method
-            for (MethodReference mref : declaredMethodRefs) {
-                for (MethodNode method : declarerNode.methods) {
-                    if (method.name.equals(mref.getName()) && method.desc.equals(mref.getDesc())) {
-                        declaredMethodNodes.add(method);
-                        break;
-                    }
-                }
-            }
-
-            declaredMethodNodes.removeIf(method -> {
-                boolean isStatic = (method.access & Opcodes.ACC_STATIC) != 0;
-                if (isStatic) {
-                    MethodReference ref = new MethodReference(declarerName, method);
-                    methodGroups.put(ref, Collections.singleton(ref)); // A static method is more or less a standalone method
-                    return true; // as such they are not relevant after that and are removed from the methodNodes list.
-                } else {
-                    return false;
-                }
-            });
+        // Method groups are the disjoint sets of the override relation. Methods that are only implicitly inherited by a class
+        // are part of the relation too, as references to them need to be renamed alongside the declared method.
+        UnionFind<MethodReference> overrideRelation = new UnionFind<>();
+        for (MethodReference method : methodIndex.keySet()) {
+            overrideRelation.add(method);
+        }
+        List<Map.Entry<MethodReference, MethodReference>> overrides = nodes.parallelStream()
+                .flatMap(node -> {
+                    List<Map.Entry<MethodReference, MethodReference>> nodeOverrides = new ArrayList<>();
+                    findOverrides(node, hierarchy, name2Node, methodIndex, nodeOverrides);
+                    return nodeOverrides.stream();
+                })
+                .collect(Collectors.toList());
+        for (Map.Entry<MethodReference, MethodReference> override : overrides) {
+            overrideRelation.union(override.getKey(), override.getValue());
+        }
+        Map<MethodReference, Set<MethodReference>> methodGroups = overrideRelation.asSetMap();
 
-            for (MethodNode method : declaredMethodNodes) {
-                Set<MethodReference> group = new HashSet<>();
-                MethodReference declaredMethodRef = new MethodReference(declarerName, method);
-                methodGroups.put(declaredMethodRef, group);
-                group.add(declaredMethodRef);
-                for (ClassNode node : superNodes) {
-                    for (MethodNode superMethod : node.methods) {
-                        if (method.name.equals(superMethod.name)
-                                && method.desc.equals(superMethod.desc)
-                                && (superMethod.access & Opcodes.ACC_STATIC) == 0) {
-                            // Check whether 'method' can possibly override 'superMethod'
-                            OverrideScope superMethodScope = OverrideScope.fromFlags(superMethod.access);
-                            if (superMethodScope == OverrideScope.ALWAYS) {
-                                group.add(new MethodReference(node.name, superMethod));
-                                propagateDownwards(directSubtypes, group, node, declaredMethodRef, name2Node, superMethodScope);
-                            } else if (superMethodScope == OverrideScope.PACKAGE) {
-                                String superMethodPackage = node.name.substring(0, node.name.lastIndexOf('/'));
-                                String overrdingMethodPackage = declarerName.substring(0, declarerName.lastIndexOf('/'));
-                                if (superMethodPackage.equals(overrdingMethodPackage)) {
-                                    group.add(new MethodReference(node.name, superMethod));
-                                }
-                                // TODO this is terribly inefficient as we are propagating the same set of classes multiple times.
-                                // A solution to this issue would be to have a stop condition of some sorts, either when the reference
-                                // was already added or when the same class is scanned twice
-                                // however it is also required as we have implicit inheritance, so a removal is not the solution
-                                propagateDownwards(directSubtypes, group, node, declaredMethodRef, name2Node, superMethodScope);
-                            } else {
-                                // private (or final) method. Not it
-                            }
-                            break; // We found our method declaration - or at least think we have
-                        }
-                    }
-                }
-                propagateDownwards(directSubtypes, group, declarerNode, declaredMethodRef, name2Node, OverrideScope.fromFlags(method.access));
+        // Methods of library classes cannot be renamed, and neither can the methods of their method group
+        for (ClassNode node : libraryNodes) {
+            for (MethodNode method : node.methods) {
+                conflictingMappings.add(new MethodReference(node.name, method));
             }
-        });
+        }
 
         // prevent renaming two methods to the same name
         // (does not fully work)
@@ -756,17 +653,8 @@ class ClassNodeNameComparator implements Comparator<ClassNode> {
             if (oldReference != null && !oldReference.equals(mref)) {
                 if (oldReference.getOwner().equals(mref.getOwner()) && fref.getOwner().equals(oldReference.getOwner())) {
                     // One of the two methods is likely a synthetic method. We will try to only invalidate that synthetic method
-                    ClassNode node = name2Node.get(oldReference.getOwner());
-                    boolean oldRefSynthetic = false;
-                    boolean newRefSynthetic = false;
-                    for (MethodNode method : node.methods) {
-                        if (method.name.equals(oldReference.getName()) && (method.desc.equals(oldReference.getDesc()))) {
-                            oldRefSynthetic = (method.access & Opcodes.ACC_SYNTHETIC) != 0;
-                        }
-                        if (method.name.equals(mref.getName()) && (method.desc.equals(mref.getDesc()))) {
-                            newRefSynthetic = (method.access & Opcodes.ACC_SYNTHETIC) != 0;
-                        }
-                    }
+                    boolean oldRefSynthetic = (methodIndex.get(oldReference).access & Opcodes.ACC_SYNTHETIC) != 0;
+                    boolean newRefSynthetic = (methodIndex.get(mref).access & Opcodes.ACC_SYNTHETIC) != 0;
                     if (oldRefSynthetic == newRefSynthetic) {
                         // Either both are synthetic or both are not synthetic. A preference thus cannot be established
                         conflictingMappings.add(mref);
@@ -948,55 +836,268 @@ class ClassNodeNameComparator implements Comparator<ClassNode> {
             }
         });
 
-        for (Map.Entry<MethodReference, String> entry : proposedNames.entrySet()) {
-            MethodReference method = entry.getKey();
-            String newName = entry.getValue();
+        return proposedNames;
+    }
 
-            try {
-                remapper.remapMethod(method.getOwner(), method.getDesc(), method.getName(), newName);
-            } catch (ConflicitingMappingException e1) {
-                throw new IllegalStateException("Conflict filtering was not done throughout enough.", e1);
+    /**
+     * Proposes new names for the enum constants of all enum classes and for all getter methods,
+     * equivalent to invoking {@link #doProposeEnumFieldsV2()} and {@link #remapGetters()} in that order.
+     * Both analyses run concurrently and are parallelised over the classes, however their
+     * proposals are merged in a deterministic order so the produced mappings are the same as in a serial run.
+     */
+    public void proposeMembers() {
+        CompletableFuture<List<Map.Entry<FieldReference, String>>> enumFields = CompletableFuture.supplyAsync(this::proposeEnumFields);
+        Map<MethodReference, String> getters = proposeGetters();
+        applyEnumFieldProposals(enumFields.join());
+        applyGetterProposals(getters);
+    }
+
+    private void remapClass(String oldName, String newName) {
+        remapper.remapClassName(oldName, newName);
+        proposedMappings.acceptClass(oldName, newName);
+    }
+
+    public void remapClassesV2() {
+        remapClassesV2(false);
+    }
+
+    public void remapClassesV2(boolean findLocalClasses) {
+        Map<String, String> localClasses;
+        if (findLocalClasses) {
+            Oaktree oaktree = new Oaktree();
+            oaktree.getClassNodesDirectly().addAll(nodes);
+            localClasses = oaktree.guessLocalClasses();
+        } else {
+            localClasses = Collections.emptyMap();
+        }
+
+        Map<String, TreeSet<ClassNode>> remappedEnums = new HashMap<>();
+        Map<String, TreeSet<ClassNode>> remappedInterfaces = new HashMap<>();
+        Map<String, TreeSet<ClassNode>> remappedInners = new HashMap<>();
+        Map<String, TreeSet<ClassNode>> remappedLocals = new HashMap<>();
+        Map<String, TreeSet<ClassNode>> remappedPrivateClasses = new HashMap<>();
+        Map<String, TreeSet<ClassNode>> remappedProtectedClasses = new HashMap<>();
+        Map<String, TreeSet<ClassNode>> remappedPublicClasses = new HashMap<>();
+        Map<String, String> remapMap = new HashMap<>();
+
+        for (ClassNode node : nodes) {
+            if (localClasses.containsKey(node.name)) {
+                continue; // No need to rename it
             }
-            if (bw != null) {
-                try {
-                    bw.write("METHOD\t");
-                    bw.write(method.getOwner());
-                    bw.write('\t');
-                    bw.write(method.getDesc());
-                    bw.write('\t');
-                    bw.write(method.getName());
-                    bw.write('\t');
-                    bw.write(newName);
-                    bw.write('\n');
-                } catch (IOException e) {
-                    e.printStackTrace();
+            int lastSlash = node.name.lastIndexOf('/');
+            String className = node.name.substring(lastSlash + 1);
+            String packageName = node.name.substring(0, lastSlash);
+            if (packageName.startsWith("org/hamcrest") || packageName.startsWith("org/lwjgl")) {
+                // the three (?) packages contain classes that should not be remapped
+                continue;
+            }
+            if (className.length() < 3) {
+                String reusedName = reusedClassNames.get(node.name);
+                if (reusedName != null) {
+                    remapClass(node.name, reusedName);
+                    remapMap.put(node.name, reusedName);
+                } else if ("java/lang/Enum".equals(node.superName)) {
+                    TreeSet<ClassNode> remapSet = remappedEnums.get(packageName);
+                    if (remapSet == null) {
+                        remapSet = new TreeSet<>(ClassNodeNameComparator.INSTANCE);
+                        remappedEnums.put(packageName, remapSet);
+                    }
+                    remapSet.add(node);
+                } else if (node.outerClass != null) {
+                    if (node.outerMethod == null) {
+                        TreeSet<ClassNode> remapSet = remappedInners.get(packageName);
+                        if (remapSet == null) {
+                            remapSet = new TreeSet<>(ClassNodeNameComparator.INSTANCE);
+                            remappedInners.put(packageName, remapSet);
+                        }
+                        remapSet.add(node);
+                    } else {
+                        TreeSet<ClassNode> remapSet = remappedLocals.get(packageName);
+                        if (remapSet == null) {
+                            remapSet = new TreeSet<>(ClassNodeNameComparator.INSTANCE);
+                            remappedLocals.put(packageName, remapSet);
+                        }
+                        remapSet.add(node);
+                    }
+                } else if ((node.access & Opcodes.ACC_INTERFACE) != 0) {
+                    TreeSet<ClassNode> remapSet = remappedInterfaces.get(packageName);
+                    if (remapSet == null) {
+                        remapSet = new TreeSet<>(ClassNodeNameComparator.INSTANCE);
+                        remappedInterfaces.put(packageName, remapSet);
+                    }
+                    remapSet.add(node);
+                } else if ((node.access & Opcodes.ACC_PUBLIC) != 0) {
+                    TreeSet<ClassNode> remapSet = remappedPublicClasses.get(packageName);
+                    if (remapSet == null) {
+                        remapSet = new TreeSet<>(ClassNodeNameComparator.INSTANCE);
+                        remappedPublicClasses.put(packageName, remapSet);
+                    }
+                    remapSet.add(node);
+                } else if ((node.access & Opcodes.ACC_PROTECTED) != 0) {
+                    TreeSet<ClassNode> remapSet = remappedProtectedClasses.get(packageName);
+                    if (remapSet == null) {
+                        remapSet = new TreeSet<>(ClassNodeNameComparator.INSTANCE);
+                        remappedProtectedClasses.put(packageName, remapSet);
+                    }
+                    remapSet.add(node);
+                } else {
+                    TreeSet<ClassNode> remapSet = remappedPrivateClasses.get(packageName);
+                    if (remapSet == null) {
+                        remapSet = new TreeSet<>(ClassNodeNameComparator.INSTANCE);
+                        remappedPrivateClasses.put(packageName, remapSet);
+                    }
+                    remapSet.add(node);
                 }
             }
         }
 
-        if (bw != null) {
-            try {
-                bw.flush();
-                bw.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+        remapSet(remappedEnums, "enum_", remapMap);
+        remapSet(remappedInterfaces, "interface_", remapMap);
+        remapSet(remappedInners, "innerclass_", remapMap);
+        remapSet(remappedLocals, "localclass_", remapMap);
+        remapSet(remappedPublicClasses, "class_", remapMap);
+        remapSet(remappedProtectedClasses, "pclass_",remapMap); // protected class
+        remapSet(remappedPrivateClasses, "ppclass_", remapMap); // package-private class
+
+        Map<String, List<String>> mappings = new HashMap<>();
+        Set<String> unmappedInnerClasses = new HashSet<>();
+
+        localClasses.forEach((inner, outer) -> {
+            mappings.compute(outer, (key, list) -> {
+                if (list == null) {
+                    list = new ArrayList<>();
+                }
+                list.add(inner);
+                return list;
+            });
+            unmappedInnerClasses.add(inner);
+        });
+
+        while (unmappedInnerClasses.size() != 0) {
+            int oldSize = unmappedInnerClasses.size();
+            mappings.forEach((outer, inners) -> {
+                if (unmappedInnerClasses.contains(outer)) {
+                    return;
+                }
+                inners.sort(String::compareTo);
+                int counter = 0;
+                ClassNode outerNode = registry.get(outer);
+                for (String inner : inners) {
+                    ClassNode innerNode = registry.get(inner);
+                    String innerName = "Local" + counter++;
+                    InnerClassNode icn = new InnerClassNode(inner, outer, innerName, innerNode.access);
+                    outerNode.innerClasses.add(icn);
+                    innerNode.innerClasses.add(icn);
+                    String newName = remapMap.getOrDefault(outer, outer) + '$' + innerName;
+                    remapMap.put(inner, newName);
+                    remapClass(inner, newName);
+                    unmappedInnerClasses.remove(inner);
+                }
+            });
+            if (unmappedInnerClasses.size() == oldSize) {
+                for (String s : unmappedInnerClasses) {
+                    System.out.println("IntermediaryGenerator: " + s + " is part of a nested pair. Discarded from intermediary");
+                }
+                break; // Only nested pairs remaining - Discard all
             }
         }
     }
 
-    private void remapSet(Map<String, TreeSet<ClassNode>> set, BufferedWriter writer, String prefix, Map<String, String> mappingsOut) {
+    public void remapGetters() {
+        applyGetterProposals(proposeGetters());
+    }
+
+    private void remapSet(Map<String, TreeSet<ClassNode>> set, String prefix, Map<String, String> mappingsOut) {
         prefix = '/' + prefix;
         for (Map.Entry<String, TreeSet<ClassNode>> packageNode : set.entrySet()) {
             String packageName = packageNode.getKey();
             int counter = 0;
             for (ClassNode node : packageNode.getValue()) {
-                String newName = packageName + prefix + createString(counter++);
-                remapClass(node.name, newName, writer);
+                String newName;
+                do {
+                    newName = packageName + prefix + createString(counter++);
+                } while (reservedClassNames.contains(newName));
+                remapClass(node.name, newName);
                 mappingsOut.put(node.name, newName);
             }
         }
     }
 
+    /**
+     * Reuses the intermediary class names that were generated for a previous version of the application.
+     * The classes of the previous version are matched structurally with the classes of this generator through
+     * a {@link ClassMatcher}, so the obfuscated names of the classes may differ between both versions.
+     * Matched classes keep their previous intermediary name on {@link #remapClassesV2()} as long as they are still
+     * in the same package, while the remaining classes are assigned names that are not used by the reused names.
+     * This eliminates most of the issues that {@link #useAlternateClassNaming(boolean)} was made for.
+     *
+     * <p>This method must be called before {@link #remapClassesV2()}.
+     *
+     * @param previousNodes The classes of the previous version
+     * @param previousMappings The mappings that were generated for the previous version
+     * @return The amount of class names that will be reused
+     */
+    public int reuseClassNames(@NotNull Collection<ClassNode> previousNodes, @NotNull MappingSet previousMappings) {
+        Map<String, String> matches = new ClassMatcher(previousNodes, this.nodes).match();
+        int reused = 0;
+        for (Map.Entry<String, String> match : matches.entrySet()) {
+            String newName = match.getKey();
+            String intermediaryName = previousMappings.getClassMapping(match.getValue());
+            if (intermediaryName == null || !isSamePackage(newName, intermediaryName)) {
+                continue; // Moving classes to another package could break package-private access
+            }
+            if (!this.reservedClassNames.add(intermediaryName)) {
+                continue;
+            }
+            this.reusedClassNames.put(newName, intermediaryName);
+            reused++;
+        }
+        return reused;
+    }
+
+    /**
+     * Sets the scope of this generator. Classes that were passed to this generator but are outside of the scope
+     * are treated as if they were added through {@link #addLibraryClasses(Map)}: They are neither remapped
+     * nor are mappings proposed for them. This method should thus be called before any mappings are proposed.
+     *
+     * @param scope A predicate that returns true for the internal names of the classes that are within the scope
+     */
+    public void setScope(@NotNull Predicate<String> scope) {
+        this.scope = scope;
+        List<ClassNode> moved = new ArrayList<>();
+        for (Iterator<ClassNode> it = this.nodes.iterator(); it.hasNext();) {
+            ClassNode node = it.next();
+            if (scope.test(node.name)) {
+                continue;
+            }
+            it.remove();
+            byte[] bytes = this.unmodifiedClasses.remove(node);
+            if (bytes == null) {
+                ClassWriter writer = new ClassWriter(0);
+                node.accept(writer);
+                bytes = writer.toByteArray();
+            }
+            this.libraryNodes.add(node);
+            this.resources.add(new AbstractMap.SimpleImmutableEntry<>(node.name + ".class", bytes));
+            moved.add(node);
+        }
+        if (!moved.isEmpty()) {
+            this.remapper.clearTargets();
+            this.remapper.addTargets(this.nodes);
+            // Library classes are still needed for lookups
+            moved.forEach(this.registry::putIfAbsent);
+        }
+    }
+
+    /**
+     * Sets the format in which the map file is written. Defaults to {@link MappingFormat#TINY_V1}.
+     *
+     * @param format The format of the map file
+     */
+    public void setMappingFormat(@NotNull MappingFormat format) {
+        this.mappingFormat = format;
+    }
+
     /**
      * Sets whether alternate class naming should be employed. This is very useful if obftools has to be updated or
      * when the application to link to has changed. Making use of this feature eliminates large portions of issues
@@ -1011,6 +1112,19 @@ class ClassNodeNameComparator implements Comparator<ClassNode> {
         alternateClassNaming = toggle;
     }
 
+    /**
+     * Writes all mappings proposed so far to the map file, overwriting it. This is done implicitly by
+     * {@link #deobfuscate()}, so this method only needs to be called if the map file is required beforehand
+     * or if the classes are not deobfuscated at all. Does nothing if no map file was set.
+     *
+     * @throws IOException If an I/O error occurred
+     */
+    public void writeMappings() throws IOException {
+        if (this.map != null) {
+            this.proposedMappings.write(this.map, this.mappingFormat);
+        }
+    }
+
 } enum OverrideScope {
     ALWAYS,
     NEVER,
@@ -0,0 +1,39 @@
+package de.geolykt.starloader.deobf;
+
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+import org.objectweb.asm.ClassReader;
+
+/**
+ * A {@link ClassReader} that deduplicates the strings it reads (such as class names, member names, descriptors
+ * and signatures) through a symbol table that is shared between readers. As such equal symbols of different
+ * classes are represented by the same string instance, which reduces the retained heap when many classes are held
+ * in memory and allows equality checks to succeed through the identity check.
+ */
+final class InterningClassReader extends ClassReader {
+
+    // Null while the super constructor is running, which already reads a few attribute names
+    private final Map<String, String> symbols;
+
+    /**
+     * Constructor.
+     *
+     * @param classFile The bytes of the class
+     * @param symbols The symbol table, which needs to be thread-safe if it is shared between threads
+     */
+    public InterningClassReader(byte @NotNull[] classFile, @NotNull Map<String, String> symbols) {
+        super(classFile);
+        this.symbols = symbols;
+    }
+
+    @Override
+    public String readUTF8(int offset, char[] charBuffer) {
+        String value = super.readUTF8(offset, charBuffer);
+        if (value == null || this.symbols == null) {
+            return value;
+        }
+        String symbol = this.symbols.putIfAbsent(value, value);
+        return symbol == null ? value : symbol;
+    }
+}
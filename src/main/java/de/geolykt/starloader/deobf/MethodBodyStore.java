@@ -0,0 +1,220 @@
+package de.geolykt.starloader.deobf;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.LocalVariableAnnotationNode;
+import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+
+/**
+ * Storage for the method bodies of classes that were indexed with {@link ClassReader#SKIP_CODE}.
+ * The bodies (that is the instructions, try-catch blocks, local variable tables and the stack and local sizes)
+ * of a class are materialized from the bytes of the class while the class is {@link #acquire(ClassNode) acquired}
+ * and are stripped from the class again once every user released it.
+ *
+ * <p>Stripped bodies are retained through a soft reference, so they can be restored without reparsing the class
+ * as long as the garbage collector does not need the memory. If a body was modified while it was materialized,
+ * the methods of the class are serialized before the body is stripped so the modifications are retained should the
+ * soft reference be cleared. The methods of a class must not be added, removed or reordered while the bodies are stripped.
+ *
+ * <p>This class is thread-safe, though a class is only guarded by the store while it is acquired.
+ */
+final class MethodBodyStore {
+
+    private static final class Entry {
+
+        @Nullable
+        private SoftReference<List<MethodBody>> bodies;
+        @NotNull
+        private byte[] bytes;
+        private boolean dirty;
+        private int users;
+
+        private Entry(@NotNull byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    private static final class MethodBody {
+
+        @Nullable
+        private final List<LocalVariableAnnotationNode> invisibleLocalVariableAnnotations;
+        @NotNull
+        private final InsnList instructions;
+        @Nullable
+        private final List<LocalVariableNode> localVariables;
+        private final int maxLocals;
+        private final int maxStack;
+        @NotNull
+        private final List<TryCatchBlockNode> tryCatchBlocks;
+        @Nullable
+        private final List<LocalVariableAnnotationNode> visibleLocalVariableAnnotations;
+
+        private MethodBody(@NotNull MethodNode method) {
+            this.instructions = method.instructions;
+            this.tryCatchBlocks = method.tryCatchBlocks;
+            this.localVariables = method.localVariables;
+            this.visibleLocalVariableAnnotations = method.visibleLocalVariableAnnotations;
+            this.invisibleLocalVariableAnnotations = method.invisibleLocalVariableAnnotations;
+            this.maxStack = method.maxStack;
+            this.maxLocals = method.maxLocals;
+        }
+
+        private void applyTo(@NotNull MethodNode method) {
+            method.instructions = this.instructions;
+            method.tryCatchBlocks = this.tryCatchBlocks;
+            method.localVariables = this.localVariables;
+            method.visibleLocalVariableAnnotations = this.visibleLocalVariableAnnotations;
+            method.invisibleLocalVariableAnnotations = this.invisibleLocalVariableAnnotations;
+            method.maxStack = this.maxStack;
+            method.maxLocals = this.maxLocals;
+        }
+    }
+
+    private static void strip(@NotNull MethodNode method) {
+        method.instructions = new InsnList();
+        method.tryCatchBlocks = new ArrayList<>();
+        method.localVariables = null;
+        method.visibleLocalVariableAnnotations = null;
+        method.invisibleLocalVariableAnnotations = null;
+        method.maxStack = 0;
+        method.maxLocals = 0;
+    }
+
+    private final Map<ClassNode, Entry> entries = new IdentityHashMap<>();
+    @NotNull
+    private final Function<byte[], ClassReader> readerFactory;
+
+    /**
+     * Constructor.
+     *
+     * @param readerFactory The function that creates the readers used to materialize method bodies
+     */
+    public MethodBodyStore(@NotNull Function<byte[], ClassReader> readerFactory) {
+        this.readerFactory = readerFactory;
+    }
+
+    /**
+     * Materializes the method bodies of a class if they are not materialized already. The bodies are guaranteed to
+     * stay materialized until {@link #release(ClassNode, boolean)} was invoked as often as this method.
+     * Classes that were never {@link #register(ClassNode, byte[]) registered} are ignored.
+     *
+     * @param node The class whose method bodies are needed
+     */
+    public void acquire(@NotNull ClassNode node) {
+        Entry entry;
+        synchronized (this.entries) {
+            entry = this.entries.get(node);
+        }
+        if (entry == null) {
+            return;
+        }
+        synchronized (entry) {
+            if (entry.users++ != 0) {
+                return;
+            }
+            List<MethodBody> bodies = entry.bodies == null ? null : entry.bodies.get();
+            if (bodies == null) {
+                ClassNode source = new ClassNode();
+                this.readerFactory.apply(entry.bytes).accept(source, 0);
+                if (source.methods.size() != node.methods.size()) {
+                    throw new IllegalStateException("The methods of class " + node.name + " were modified while their bodies were stripped.");
+                }
+                bodies = new ArrayList<>(source.methods.size());
+                for (int i = 0; i < source.methods.size(); i++) {
+                    MethodNode sourceMethod = source.methods.get(i);
+                    MethodNode method = node.methods.get(i);
+                    if (!sourceMethod.name.equals(method.name) || !sourceMethod.desc.equals(method.desc)) {
+                        throw new IllegalStateException("The methods of class " + node.name + " were modified while their bodies were stripped.");
+                    }
+                    bodies.add(new MethodBody(sourceMethod));
+                }
+            }
+            for (int i = 0; i < bodies.size(); i++) {
+                bodies.get(i).applyTo(node.methods.get(i));
+            }
+            entry.bodies = null;
+        }
+    }
+
+    /**
+     * Registers a class that was read with {@link ClassReader#SKIP_CODE}.
+     *
+     * @param node The class
+     * @param bytes The bytes the class was read from
+     */
+    public void register(@NotNull ClassNode node, @NotNull byte[] bytes) {
+        synchronized (this.entries) {
+            this.entries.put(node, new Entry(bytes));
+        }
+    }
+
+    /**
+     * Releases the method bodies of a class previously {@link #acquire(ClassNode) acquired}.
+     * Once the last user released the class, the bodies are stripped from the class.
+     *
+     * @param node The class whose method bodies are no longer needed
+     * @param modified Whether the method bodies may have been modified since they were acquired
+     */
+    public void release(@NotNull ClassNode node, boolean modified) {
+        Entry entry;
+        synchronized (this.entries) {
+            entry = this.entries.get(node);
+        }
+        if (entry == null) {
+            return;
+        }
+        synchronized (entry) {
+            if (entry.users == 0) {
+                throw new IllegalStateException("Class " + node.name + " was released more often than it was acquired.");
+            }
+            entry.dirty |= modified;
+            if (--entry.users != 0) {
+                return;
+            }
+            if (entry.dirty) {
+                // Other passes may modify the rest of the class concurrently, so only the methods are serialized
+                ClassNode detached = new ClassNode();
+                detached.version = node.version;
+                detached.access = node.access;
+                detached.name = node.name;
+                detached.superName = node.superName;
+                detached.methods.addAll(node.methods);
+                ClassWriter writer = new ClassWriter(0);
+                detached.accept(writer);
+                entry.bytes = writer.toByteArray();
+                entry.dirty = false;
+            }
+            List<MethodBody> bodies = new ArrayList<>(node.methods.size());
+            for (MethodNode method : node.methods) {
+                bodies.add(new MethodBody(method));
+                strip(method);
+            }
+            entry.bodies = new SoftReference<>(bodies);
+        }
+    }
+
+    /**
+     * Materializes the method bodies of a class permanently and stops managing the class.
+     *
+     * @param node The class
+     */
+    public void unregister(@NotNull ClassNode node) {
+        acquire(node);
+        synchronized (this.entries) {
+            this.entries.remove(node);
+        }
+    }
+}
@@ -1,30 +1,54 @@
 package de.geolykt.starloader.deobf;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.ProtectionDomain;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -54,6 +78,9 @@ import org.objectweb.asm.tree.TypeInsnNode;
 import org.objectweb.asm.tree.VarInsnNode;
 
 import de.geolykt.starloader.deobf.StackWalker.StackWalkerConsumer;
+import de.geolykt.starloader.deobf.remapper.MappingFormat;
+import de.geolykt.starloader.deobf.remapper.MappingSet;
+import de.geolykt.starloader.deobf.remapper.RemapperUtils;
 
 /**
  * Primitive class metadata recovery tool.
@@ -65,6 +92,113 @@ import de.geolykt.starloader.deobf.StackWalker.StackWalkerConsumer;
 public class Oaktree {
     // TODO: lambda handle name recovery (Does this fall under Oaktree? I would assume that that is for SlIntermediary)
 
+    /**
+     * A proposed generic signature of a constructor alongside the generic signatures of the fields
+     * that are set by the constructor.
+     */
+    private static final class ConstructorSignatureProposal {
+
+        @NotNull
+        private final List<Map.Entry<FieldReference, String>> fieldSignatures;
+        @NotNull
+        private final MethodNode method;
+        @NotNull
+        private final ClassNode node;
+        @NotNull
+        private final String signature;
+
+        private ConstructorSignatureProposal(@NotNull ClassNode node, @NotNull MethodNode method, @NotNull String signature, @NotNull List<Map.Entry<FieldReference, String>> fieldSignatures) {
+            this.node = node;
+            this.method = method;
+            this.signature = signature;
+            this.fieldSignatures = Collections.unmodifiableList(fieldSignatures);
+        }
+    }
+
+    /**
+     * A class that was read by {@link Oaktree#index(List, List)}, but that is not registered yet.
+     */
+    private static final class IndexedClass {
+
+        @NotNull
+        private final byte[] bytes;
+        // Whether the class stems from a library, which only contributes to the hierarchy
+        private final boolean external;
+        @NotNull
+        private final ClassNode node;
+        // The summary of the constant pool of the class, or null if only the header of the class was read
+        @Nullable
+        private final ConstantPoolSummary summary;
+        // The name of the jar entry of a versioned class of a multi-release jar, which is copied as-is
+        @Nullable
+        private String versionedEntry;
+
+        private IndexedClass(@NotNull ClassNode node, @NotNull byte[] bytes, @Nullable ConstantPoolSummary summary, boolean external) {
+            this.node = node;
+            this.bytes = bytes;
+            this.summary = summary;
+            this.external = external;
+        }
+    }
+
+    /**
+     * A proposed inner class node of a class.
+     */
+    private static final class InnerClassProposal {
+
+        @NotNull
+        private final InnerClassNode innerClass;
+        @NotNull
+        private final ClassNode node;
+        @Nullable
+        private final String outerClass;
+        @NotNull
+        private final String parent;
+        private final boolean split;
+
+        /**
+         * Constructor.
+         *
+         * @param node The class the inner class node is proposed for
+         * @param innerClass The proposed inner class node
+         * @param parent The class that should also reference the inner class node
+         * @param outerClass The proposed outer class of the class, or null if it should be left unchanged
+         * @param split Whether the class is an inner class whose outer class was derived from the name of the class
+         */
+        private InnerClassProposal(@NotNull ClassNode node, @NotNull InnerClassNode innerClass, @NotNull String parent, @Nullable String outerClass, boolean split) {
+            this.node = node;
+            this.innerClass = innerClass;
+            this.parent = parent;
+            this.outerClass = outerClass;
+            this.split = split;
+        }
+    }
+
+    /**
+     * An entry of a jar that is processed by {@link Oaktree#transformStreaming(JarFile, OutputStream, int)}.
+     */
+    private static final class StreamedEntry {
+
+        @NotNull
+        private byte[] bytes;
+        @NotNull
+        private final String name;
+        @Nullable
+        private ClassNode node;
+
+        private StreamedEntry(@NotNull String name, @NotNull byte[] bytes) {
+            this.name = name;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * The amount of batches that {@link #transformStreaming(JarFile, OutputStream, int)} holds in memory at once:
+     * One that is being read, one that is being transformed and one that is being written.
+     */
+    private static final int STREAMING_BATCHES_IN_FLIGHT = 3;
+    private static final String VERSIONED_CLASSES_PREFIX = "META-INF/versions/";
+
     /**
      * A hardcoded set of implementations of the {@link Collection} interface that apply for
      * generics checking later on.
@@ -152,54 +286,417 @@ public class Oaktree {
         return fieldDesc.substring(indexOfL, fieldDesc.length() - 1);
     }
 
+    /**
+     * Obtains the jar the deobfuscator was loaded from, so that outputs produced by another build of the
+     * deobfuscator are not mistaken for each other.
+     *
+     * @return The jar, or null if the deobfuscator was not loaded from a jar (for example from a classes directory)
+     */
+    @Nullable
+    private static Path getCodeSourceJar() {
+        ProtectionDomain domain = Oaktree.class.getProtectionDomain();
+        if (domain.getCodeSource() == null || domain.getCodeSource().getLocation() == null) {
+            return null;
+        }
+        try {
+            Path location = Paths.get(domain.getCodeSource().getLocation().toURI());
+            return Files.isRegularFile(location) ? location : null;
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether a class could be an anonymous inner class based on its fields and its constructor alone.
+     * Read-only counterpart of the first phase of {@link #guessAnonymousInnerClasses()}.
+     *
+     * @param node The class to check
+     * @return True if the class is a candidate for an anonymous inner class
+     */
+    private static boolean isAnonymousInnerClassCandidate(@NotNull ClassNode node) {
+        if ((node.access & VISIBILITY_MODIFIERS) != 0) {
+            return false; // Anonymous inner classes are always package-private
+        }
+        boolean skipClass = false;
+        FieldNode outerClassReference = null;
+        for (FieldNode field : node.fields) {
+            if ((field.access & (Opcodes.ACC_SYNTHETIC | Opcodes.ACC_FINAL)) == (Opcodes.ACC_SYNTHETIC | Opcodes.ACC_FINAL)
+                    && (field.access & VISIBILITY_MODIFIERS) == 0) {
+                if (outerClassReference != null) {
+                    skipClass = true;
+                    break; // short-circuit
+                }
+                outerClassReference = field;
+            }
+        }
+        if (skipClass || outerClassReference == null) {
+            return false;
+        }
+        // anonymous classes can only have a single constructor since they are only created at a single spot
+        // However they also have to have a constructor so they can pass the outer class reference
+        MethodNode constructor = null;
+        for (MethodNode method : node.methods) {
+            if (method.name.equals("<init>")) {
+                if (constructor != null) {
+                    // cannot have multiple constructors
+                    skipClass = true;
+                    break; // short-circuit
+                }
+                if ((method.access & VISIBILITY_MODIFIERS) != 0) {
+                    // The constructor should be package - protected
+                    skipClass = true;
+                    break;
+                }
+                constructor = method;
+            }
+        }
+        if (skipClass || constructor == null) { // require a single constructor, not more, not less
+            return false;
+        }
+        // since we have the potential reference to the outer class and we know that it has to be set
+        // via the constructor's parameter, we can check whether this is the case here
+        DescString desc = new DescString(constructor.desc);
+        skipClass = true;
+        while (desc.hasNext()) {
+            String type = desc.nextType();
+            if (type.equals(outerClassReference.desc)) {
+                skipClass = false;
+                break;
+            }
+        }
+        if (skipClass) {
+            return false;
+        }
+        int dollarIndex = node.name.indexOf('$');
+        if (dollarIndex != -1 && !Character.isDigit(node.name.codePointAt(dollarIndex + 1))) {
+            // Unobfuscated class that is 100% not anonymous
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Read-only counterpart of {@link #guessAnonymousClasses()} that collects all usages of potential anonymous classes
+     * within a class. A usage that rules out the class as an anonymous class is proposed with a null method,
+     * the instantiation of a class from within its potential outer class is proposed along the instantiating method.
+     *
+     * @param node The class to scan
+     * @param potentialAnonymousClasses The internal names of the classes that could be anonymous classes
+     * @param syntheticFields The synthetic fields of the potential anonymous classes
+     * @param proposals The list to add the proposals to, in the order in which the usages were encountered
+     */
+    private static void proposeAnonymousClasses(@NotNull ClassNode node, @NotNull Set<String> potentialAnonymousClasses,
+            @NotNull Set<FieldReference> syntheticFields, @NotNull List<Map.Entry<String, MethodReference>> proposals) {
+        for (FieldNode field : node.fields) {
+            if ((field.access & Opcodes.ACC_SYNTHETIC) != 0) {
+                continue;
+            }
+            String className = getClassName(field.desc);
+            if (className != null && potentialAnonymousClasses.contains(className)) {
+                proposals.add(new AbstractMap.SimpleImmutableEntry<>(className, null));
+            }
+        }
+
+        for (MethodNode method : node.methods) {
+            DescString descString = new DescString(method.desc);
+            while (descString.hasNext()) {
+                String className = getClassName(descString.nextType());
+                if (className != null && !className.equals(node.name) && potentialAnonymousClasses.contains(className)) {
+                    proposals.add(new AbstractMap.SimpleImmutableEntry<>(className, null));
+                }
+            }
+
+            if (method.instructions == null) {
+                continue;
+            }
+            AbstractInsnNode insn = method.instructions.getFirst();
+            while (insn != null) {
+                if (insn instanceof FieldInsnNode) {
+                    FieldInsnNode fieldInsn = (FieldInsnNode) insn;
+                    if (!syntheticFields.contains(new FieldReference(fieldInsn))) {
+                        String className = getClassName(fieldInsn.desc);
+                        if (className != null && !className.equals(node.name) && potentialAnonymousClasses.contains(className)) {
+                            proposals.add(new AbstractMap.SimpleImmutableEntry<>(className, null));
+                        }
+                        className = fieldInsn.owner;
+                        if (className != null && !className.equals(node.name) && potentialAnonymousClasses.contains(className)) {
+                            proposals.add(new AbstractMap.SimpleImmutableEntry<>(className, null));
+                        }
+                    }
+                } else if (insn instanceof MethodInsnNode) {
+                    MethodInsnNode methodInsn = (MethodInsnNode) insn;
+                    if (methodInsn.name.equals("<init>")) {
+                        if (potentialAnonymousClasses.contains(methodInsn.owner)) {
+                            if (methodInsn.desc.startsWith(node.name, 2)) {
+                                proposals.add(new AbstractMap.SimpleImmutableEntry<>(methodInsn.owner, new MethodReference(node.name, method)));
+                            } else {
+                                proposals.add(new AbstractMap.SimpleImmutableEntry<>(methodInsn.owner, null));
+                            }
+                        }
+                    } else {
+                        String returnClass = getReturnedClass(methodInsn.desc);
+                        if (returnClass != null && potentialAnonymousClasses.contains(returnClass)) {
+                            proposals.add(new AbstractMap.SimpleImmutableEntry<>(returnClass, null));
+                        }
+                        if (potentialAnonymousClasses.contains(methodInsn.owner)) {
+                            proposals.add(new AbstractMap.SimpleImmutableEntry<>(methodInsn.owner, null));
+                        }
+                    }
+                }
+                insn = insn.getNext();
+            }
+        }
+    }
+
+    /**
+     * Proposes the outer class of a class should the class look like a local class.
+     * Read-only counterpart of {@link #guessLocalClasses()}.
+     *
+     * @param node The potential local class
+     * @param proposals The list to add the proposed (inner class, outer class) pair to
+     */
+    private static void proposeLocalClass(@NotNull ClassNode node, @NotNull List<Map.Entry<String, String>> proposals) {
+        for (InnerClassNode icn : node.innerClasses) {
+            if (icn.name.equals(node.name)) {
+                return;
+            }
+        }
+
+        String this0FieldDesc = null;
+        String this0FieldName = null;
+        for (MethodNode method : node.methods) {
+            if (method.name.equals("<init>")) {
+                if (method.desc.codePointAt(1) != 'L') {
+                    return;
+                }
+                String outerClassDesc = method.desc.substring(1, method.desc.indexOf(';', 3) + 1);
+                if (this0FieldDesc != null && !outerClassDesc.equals(this0FieldDesc)) {
+                    return;
+                }
+                this0FieldDesc = outerClassDesc;
+                AbstractInsnNode insn = method.instructions.getFirst();
+                while (insn.getOpcode() == -1) {
+                    insn = insn.getNext();
+                }
+                if (insn.getOpcode() != Opcodes.ALOAD || ((VarInsnNode)insn).var != 0) {
+                    return;
+                }
+                insn = insn.getNext();
+                if (insn.getOpcode() != Opcodes.ALOAD || ((VarInsnNode)insn).var != 1) {
+                    return;
+                }
+                insn = insn.getNext();
+                if (insn.getOpcode() != Opcodes.PUTFIELD) {
+                    return;
+                }
+                FieldInsnNode putFieldInsn = (FieldInsnNode) insn;
+                if (!this0FieldDesc.equals(putFieldInsn.desc)) {
+                    return;
+                }
+                if (this0FieldName != null && !this0FieldName.equals(putFieldInsn.name)) {
+                    return;
+                }
+                this0FieldName = putFieldInsn.name;
+            }
+        }
+
+        if (this0FieldDesc == null || this0FieldName == null) {
+            return;
+        }
+
+        boolean resolvedField = false;
+        for (FieldNode field : node.fields) {
+            if ((field.access & Opcodes.ACC_SYNTHETIC) == 0) {
+                continue;
+            }
+            if (field.name.equals(this0FieldName) && field.desc.equals(this0FieldDesc)) {
+                resolvedField = true;
+                break;
+            }
+        }
+        if (!resolvedField) {
+            return;
+        }
+
+        // Ensure that the two classes are in the same package
+        int lastIndexOfSlash = node.name.lastIndexOf('/');
+        if (this0FieldDesc.length() <= (lastIndexOfSlash + 1) || this0FieldDesc.codePointAt(lastIndexOfSlash + 1) != '/') {
+            return;
+        }
+        if (!this0FieldDesc.startsWith(node.name.substring(0, lastIndexOfSlash), 1)) {
+            return;
+        }
+        proposals.add(new AbstractMap.SimpleImmutableEntry<>(node.name, this0FieldDesc.substring(1, this0FieldDesc.length() - 1)));
+    }
+
     public static void main(@NotNull String[] args) {
         long start = System.currentTimeMillis();
         if (args.length < 2) {
             System.err.println("Not enough arguments. The first argument is the source jar, the second one the target jar.");
             return;
         }
+        String daemonPort = System.getProperty("oaktree.cli.daemonPort");
         try {
-            Oaktree oakTree = new Oaktree();
-            JarFile file = new JarFile(args[0]);
-            oakTree.index(file);
-            file.close();
-            oakTree.definalizeAnonymousClasses();
-            oakTree.fixInnerClasses();
-            oakTree.fixParameterLVT();
-            oakTree.guessFieldGenerics();
-            oakTree.inferMethodGenerics();
-            oakTree.inferConstructorGenerics();
-            oakTree.fixForeachOnArray();
-            oakTree.fixComparators(true);
-            oakTree.guessAnonymousClasses();
-            oakTree.fixSwitchMaps();
-            long startStep = System.currentTimeMillis();
-            oakTree.applyInnerclasses();
-            System.out.println("Applied inner class nodes to referencing classes. (" + (System.currentTimeMillis() - startStep) + " ms)");
-            if (args.length == 3 && Boolean.valueOf(args[2]) == true) {
-                // remapper activate!
-                IntermediaryGenerator gen = new IntermediaryGenerator(Paths.get("map.tiny"), Paths.get(args[1]), oakTree.nodes);
-                gen.addResources(new File(args[0]));
-                gen.useAlternateClassNaming(Boolean.getBoolean("oaktree.cli.alternateClassNaming"));
-                gen.remapClassesV2();
-                gen.doProposeEnumFieldsV2();
-                long startGetters = System.currentTimeMillis();
-                gen.remapGetters();
-                System.out.println("Getters remapped in " + (System.currentTimeMillis() - startGetters) + " ms");
-                gen.deobfuscate();
-            } else {
-                FileOutputStream os = new FileOutputStream(args[1]);
-                oakTree.write(os);
-                os.close();
+            if (daemonPort != null) {
+                System.out.println(OaktreeDaemon.submit(Integer.parseInt(daemonPort), args, System.getProperties()));
+                return;
             }
+            run(args, System.getProperties(), null);
         } catch (IOException e) {
             e.printStackTrace();
         }
         System.out.printf("Finished processing in record pace: Only %d ms!\n", System.currentTimeMillis() - start);
     }
 
-    private final Map<String, ClassNode> nameToNode = new HashMap<>();
+    /**
+     * Runs the command line interface. The options are read from the given properties rather than the system properties,
+     * which allows the {@link OaktreeDaemon} to run several jobs with different options concurrently.
+     *
+     * @param args The arguments, see {@link #main(String[])}
+     * @param properties The options, such as "oaktree.cli.scope"
+     * @param libraryWrappers A pool that retains the hierarchy of library classes between jobs, or null
+     * @throws IOException If an I/O error occurred
+     */
+    static void run(@NotNull String[] args, @NotNull Properties properties, @Nullable ClassWrapperPool libraryWrappers) throws IOException {
+        Oaktree oakTree = new Oaktree();
+        oakTree.setScope(ClassFilter.parse(properties.getProperty("oaktree.cli.scope", "")));
+        oakTree.setLazyMethodBodies(Boolean.parseBoolean(properties.getProperty("oaktree.cli.lazyMethodBodies")));
+        oakTree.setSymbolInterning(Boolean.parseBoolean(properties.getProperty("oaktree.cli.internSymbols")));
+        int streamingBatchSize = Integer.parseInt(properties.getProperty("oaktree.cli.streamingBatchSize", "0"));
+        boolean remap = args.length == 3 && Boolean.valueOf(args[2]) == true;
+        Path mapFile = remap ? Paths.get(properties.getProperty("oaktree.cli.mapFile", "map.tiny")) : null;
+        OutputCache cache = null;
+        String cacheKey = null;
+        String cacheDir = properties.getProperty("oaktree.cli.cacheDir");
+        Path deobfuscatorJar = getCodeSourceJar();
+        if (cacheDir != null && deobfuscatorJar == null) {
+            System.err.println("Not caching the output as the deobfuscator was not loaded from a jar.");
+        } else if (cacheDir != null) {
+            cache = new OutputCache(Paths.get(cacheDir), Long.parseLong(properties.getProperty("oaktree.cli.cacheSize", String.valueOf(1L << 30))));
+            Map<String, String> configuration = new HashMap<>();
+            configuration.put("version", String.valueOf(Oaktree.class.getPackage().getImplementationVersion()));
+            configuration.put("deobfuscator", OutputCache.computeFileDigest(deobfuscatorJar));
+            configuration.put("runtime", oakTree.getClassWrapperPool().getSnapshotKey());
+            configuration.put("remap", String.valueOf(remap));
+            configuration.put("streamingBatchSize", String.valueOf(remap ? 0 : streamingBatchSize));
+            for (String property : new String[] {"scope", "alternateClassNaming", "mappingFormat"}) {
+                configuration.put(property, String.valueOf(properties.getProperty("oaktree.cli." + property)));
+            }
+            String previousJar = properties.getProperty("oaktree.cli.previousJar");
+            String previousMap = properties.getProperty("oaktree.cli.previousMap");
+            if (remap && previousJar != null && previousMap != null) {
+                cacheKey = OutputCache.computeKey(Paths.get(args[0]), configuration, Paths.get(previousJar), Paths.get(previousMap));
+            } else {
+                cacheKey = OutputCache.computeKey(Paths.get(args[0]), configuration);
+            }
+            if (cache.restore(cacheKey, Paths.get(args[1]), mapFile)) {
+                System.out.println("Restored the output from the cache.");
+                return;
+            }
+        }
+        if (libraryWrappers != null) {
+            oakTree.getClassWrapperPool().addLibraryWrappers(libraryWrappers);
+        }
+        String snapshotFile = properties.getProperty("oaktree.cli.hierarchySnapshot");
+        if (snapshotFile != null && Files.isRegularFile(Paths.get(snapshotFile))) {
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(Paths.get(snapshotFile)))) {
+                if (!oakTree.getClassWrapperPool().readSnapshot(in)) {
+                    System.out.println("Ignoring the hierarchy snapshot as it was created for another runtime or classpath.");
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (streamingBatchSize > 0 && !remap) {
+            // Only the class-local passes can be applied in bounded memory
+            try (JarFile file = new JarFile(args[0]); FileOutputStream os = new FileOutputStream(args[1])) {
+                oakTree.transformStreaming(file, os, streamingBatchSize);
+            }
+            if (cache != null) {
+                cache.store(cacheKey, Paths.get(args[1]), null);
+            }
+            return;
+        }
+        JarFile file = new JarFile(args[0]);
+        oakTree.index(file);
+        file.close();
+        OaktreePipeline.createDefault().run(oakTree, ForkJoinPool.commonPool());
+        if (remap) {
+            // remapper activate!
+            Map<ClassNode, byte[]> unmodifiedClasses = oakTree.getUnmodifiedClasses();
+            IntermediaryGenerator gen = new IntermediaryGenerator(mapFile, Paths.get(args[1]), oakTree.getClassNodesDirectly(), oakTree.getClassNodeRegistry());
+            gen.addUnmodifiedClasses(unmodifiedClasses);
+            gen.addResources(new File(args[0]));
+            gen.addLibraryClasses(oakTree.getLibraryClasses());
+            gen.useAlternateClassNaming(Boolean.parseBoolean(properties.getProperty("oaktree.cli.alternateClassNaming")));
+            gen.setMappingFormat(MappingFormat.valueOf(properties.getProperty("oaktree.cli.mappingFormat", "TINY_V1").toUpperCase(Locale.ROOT)));
+            String previousJar = properties.getProperty("oaktree.cli.previousJar");
+            String previousMap = properties.getProperty("oaktree.cli.previousMap");
+            if (previousJar != null && previousMap != null) {
+                Oaktree previousVersion = new Oaktree();
+                try (JarFile previousFile = new JarFile(previousJar)) {
+                    previousVersion.index(previousFile);
+                }
+                MappingSet previousMappings = new MappingSet();
+                RemapperUtils.readTinyV1File(new File(previousMap), previousMappings);
+                int reused = gen.reuseClassNames(previousVersion.getClassNodesDirectly(), previousMappings);
+                System.out.println("Reusing " + reused + " intermediary class names of the previous version.");
+            }
+            gen.remapClassesV2();
+            long startMembers = System.currentTimeMillis();
+            gen.proposeMembers();
+            System.out.println("Enum fields and getters remapped in " + (System.currentTimeMillis() - startMembers) + " ms");
+            if (!gen.deobfuscate()) {
+                // Do not cache incomplete output
+                cache = null;
+            }
+        } else {
+            FileOutputStream os = new FileOutputStream(args[1]);
+            oakTree.write(os);
+            os.close();
+        }
+        if (snapshotFile != null) {
+            Path snapshotPath = Paths.get(snapshotFile).toAbsolutePath();
+            // Jobs of the daemon may write the same snapshot concurrently, so every job uses its own temporary file
+            Path temporary = Files.createTempFile(snapshotPath.getParent(), snapshotPath.getFileName().toString(), ".tmp");
+            try {
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary))) {
+                    oakTree.getClassWrapperPool().writeSnapshot(out);
+                }
+                Files.move(temporary, snapshotPath, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                // The snapshot only speeds up later runs, so failing to write it does not fail the job
+                e.printStackTrace();
+                Files.deleteIfExists(temporary);
+            }
+        }
+        if (libraryWrappers != null) {
+            libraryWrappers.addLibraryWrappers(oakTree.getClassWrapperPool());
+        }
+        if (cache != null) {
+            cache.store(cacheKey, Paths.get(args[1]), mapFile);
+        }
+    }
+
+    @NotNull
+    private ForkJoinPool classPool = ForkJoinPool.commonPool();
+    private final Map<String, byte[]> libraryClasses = new LinkedHashMap<>();
+    @Nullable
+    private MethodBodyStore methodBodies;
+    private final Set<ClassNode> modifiedClasses = ConcurrentHashMap.newKeySet();
     private final List<ClassNode> nodes = new ArrayList<>();
+    private final Map<ClassNode, byte[]> originalBytes = new IdentityHashMap<>();
+    @NotNull
+    private final ClassNodeRegistry registry;
+    @NotNull
+    private Predicate<String> scope = ClassFilter.ALL;
+    // Whether forEachClass invokes the actions on the calling thread instead of the class pool
+    private boolean sequential;
+    private final Map<ClassNode, ConstantPoolSummary> summaries = new IdentityHashMap<>();
+    @Nullable
+    private Map<String, String> symbols;
+    // The versioned classes of multi-release jars, keyed by their jar entry name
+    private final Map<String, byte[]> versionedClasses = new LinkedHashMap<>();
     private final ClassWrapperPool wrapperPool;
 
     public Oaktree() {
@@ -207,7 +704,59 @@ public class Oaktree {
     }
 
     public Oaktree(ClassLoader classWrapperClassloader) {
-        wrapperPool = new ClassWrapperPool(nameToNode, classWrapperClassloader);
+        this(classWrapperClassloader, new ClassNodeRegistry());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param classWrapperClassloader The classloader used to resolve classes that are not indexed
+     * @param registry The registry to register indexed classes in, which may be shared with other components
+     */
+    public Oaktree(ClassLoader classWrapperClassloader, @NotNull ClassNodeRegistry registry) {
+        this.registry = registry;
+        wrapperPool = new ClassWrapperPool(registry, classWrapperClassloader);
+    }
+
+    /**
+     * Materializes the {@link #setLazyMethodBodies(boolean) lazily loaded} method bodies of the given classes
+     * until {@link #releaseMethodBodies(List, boolean)} is called. Used by passes that walk the instructions of several classes
+     * at once. Should such a pass fail, the bodies merely stay materialized.
+     *
+     * @param classes The classes whose bodies are needed
+     */
+    private void acquireMethodBodies(@NotNull List<ClassNode> classes) {
+        MethodBodyStore methodBodies = this.methodBodies;
+        if (methodBodies != null) {
+            for (ClassNode node : classes) {
+                methodBodies.acquire(node);
+            }
+        }
+    }
+
+    /**
+     * Materializes the {@link #setLazyMethodBodies(boolean) lazily loaded} method bodies of a single class
+     * until {@link #releaseMethodBodies(ClassNode, boolean)} is called. Used by passes that visit the instructions
+     * of one class after another, so only the bodies of the class that is currently visited are resident.
+     *
+     * @param node The class whose bodies are needed
+     */
+    private void acquireMethodBodies(@NotNull ClassNode node) {
+        MethodBodyStore methodBodies = this.methodBodies;
+        if (methodBodies != null) {
+            methodBodies.acquire(node);
+        }
+    }
+
+    /**
+     * Applies all passes that only modify the class they are visiting to the classes within the scope.
+     * See {@link #transformStreaming(JarFile, OutputStream, int)}.
+     */
+    private void applyClassLocalPasses() {
+        definalizeAnonymousClasses();
+        fixParameterLVT();
+        fixForeachOnArray();
+        fixComparators(true);
     }
 
     /**
@@ -232,6 +781,7 @@ public class Oaktree {
             for (InnerClassNode icn : node.innerClasses) {
                 encounteredClasses.add(icn.name);
             }
+            acquireMethodBodies(node);
             for (MethodNode method : node.methods) {
                 if (method.instructions == null) {
                     continue;
@@ -243,30 +793,67 @@ public class Oaktree {
                             InnerClassNode icn = innerClassNodes.get(methodRef.owner);
                             if (icn != null) {
                                 node.innerClasses.add(icn);
+                                markModified(node);
                             }
                         }
                     }
                 }
             }
+            releaseMethodBodies(node, false);
         }
     }
 
+    /**
+     * Invokes a read-only proposer for every class within the scope, partitioning the classes across the
+     * {@link #setClassPool(ForkJoinPool) class pool}. The proposer must not modify any class, instead it adds
+     * its proposals to the supplied list. The proposals are returned in the same order in which they would
+     * have been produced had the classes been visited sequentially, so they can be committed deterministically.
+     * {@link #setLazyMethodBodies(boolean) Lazily loaded} method bodies are materialized while the proposer is invoked.
+     *
+     * @param <T> The type of the proposals
+     * @param proposer The proposer, which is invoked with the class and the list to add the proposals to
+     * @return The proposals of all classes
+     */
+    @NotNull
+    private <T> List<T> collectProposals(@NotNull BiConsumer<ClassNode, List<T>> proposer) {
+        MethodBodyStore methodBodies = this.methodBodies;
+        return this.classPool.submit(() -> this.nodes.parallelStream()
+                .flatMap(node -> {
+                    List<T> proposals = new ArrayList<>();
+                    if (methodBodies == null) {
+                        proposer.accept(node, proposals);
+                    } else {
+                        methodBodies.acquire(node);
+                        try {
+                            proposer.accept(node, proposals);
+                        } finally {
+                            methodBodies.release(node, false);
+                        }
+                    }
+                    return proposals.stream();
+                })
+                .collect(Collectors.toList())).join();
+    }
+
     /**
      * Removes the final access modifier from non-obfuscated anonymous classes.
      * The reason this is done is because for recompiled galimulator (using Java 17 to compile and target 1.8),
      * the access modifiers differ in this instance. Why exactly this is the case is unknown to me.
      */
     public void definalizeAnonymousClasses() {
-        for (ClassNode node : nodes) {
+        forEachClass(false, node -> {
             int dollarIndex = node.name.indexOf('$');
             if (dollarIndex == -1) {
-                continue;
+                return false;
             }
-            if (Character.isDigit(node.name.codePointAt(dollarIndex + 1))) {
+            if (Character.isDigit(node.name.codePointAt(dollarIndex + 1)) && (node.access & Opcodes.ACC_FINAL) != 0) {
                 // Highly likely an anonymous class, so we remove the anonymous access flag
                 node.access &= ~Opcodes.ACC_FINAL;
+                markModified(node);
+                return true;
             }
-        }
+            return false;
+        });
     }
 
     /**
@@ -275,12 +862,12 @@ public class Oaktree {
      * @param resolveTRArtifact Whether to resolve an artifact left over by tiny remapper.
      */
     public void fixComparators(boolean resolveTRArtifact) {
-        for (ClassNode node : nodes) {
+        forEachClass(getCandidates("java/util/Comparator"), true, node -> {
             if (node.signature != null || node.interfaces.size() != 1) {
-                continue;
+                return false;
             }
             if (!node.interfaces.get(0).equals("java/util/Comparator")) {
-                continue;
+                return false;
             }
             // Ljava/lang/Object;Ljava/util/Comparator<Lorg/junit/runner/Description;>;
             for (MethodNode method : node.methods) {
@@ -342,10 +929,12 @@ public class Oaktree {
                     String generics = invokevirtual.desc.substring(1, invokevirtual.desc.indexOf(';'));
                     node.signature = "Ljava/lang/Object;Ljava/util/Comparator<" + generics + ";>;";
                     method.access |= Opcodes.ACC_BRIDGE;
-                    break;
+                    markModified(node);
+                    return true;
                 }
             }
-        }
+            return false;
+        });
     }
 
     /**
@@ -358,9 +947,10 @@ public class Oaktree {
      * @return The amount of added LVTs
      */
     public int fixForeachOnArray() {
-        int addedLVTs = 0;
+        AtomicInteger addedLVTs = new AtomicInteger();
 
-        for (ClassNode node : nodes) {
+        forEachClass(true, node -> {
+            boolean modified = false;
             for (MethodNode method : node.methods) {
                 AbstractInsnNode instruction = method.instructions.getFirst();
                 while (instruction != null) {
@@ -546,7 +1136,9 @@ public class Oaktree {
                                 LocalVariableNode localVar = new LocalVariableNode("var" + objectStore.var,
                                         arrayDesc.substring(1), null, startObjectStoreLabel, jumpToEnd.label, objectStore.var);
                                 method.localVariables.add(localVar);
-                                addedLVTs++;
+                                addedLVTs.incrementAndGet();
+                                markModified(node);
+                                modified = true;
                             }
                         }
                         continue;
@@ -554,9 +1146,10 @@ public class Oaktree {
                     instruction = instruction.getNext();
                 }
             }
-        }
+            return modified;
+        });
 
-        return addedLVTs;
+        return addedLVTs.get();
     }
 
     /**
@@ -575,124 +1168,25 @@ public class Oaktree {
             }
         }
         // Second sweep
-        for (ClassNode node : nodes) {
-            // Sweep enum members
-            if (enums.contains(node.superName)) {
-                // Child of (abstract) enum
-                boolean skip = false;
-                for (InnerClassNode innerNode : node.innerClasses) {
-                    if (node.name.equals(innerNode.name)) {
-                        skip = true;
-                        break;
-                    }
-                }
-                if (!skip) {
-                    // Apply fixup
-                    // We are using 16400 for access, but are there times where this is not wanted?
-                    // 16400 = ACC_FINAL | ACC_ENUM
-                    InnerClassNode innerNode = new InnerClassNode(node.name, null, null, 16400);
-                    parents.get(node.superName).add(innerNode);
-                    node.outerClass = node.superName;
-                    node.innerClasses.add(innerNode);
-                }
-            } else if (node.name.contains("$")) {
-                // Partially unobfuscated inner class.
-
-                // This operation cannot be performed during the first sweep
-                boolean skip = false;
-                for (InnerClassNode innernode : node.innerClasses) {
-                    if (innernode.name.equals(node.name)) {
-                        skip = true;
-                        break;
-                    }
-                }
-                if (!skip) {
-                    int lastSeperator = node.name.lastIndexOf('$');
-                    String outerNode = node.name.substring(0, lastSeperator++);
-                    String innerMost = node.name.substring(lastSeperator);
-                    InnerClassNode innerClassNode;
-                    if (innerMost.matches("^[0-9]+$")) {
-                        // Anonymous class
-                        // We know that ACC_SUPER is invalid for inner classes, so we remove that flag
-                        innerClassNode = new InnerClassNode(node.name, null, null, node.access & ~Opcodes.ACC_SUPER);
-                        node.outerClass = outerNode;
-                    } else {
-                        // We need to check for static inner classes.
-                        // We already know that anonymous classes can never be static classes by definition,
-                        // So we can skip that step for anonymous classes
-                        boolean staticInnerClass = false;
-                        boolean implicitStatic = false;
-                        // Interfaces, Enums and Records are implicitly static
-                        if (!staticInnerClass) {
-                            staticInnerClass = (node.access & Opcodes.ACC_INTERFACE) != 0
-                                    || (node.access & Opcodes.ACC_RECORD) != 0
-                                    || ((node.access & Opcodes.ACC_ENUM) != 0 && node.superName.equals("java/lang/Enum"));
-                            implicitStatic = staticInnerClass;
-                        }
-                        // Member classes of interfaces are implicitly static
-                        if (!staticInnerClass) {
-                            ClassNode outerClassNode = nameToNode.get(outerNode);
-                            staticInnerClass = outerClassNode != null && (outerClassNode.access & Opcodes.ACC_INTERFACE) != 0;
-                            implicitStatic = staticInnerClass;
-                        }
-                        // The constructor of non-static inner classes must take in an instance of the outer class an
-                        // argument
-                        if (!staticInnerClass) {
-                            boolean staticConstructor = false;
-                            for (MethodNode method : node.methods) {
-                                if (method.name.equals("<init>")) {
-                                    int outernodeLen = outerNode.length();
-                                    if (outernodeLen + 2 > method.desc.length()) {
-                                        // The reference to the outer class cannot be passed in via a parameter as there
-                                        // i no space for it in the descriptor, so the class has to be static
-                                        staticConstructor = true;
-                                        break;
-                                    }
-                                    String arg = method.desc.substring(2, outernodeLen + 2);
-                                    if (!arg.equals(outerNode)) {
-                                        // Has to be static. The other parameters are irrelevant as the outer class
-                                        // reference is always at first place.
-                                        staticConstructor = true;
-                                        break;
-                                    }
-                                }
-                            }
-                            if (staticConstructor) {
-                                staticInnerClass = true;
-                                implicitStatic = false;
-                            }
-                        }
-                        if (staticInnerClass && !implicitStatic) {
-                            for (FieldNode field : node.fields) {
-                                if ((field.access & Opcodes.ACC_FINAL) != 0 && field.name.startsWith("this$")) {
-                                    System.err.println("Falsely identified " + node.name + " as static inner class.");
-                                    staticInnerClass = false;
-                                }
-                            }
-                        }
-
-                        int innerClassAccess = node.access & ~Opcodes.ACC_SUPER; // Super is not allowed for inner class nodes
-
-                        // Don't fall to the temptation of adding ACC_STATIC to the class node.
-                        // According the the ASM verifier it is not legal to do so. However the JVM does not seem care
-                        // Nonetheless, we are not adding it the access flags of the class, though we will add it in the inner
-                        // class node
-                        if (!staticInnerClass) {
-                            // Beware of https://docs.oracle.com/javase/specs/jls/se16/html/jls-8.html#jls-8.1.3
-                            node.outerClass = outerNode;
-                        } else {
-                            innerClassAccess |= Opcodes.ACC_STATIC;
-                        }
-                        innerClassNode = new InnerClassNode(node.name, outerNode, innerMost, innerClassAccess);
-                    }
-                    parents.get(outerNode).add(innerClassNode);
-                    splitInner.put(node.name, innerClassNode);
-                    node.innerClasses.add(innerClassNode);
-                }
+        List<InnerClassProposal> proposals = collectProposals((node, out) -> {
+            InnerClassProposal proposal = proposeInnerClass(node, enums);
+            if (proposal != null) {
+                out.add(proposal);
+            }
+        });
+        for (InnerClassProposal proposal : proposals) {
+            parents.get(proposal.parent).add(proposal.innerClass);
+            if (proposal.outerClass != null) {
+                proposal.node.outerClass = proposal.outerClass;
+            }
+            if (proposal.split) {
+                splitInner.put(proposal.node.name, proposal.innerClass);
             }
+            proposal.node.innerClasses.add(proposal.innerClass);
+            markModified(proposal.node);
         }
-        for (ClassNode node : nodes) {
-            // General sweep
+        // General sweep
+        List<Map.Entry<ClassNode, InnerClassNode>> referencedInnerClasses = collectProposals((node, out) -> {
             Collection<InnerClassNode> innerNodesToAdd = new ArrayList<>();
             for (FieldNode field : node.fields) {
                 String descriptor = field.desc;
@@ -715,13 +1209,17 @@ public class Oaktree {
                     innerNodesToAdd.add(innerNode);
                 }
             }
-            // Apply inner nodes
+            // Propose inner nodes
             HashSet<String> entryNames = new HashSet<>();
             for (InnerClassNode inner : innerNodesToAdd) {
                 if (entryNames.add(inner.name)) {
-                    node.innerClasses.add(inner);
+                    out.add(new AbstractMap.SimpleImmutableEntry<>(node, inner));
                 }
             }
+        });
+        for (Map.Entry<ClassNode, InnerClassNode> referencedInnerClass : referencedInnerClasses) {
+            referencedInnerClass.getKey().innerClasses.add(referencedInnerClass.getValue());
+            markModified(referencedInnerClass.getKey());
         }
         // Add inner classes to the parent of the anonymous classes
         for (Entry<String, List<InnerClassNode>> entry : parents.entrySet()) {
@@ -734,7 +1232,7 @@ public class Oaktree {
                 }
             }
             toRemove.forEach(entry.getValue()::remove);
-            ClassNode node = nameToNode.get(entry.getKey());
+            ClassNode node = registry.get(entry.getKey());
             for (InnerClassNode innerEntry : entry.getValue()) {
                 boolean skip = false;
                 for (InnerClassNode inner : node.innerClasses) {
@@ -745,6 +1243,7 @@ public class Oaktree {
                 }
                 if (!skip) {
                     node.innerClasses.add(innerEntry);
+                    markModified(node);
                 }
             }
         }
@@ -760,7 +1259,8 @@ public class Oaktree {
      * into incoherent java code if the LVT is damaged.
      */
     public void fixParameterLVT() {
-        for (ClassNode node : nodes) {
+        forEachClass(true, node -> {
+            boolean modified = false;
             for (MethodNode method : node.methods) {
                 List<LocalVariableNode> locals = method.localVariables;
                 List<ParameterNode> params = method.parameters;
@@ -779,6 +1279,8 @@ public class Oaktree {
                     // LVTs that have been left alone by the obfuscator will have at least one declared local
                     continue;
                 }
+                markModified(node);
+                modified = true;
 
                 if (params == null) {
                     method.parameters = new ArrayList<>();
@@ -894,7 +1396,8 @@ public class Oaktree {
                     locals.add(a);
                 }
             }
-        }
+            return modified;
+        });
     }
 
     /**
@@ -911,11 +1414,14 @@ public class Oaktree {
      * @return The amount of classes who were identified as switch maps.
      */
     public int fixSwitchMaps() {
+        // Both the switch map fields and the references to them are of the type int[]
+        List<ClassNode> candidates = getCandidates("[I");
+        acquireMethodBodies(candidates);
         // Field (with old name) -> new (remapped) name
         Map<FieldReference, String> deobfNames = new HashMap<>(); // The deobf name will be something like $SwitchMap$org$bukkit$Material
 
         // index switch map classes - or at least their candidates
-        for (ClassNode node : nodes) {
+        for (ClassNode node : candidates) {
             if (node.superName != null && node.superName.equals("java/lang/Object") && node.interfaces.isEmpty()) {
                 if (node.fields.size() == 1 && node.methods.size() == 1) {
                     MethodNode method = node.methods.get(0);
@@ -968,6 +1474,7 @@ public class Oaktree {
                                 // Remap the actual field declaration
                                 // Switch maps can only contain a single field and we have already obtained said field, so it isn't much of a deal here
                                 field.name = newName;
+                                markModified(node);
                             }
                         }
                     }
@@ -976,7 +1483,7 @@ public class Oaktree {
         }
 
         // Rename references to the field
-        for (ClassNode node : nodes) {
+        for (ClassNode node : candidates) {
             // This variable exists to prevent adding the ICN multiple times for a given class pair
             Set<String> addedInnerClassNodes = new HashSet<>();
             for (InnerClassNode icn : node.innerClasses) {
@@ -996,24 +1503,25 @@ public class Oaktree {
                         String newName = deobfNames.get(fRef);
                         if (newName != null) {
                             fieldInstruction.name = newName;
+                            markModified(node);
                             if (!addedInnerClassNodes.contains(fRef.getOwner())) {
                                 ClassNode outermostClassnode = node;
                                 outermostNodeFinderLoop:
                                 while (true) {
                                     if (outermostClassnode.outerClass != null) {
-                                        outermostClassnode = nameToNode.get(outermostClassnode.outerClass);
+                                        outermostClassnode = registry.get(outermostClassnode.outerClass);
                                         continue;
                                     }
                                     for (InnerClassNode icn : outermostClassnode.innerClasses) {
                                         if (icn.name.equals(outermostClassnode.name) && icn.outerName != null) {
-                                            outermostClassnode = nameToNode.get(icn.outerName);
+                                            outermostClassnode = registry.get(icn.outerName);
                                             continue outermostNodeFinderLoop;
                                         }
                                     }
                                     break;
                                 }
                                 InnerClassNode innerClassNode = new InnerClassNode(fRef.getOwner(), outermostClassnode.name, null, Opcodes.ACC_STATIC ^ Opcodes.ACC_SYNTHETIC ^ Opcodes.ACC_FINAL);
-                                ClassNode switchmapNode = nameToNode.get(fRef.getOwner());
+                                ClassNode switchmapNode = registry.get(fRef.getOwner());
                                 String currentNestParent = null;
                                 for (InnerClassNode icn : switchmapNode.innerClasses) {
                                     if (icn.name.equals(switchmapNode.name)) {
@@ -1022,8 +1530,10 @@ public class Oaktree {
                                 }
                                 outermostClassnode.innerClasses.add(innerClassNode);
                                 node.innerClasses.add(innerClassNode);
+                                markModified(outermostClassnode);
                                 if (currentNestParent == null) {
                                     switchmapNode.innerClasses.add(innerClassNode);
+                                    markModified(switchmapNode);
                                 } else if (!currentNestParent.equals(outermostClassnode.name)) {
                                     System.out.println("(WARN) Got a collision for switchmap class " + switchmapNode.name + " (" + newName + "). Currently: " + currentNestParent + ", proposed: " + outermostClassnode.name);
                                 }
@@ -1035,32 +1545,144 @@ public class Oaktree {
             }
         }
 
+        releaseMethodBodies(candidates, true);
         return deobfNames.size();
     }
 
-    public List<ClassNode> getClassNodesDirectly() {
-        return nodes;
+    /**
+     * Invokes an action for every class within the scope, partitioning the classes across the
+     * {@link #setClassPool(ForkJoinPool) class pool}. The action must only modify the class it is
+     * invoked for, results that are shared between classes need to be collected in a thread-safe manner.
+     * Blocks until the action has been invoked for all classes.
+     *
+     * @param modifiesMethodBodies Whether the action reads or modifies the method bodies, in which case
+     * {@link #setLazyMethodBodies(boolean) lazily loaded} bodies are materialized while the action is invoked
+     * @param action The action to invoke, which returns whether it modified the class
+     */
+    private void forEachClass(boolean modifiesMethodBodies, @NotNull Predicate<ClassNode> action) {
+        forEachClass(this.nodes, modifiesMethodBodies, action);
     }
 
     /**
-     * Guesses the should-be inner classes of classes based on the usages of the class.
-     * This only guesses anonymous classes based on the code, but not based on the name.
-     * It also does not require the synthetic fields for the anonymous classes, so it may
-     * do mismatches from time to time.
-     *
-     * <p>It will not overwrite already existing relations and will not perform any changes
-     * to the class nodes.
-     * Inner class nodes must therefore be applied manually. It is advisable to run
-     * {@link Oaktree#applyInnerclasses()} afterwards.
+     * Invokes an action for every class of a subset of the classes within the scope, such as the
+     * {@link #getCandidates(String...) candidates} of a pass. See {@link #forEachClass(boolean, Predicate)}.
      *
-     * @author Geolykt
-     * @return The returned map will have the outer class as the key and the outer method as the desc.
+     * @param classes The classes to invoke the action for
+     * @param modifiesMethodBodies Whether the action reads or modifies the method bodies
+     * @param action The action to invoke, which returns whether it modified the class
      */
-    @Contract(value = "-> new", pure = true)
-    public Map<String, MethodReference> guessAnonymousClasses() {
-        Map<String, MethodReference> anonymousClasses = new HashMap<>();
-
-        Set<String> potentialAnonymousClasses = new HashSet<>();
+    private void forEachClass(@NotNull List<ClassNode> classes, boolean modifiesMethodBodies, @NotNull Predicate<ClassNode> action) {
+        MethodBodyStore methodBodies = this.methodBodies;
+        Consumer<ClassNode> visitor;
+        if (methodBodies == null || !modifiesMethodBodies) {
+            visitor = action::test;
+        } else {
+            visitor = node -> {
+                methodBodies.acquire(node);
+                boolean modified = true;
+                try {
+                    modified = action.test(node);
+                } finally {
+                    // Should the action fail, the bodies may have been modified partially
+                    methodBodies.release(node, modified);
+                }
+            };
+        }
+        if (this.sequential) {
+            classes.forEach(visitor);
+        } else {
+            this.classPool.submit(() -> classes.parallelStream().forEach(visitor)).join();
+        }
+    }
+
+    /**
+     * Obtains the classes within the scope that may reference all of the given symbols, based on the summary
+     * of their constant pool that was created while indexing them. Passes that are only applicable to classes
+     * that reference certain symbols use this to skip all other classes without visiting their instructions.
+     * Classes without a summary (for example because the {@link #invalidateNameCaches() name caches were invalidated})
+     * are always included.
+     *
+     * @param symbols The symbols, such as internal class names, member names or descriptors
+     * @return The classes that may reference all symbols, in the order in which they were indexed
+     */
+    @NotNull
+    private List<ClassNode> getCandidates(@NotNull String... symbols) {
+        List<ClassNode> candidates = new ArrayList<>();
+        for (ClassNode node : nodes) {
+            ConstantPoolSummary summary = summaries.get(node);
+            if (summary == null || summary.mayContain(symbols)) {
+                candidates.add(node);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Obtains the registry in which this instance registers the classes it indexes, including library classes.
+     * The registry can be shared with other components such as the {@link IntermediaryGenerator} so renames
+     * are visible to all of them.
+     *
+     * @return The registry
+     */
+    @NotNull
+    public ClassNodeRegistry getClassNodeRegistry() {
+        return registry;
+    }
+
+    public List<ClassNode> getClassNodesDirectly() {
+        // The caller may modify the nodes without us knowing
+        modifiedClasses.addAll(nodes);
+        MethodBodyStore methodBodies = this.methodBodies;
+        if (methodBodies != null) {
+            // The caller may do anything with the nodes, so the bodies can no longer be managed
+            for (ClassNode node : nodes) {
+                methodBodies.unregister(node);
+            }
+            this.methodBodies = null;
+        }
+        return nodes;
+    }
+
+    /**
+     * Obtains the pool of class wrappers this instance uses to resolve the hierarchy of classes.
+     *
+     * @return The pool
+     */
+    @NotNull
+    public ClassWrapperPool getClassWrapperPool() {
+        return wrapperPool;
+    }
+
+    /**
+     * Obtains the classes that were encountered while {@link #index(JarFile) indexing}, but are outside of the
+     * {@link #setScope(Predicate) scope}. These classes are not transformed by any pass and are written as-is.
+     *
+     * @return An unmodifiable map of the internal names of the classes to their class files
+     */
+    @NotNull
+    public Map<String, byte[]> getLibraryClasses() {
+        return Collections.unmodifiableMap(libraryClasses);
+    }
+
+    /**
+     * Guesses the should-be inner classes of classes based on the usages of the class.
+     * This only guesses anonymous classes based on the code, but not based on the name.
+     * It also does not require the synthetic fields for the anonymous classes, so it may
+     * do mismatches from time to time.
+     *
+     * <p>It will not overwrite already existing relations and will not perform any changes
+     * to the class nodes.
+     * Inner class nodes must therefore be applied manually. It is advisable to run
+     * {@link Oaktree#applyInnerclasses()} afterwards.
+     *
+     * @author Geolykt
+     * @return The returned map will have the outer class as the key and the outer method as the desc.
+     */
+    @Contract(value = "-> new", pure = true)
+    public Map<String, MethodReference> guessAnonymousClasses() {
+        Map<String, MethodReference> anonymousClasses = new HashMap<>();
+
+        Set<String> potentialAnonymousClasses = new HashSet<>();
         Set<FieldReference> syntheticFields = new HashSet<>();
 
         nodeLoop:
@@ -1083,73 +1705,19 @@ public class Oaktree {
             }
         }
 
-        for (ClassNode node : nodes) {
-            for (FieldNode field : node.fields) {
-                if ((field.access & Opcodes.ACC_SYNTHETIC) != 0) {
-                    continue;
-                }
-                String className = getClassName(field.desc);
-                if (className == null) {
-                    continue;
-                }
+        List<Map.Entry<String, MethodReference>> proposals = collectProposals((node, out) -> {
+            proposeAnonymousClasses(node, potentialAnonymousClasses, syntheticFields, out);
+        });
+
+        // Replay the proposals in the order in which they were encountered
+        for (Map.Entry<String, MethodReference> proposal : proposals) {
+            String className = proposal.getKey();
+            MethodReference creator = proposal.getValue();
+            if (creator == null || anonymousClasses.containsKey(className)) {
                 potentialAnonymousClasses.remove(className);
                 anonymousClasses.remove(className);
-            }
-
-            for (MethodNode method : node.methods) {
-                DescString descString = new DescString(method.desc);
-                while (descString.hasNext()) {
-                    String className = getClassName(descString.nextType());
-                    if (className != null && !className.equals(node.name)) {
-                        potentialAnonymousClasses.remove(className);
-                        anonymousClasses.remove(className);
-                    }
-                }
-
-                if (method.instructions != null) {
-                    AbstractInsnNode insn = method.instructions.getFirst();
-                    while (insn != null) {
-                        if (insn instanceof FieldInsnNode) {
-                            FieldInsnNode fieldInsn = (FieldInsnNode) insn;
-                            if (!syntheticFields.contains(new FieldReference(fieldInsn))) {
-                                String className = getClassName(fieldInsn.desc);
-                                if (className != null && !className.equals(node.name)) {
-                                    potentialAnonymousClasses.remove(className);
-                                    anonymousClasses.remove(className);
-                                }
-                                className = fieldInsn.owner;
-                                if (className != null && !className.equals(node.name)) {
-                                    potentialAnonymousClasses.remove(className);
-                                    anonymousClasses.remove(className);
-                                }
-                            }
-                        } else if (insn instanceof MethodInsnNode) {
-                            MethodInsnNode methodInsn = (MethodInsnNode) insn;
-                            if (methodInsn.name.equals("<init>")) {
-                                if (anonymousClasses.containsKey(methodInsn.owner)) {
-                                    potentialAnonymousClasses.remove(methodInsn.owner);
-                                    anonymousClasses.remove(methodInsn.owner);
-                                } else if (potentialAnonymousClasses.contains(methodInsn.owner)) {
-                                    if (methodInsn.desc.startsWith(node.name, 2)) {
-                                        anonymousClasses.put(methodInsn.owner, new MethodReference(node.name, method));
-                                    } else {
-                                        anonymousClasses.remove(methodInsn.owner);
-                                        potentialAnonymousClasses.remove(methodInsn.owner);
-                                    }
-                                }
-                            } else {
-                                String returnClass = getReturnedClass(methodInsn.desc);
-                                if (returnClass != null) {
-                                    potentialAnonymousClasses.remove(returnClass);
-                                    anonymousClasses.remove(returnClass);
-                                }
-                                potentialAnonymousClasses.remove(methodInsn.owner);
-                                anonymousClasses.remove(methodInsn.owner);
-                            }
-                        }
-                        insn = insn.getNext();
-                    }
-                }
+            } else if (potentialAnonymousClasses.contains(className)) {
+                anonymousClasses.put(className, creator);
             }
         }
         return anonymousClasses;
@@ -1177,69 +1745,59 @@ public class Oaktree {
      * @author Geolykt
      */
     public Map<MethodReference, ClassWrapper> analyseLikelyMethodReturnCollectionGenerics() {
-        Map<MethodReference, ClassWrapper> signatures = new HashMap<>();
-        Map<StackElement, ClassWrapper> stackSignatureTypes = new HashMap<>();
-
-        for (ClassNode node : nodes) {
-            for (MethodNode method : node.methods) {
-                if ((method.access & Opcodes.ACC_STATIC) == 0 || method.signature != null) {
-                    continue;
-                }
-                String returnedClass = getReturnedClass(method.desc);
-                if (returnedClass == null) {
-                    continue;
-                }
-                ClassWrapper returnType = wrapperPool.optGet(returnedClass);
-                if (returnType == null || !returnType.getAllImplementatingInterfaces().contains("java/util/Collection")) {
-                    continue;
-                }
-
-                stackSignatureTypes.clear();
-                MethodReference methodRef = new MethodReference(node.name, method);
-                StackWalker.walkStack(node, method, new StackWalkerConsumer() {
-
-                    @Override
-                    public void preCalculation(AbstractInsnNode instruction, LIFOQueue<StackElement> stack) {
-                        if (instruction instanceof MethodInsnNode) {
-                            MethodInsnNode methodInsn = (MethodInsnNode) instruction;
-                            if (methodInsn.name.equals("add")) {
-                                ClassWrapper methodOwner = wrapperPool.get(methodInsn.owner);
-                                if (methodOwner.getAllImplementatingInterfaces().contains("java/util/Collection")) {
-                                    StackElement collection = stack.getDelegateList().get(1);
-                                    StackElement insertedElement = stack.getHead();
-                                    ClassWrapper oldSignature = stackSignatureTypes.get(collection);
-                                    // TODO this does not treat arrays well
-                                    ClassWrapper insertedElementWrapper = wrapperPool.get(insertedElement.type.substring(1, insertedElement.type.length() - 1));
-                                    ClassWrapper wrapper;
-                                    if (oldSignature != null) {
-                                        wrapper = wrapperPool.getCommonSuperClass(insertedElementWrapper, oldSignature);
-                                    } else {
-                                        wrapper = insertedElementWrapper;
-                                    }
-                                    stackSignatureTypes.put(collection, wrapper);
-                                }
-                            }
-                        } else if (instruction.getOpcode() == Opcodes.ARETURN) {
-                            // TODO if possible, calculate the LVT for the collections
-                            ClassWrapper mergeSignature = stackSignatureTypes.get(stack.getHead());
-                            if (mergeSignature != null) {
-                                ClassWrapper oldSignature = signatures.get(methodRef);
-                                if (oldSignature == null) {
-                                    signatures.put(methodRef, mergeSignature);
+        Map<MethodReference, ClassWrapper> signatures = StackWalker.walkStacks(classPool, nodes, (node, method, results) -> {
+            if ((method.access & Opcodes.ACC_STATIC) == 0 || method.signature != null) {
+                return null;
+            }
+            String returnedClass = getReturnedClass(method.desc);
+            if (returnedClass == null) {
+                return null;
+            }
+            ClassWrapper returnType = wrapperPool.optGet(returnedClass);
+            if (returnType == null || !returnType.getAllImplementatingInterfaces().contains("java/util/Collection")) {
+                return null;
+            }
+
+            Map<StackElement, ClassWrapper> stackSignatureTypes = new HashMap<>();
+            MethodReference methodRef = new MethodReference(node.name, method);
+            return new StackWalkerConsumer() {
+
+                @Override
+                public void preCalculation(AbstractInsnNode instruction, LIFOQueue<StackElement> stack) {
+                    if (instruction instanceof MethodInsnNode) {
+                        MethodInsnNode methodInsn = (MethodInsnNode) instruction;
+                        if (methodInsn.name.equals("add")) {
+                            ClassWrapper methodOwner = wrapperPool.get(methodInsn.owner);
+                            if (methodOwner.getAllImplementatingInterfaces().contains("java/util/Collection")) {
+                                StackElement collection = stack.getDelegateList().get(1);
+                                StackElement insertedElement = stack.getHead();
+                                ClassWrapper oldSignature = stackSignatureTypes.get(collection);
+                                // TODO this does not treat arrays well
+                                ClassWrapper insertedElementWrapper = wrapperPool.get(insertedElement.type.substring(1, insertedElement.type.length() - 1));
+                                ClassWrapper wrapper;
+                                if (oldSignature != null) {
+                                    wrapper = wrapperPool.getCommonSuperClass(insertedElementWrapper, oldSignature);
                                 } else {
-                                    signatures.put(methodRef, wrapperPool.getCommonSuperClass(oldSignature, mergeSignature));
+                                    wrapper = insertedElementWrapper;
                                 }
+                                stackSignatureTypes.put(collection, wrapper);
                             }
                         }
+                    } else if (instruction.getOpcode() == Opcodes.ARETURN) {
+                        // TODO if possible, calculate the LVT for the collections
+                        ClassWrapper mergeSignature = stackSignatureTypes.get(stack.getHead());
+                        if (mergeSignature != null) {
+                            results.accept(methodRef, mergeSignature);
+                        }
                     }
+                }
 
-                    @Override
-                    public void postCalculation(AbstractInsnNode instruction, LIFOQueue<StackElement> stack) {
-                        // Not needed
-                    }
-                });
-            }
-        }
+                @Override
+                public void postCalculation(AbstractInsnNode instruction, LIFOQueue<StackElement> stack) {
+                    // Not needed
+                }
+            };
+        }, wrapperPool::getCommonSuperClass, methodBodies);
 
         signatures.values().removeIf(wrapper -> wrapper.getSuper() == null);
         return signatures;
@@ -1294,14 +1852,16 @@ public class Oaktree {
                 }
                 inners.sort(String::compareTo);
                 int counter = 0;
-                ClassNode outerNode = nameToNode.get(outer);
+                ClassNode outerNode = registry.get(outer);
                 for (String inner : inners) {
-                    ClassNode innerNode = nameToNode.get(inner);
+                    ClassNode innerNode = registry.get(inner);
                     String innerName = localClassNamePrefix + counter++;
                     if (applyInnerClassNodes) {
                         InnerClassNode icn = new InnerClassNode(inner, outer, innerName, innerNode.access);
                         outerNode.innerClasses.add(icn);
                         innerNode.innerClasses.add(icn);
+                        markModified(outerNode);
+                        markModified(innerNode);
                     }
                     mappedNames.put(inner, mappedNames.getOrDefault(outer, outer) + '$' + innerName);
                     unmappedInnerClasses.remove(inner);
@@ -1314,6 +1874,26 @@ public class Oaktree {
         return mappedNames;
     }
 
+    /**
+     * Obtains the class files of the classes within the scope that were not modified by any pass since they were
+     * {@link #index(JarFile) indexed}. These classes can be written by copying their original class file instead
+     * of serializing the class node again, which is what {@link #write(OutputStream)} does.
+     * Must be called before {@link #getClassNodesDirectly()}, which considers all classes to be modified.
+     *
+     * @return A map of the unmodified class nodes to the class files they were read from
+     */
+    @NotNull
+    public Map<ClassNode, byte[]> getUnmodifiedClasses() {
+        Map<ClassNode, byte[]> unmodified = new IdentityHashMap<>();
+        for (ClassNode node : nodes) {
+            byte[] bytes = originalBytes.get(node);
+            if (bytes != null && !modifiedClasses.contains(node)) {
+                unmodified.put(node, bytes);
+            }
+        }
+        return unmodified;
+    }
+
     /**
      * Guesses anonymous inner classes by checking whether they have a synthetic field and if they
      * do whether they are referenced only by a single "parent" class.
@@ -1332,99 +1912,58 @@ public class Oaktree {
         // name it is better to use MethodNode instead of String to reduce object allocation overhead.
         // Should we use triple instead? Perhaps.
         HashMap<String, Map.Entry<String, MethodNode>> candidates = new LinkedHashMap<>();
-        for (ClassNode node : nodes) {
-            if ((node.access & VISIBILITY_MODIFIERS) != 0) {
-                continue; // Anonymous inner classes are always package-private
-            }
-            boolean skipClass = false;
-            FieldNode outerClassReference = null;
-            for (FieldNode field : node.fields) {
-                if ((field.access & (Opcodes.ACC_SYNTHETIC | Opcodes.ACC_FINAL)) == (Opcodes.ACC_SYNTHETIC | Opcodes.ACC_FINAL)
-                        && (field.access & VISIBILITY_MODIFIERS) == 0) {
-                    if (outerClassReference != null) {
-                        skipClass = true;
-                        break; // short-circuit
-                    }
-                    outerClassReference = field;
-                }
-            }
-            if (skipClass || outerClassReference == null) {
-                continue;
-            }
-            // anonymous classes can only have a single constructor since they are only created at a single spot
-            // However they also have to have a constructor so they can pass the outer class reference
-            MethodNode constructor = null;
-            for (MethodNode method : node.methods) {
-                if (method.name.equals("<init>")) {
-                    if (constructor != null) {
-                        // cannot have multiple constructors
-                        skipClass = true;
-                        break; // short-circuit
-                    }
-                    if ((method.access & VISIBILITY_MODIFIERS) != 0) {
-                        // The constructor should be package - protected
-                        skipClass = true;
-                        break;
-                    }
-                    constructor = method;
-                }
+        List<String> candidateNames = collectProposals((node, out) -> {
+            if (isAnonymousInnerClassCandidate(node)) {
+                out.add(node.name);
             }
-            if (skipClass || constructor == null) { // require a single constructor, not more, not less
-                continue;
-            }
-            // since we have the potential reference to the outer class and we know that it has to be set
-            // via the constructor's parameter, we can check whether this is the case here
-            DescString desc = new DescString(constructor.desc);
-            skipClass = true;
-            while (desc.hasNext()) {
-                String type = desc.nextType();
-                if (type.equals(outerClassReference.desc)) {
-                    skipClass = false;
-                    break;
-                }
-            }
-            if (skipClass) {
-                continue;
-            }
-            int dollarIndex = node.name.indexOf('$');
-            if (dollarIndex != -1 && !Character.isDigit(node.name.codePointAt(dollarIndex + 1))) {
-                // Unobfuscated class that is 100% not anonymous
-                continue;
-            }
-            candidates.put(node.name, null);
+        });
+        for (String candidate : candidateNames) {
+            candidates.put(candidate, null);
         }
 
-        // Make sure that the constructor is only invoked in a single class, which should be the outer class
-        for (ClassNode node : nodes) {
+        // Make sure that the constructor is only invoked in a single class, which should be the outer class.
+        // A proposal without an invoker denotes an invocation from within the class itself.
+        List<Map.Entry<String, Map.Entry<String, MethodNode>>> invocations = collectProposals((node, out) -> {
             for (MethodNode method : node.methods) {
                 AbstractInsnNode instruction = method.instructions.getFirst();
                 while (instruction != null) {
                     if (instruction instanceof MethodInsnNode && ((MethodInsnNode)instruction).name.equals("<init>")) {
-                        MethodInsnNode methodInvocation = (MethodInsnNode) instruction;
-                        String owner = methodInvocation.owner;
+                        String owner = ((MethodInsnNode) instruction).owner;
                         if (candidates.containsKey(owner)) {
                             if (owner.equals(node.name)) {
-                                // this is no really valid anonymous class
-                                candidates.remove(owner);
+                                out.add(new AbstractMap.SimpleImmutableEntry<>(owner, null));
                             } else {
-                                Map.Entry<String, MethodNode> invoker = candidates.get(owner);
-                                if (invoker == null) {
-                                    candidates.put(owner, new AbstractMap.SimpleImmutableEntry<>(node.name, method));
-                                } else if (!invoker.getKey().equals(node.name)
-                                        || !invoker.getValue().name.equals(method.name)
-                                        || !invoker.getValue().desc.equals(method.desc)) {
-                                    // constructor referenced by multiple classes, cannot be valid
-                                    // However apparently these classes could be extended? I am not entirely sure how that is possible, but it is.
-                                    // That being said, we are going to ignore that this is possible and just consider them invalid
-                                    // as everytime this happens the decompiler is able to decompile the class without any issues.
-                                    candidates.remove(owner);
-                                }
+                                out.add(new AbstractMap.SimpleImmutableEntry<>(owner, new AbstractMap.SimpleImmutableEntry<>(node.name, method)));
                             }
                         }
                     }
                     instruction = instruction.getNext();
                 }
             }
+        });
+        for (Map.Entry<String, Map.Entry<String, MethodNode>> invocation : invocations) {
+            String owner = invocation.getKey();
+            if (!candidates.containsKey(owner)) {
+                continue;
+            }
+            Map.Entry<String, MethodNode> proposedInvoker = invocation.getValue();
+            if (proposedInvoker == null) {
+                // this is no really valid anonymous class
+                candidates.remove(owner);
+                continue;
+            }
+            Map.Entry<String, MethodNode> invoker = candidates.get(owner);
+            if (invoker == null) {
+                candidates.put(owner, proposedInvoker);
+            } else if (!invoker.getKey().equals(proposedInvoker.getKey())
+                    || !invoker.getValue().name.equals(proposedInvoker.getValue().name)
+                    || !invoker.getValue().desc.equals(proposedInvoker.getValue().desc)) {
+                // constructor referenced by multiple classes, cannot be valid
+                // However apparently these classes could be extended? I am not entirely sure how that is possible, but it is.
+                // That being said, we are going to ignore that this is possible and just consider them invalid
+                // as everytime this happens the decompiler is able to decompile the class without any issues.
+                candidates.remove(owner);
+            }
         }
 
         // If another class has a field reference to the potential anonymous class, and that field is not
@@ -1432,7 +1971,7 @@ public class Oaktree {
         // In the future I could settle with not checking for the anonymous access flag, but this would
         // be quite the effort to get around nonetheless since previous steps of this method utilise
         // this access flag
-        for (ClassNode node : nodes) {
+        List<String> fieldTypes = collectProposals((node, out) -> {
             for (FieldNode field : node.fields) {
                 if (field.desc.length() == 1 || (field.access & Opcodes.ACC_SYNTHETIC) != 0) {
                     continue;
@@ -1442,9 +1981,11 @@ public class Oaktree {
                 }
                 // Now technically, they are still inner classes. Just regular ones and they are not static ones
                 // however not adding them as a inner class has no effect in recomplieabillity so we will not really care about it just yet.
-                String className = field.desc.substring(field.desc.lastIndexOf('[') + 2, field.desc.length() - 1);
-                candidates.remove(className);
+                out.add(field.desc.substring(field.desc.lastIndexOf('[') + 2, field.desc.length() - 1));
             }
+        });
+        for (String fieldType : fieldTypes) {
+            candidates.remove(fieldType);
         }
 
         int addedInners = 0;
@@ -1454,11 +1995,11 @@ public class Oaktree {
             if (outer == null) {
                 continue;
             }
-            ClassNode innerNode = nameToNode.get(inner);
+            ClassNode innerNode = registry.get(inner);
             if (innerNode == null) {
                 throw new IllegalStateException("Unable to find class: " + inner);
             }
-            ClassNode outernode = nameToNode.get(outer.getKey());
+            ClassNode outernode = registry.get(outer.getKey());
 
             MethodNode outerMethod = outer.getValue();
             if (outernode == null) {
@@ -1493,9 +2034,11 @@ public class Oaktree {
                 innerNode.outerMethodDesc = outerMethod.desc;
                 innerNode.outerClass = outernode.name;
                 innerNode.innerClasses.add(newInnerClassNode);
+                markModified(innerNode);
             }
             if (!hasInnerClassInfoOuter) {
                 outernode.innerClasses.add(newInnerClassNode);
+                markModified(outernode);
             }
             addedInners++;
         }
@@ -1528,6 +2071,9 @@ public class Oaktree {
 
         // guess signatures based on iterators
         for (ClassNode node : nodes) {
+            acquireMethodBodies(node);
+            // Only the declarations of iterators alter the method bodies, the signatures of fields are not part of them
+            boolean modified = false;
             for (MethodNode method : node.methods) {
                 AbstractInsnNode instruction = method.instructions.getFirst();
                 while (instruction != null) {
@@ -1670,18 +2216,22 @@ public class Oaktree {
                                     null,
                                     firstDeclaration, loopEndLabel, iteratedObject.var);
                             localVars.add(lvtNode);
+                            markModified(node);
+                            modified = true;
                         }
                         continue;
                     }
                     instruction = instruction.getNext();
                 }
             }
+            releaseMethodBodies(node, modified);
         }
 
         // guess signatures based on Collection#add
         Map<FieldReference, Map.Entry<ClassWrapper, String>> collectionSignatures = new HashMap<>();
 
         for (ClassNode node : nodes) {
+            acquireMethodBodies(node);
             for (MethodNode method : node.methods) {
                 AbstractInsnNode insn = method.instructions.getFirst();
                 while (insn != null) {
@@ -1775,6 +2325,7 @@ public class Oaktree {
                     insn = insn.getNext();
                 }
             }
+            releaseMethodBodies(node, false);
         }
 
         for (Entry<FieldReference, Entry<ClassWrapper, String>> collectionEntry : collectionSignatures.entrySet()) {
@@ -1791,6 +2342,7 @@ public class Oaktree {
                     } else {
                         // System.out.println("Signature for " + node.name + "." + field.name + " is " + result.toString());
                         field.signature = result.toString();
+                        markModified(node);
                     }
                 }
             }
@@ -1815,84 +2367,20 @@ public class Oaktree {
      */
     public Map<String, String> guessLocalClasses() {
         Map<String, String> localClasses = new HashMap<>();
-        classLoop:
-        for (ClassNode node : nodes) {
-            for (InnerClassNode icn : node.innerClasses) {
-                if (icn.name.equals(node.name)) {
-                    continue classLoop;
-                }
-            }
-
-            String this0FieldDesc = null;
-            String this0FieldName = null;
-            for (MethodNode method : node.methods) {
-                if (method.name.equals("<init>")) {
-                    if (method.desc.codePointAt(1) != 'L') {
-                        continue classLoop;
-                    }
-                    String outerClassDesc = method.desc.substring(1, method.desc.indexOf(';', 3) + 1);
-                    if (this0FieldDesc != null && !outerClassDesc.equals(this0FieldDesc)) {
-                        continue classLoop;
-                    }
-                    this0FieldDesc = outerClassDesc;
-                    AbstractInsnNode insn = method.instructions.getFirst();
-                    while (insn.getOpcode() == -1) {
-                        insn = insn.getNext();
-                    }
-                    if (insn.getOpcode() != Opcodes.ALOAD || ((VarInsnNode)insn).var != 0) {
-                        continue classLoop;
-                    }
-                    insn = insn.getNext();
-                    if (insn.getOpcode() != Opcodes.ALOAD || ((VarInsnNode)insn).var != 1) {
-                        continue classLoop;
-                    }
-                    insn = insn.getNext();
-                    if (insn.getOpcode() != Opcodes.PUTFIELD) {
-                        continue classLoop;
-                    }
-                    FieldInsnNode putFieldInsn = (FieldInsnNode) insn;
-                    if (!this0FieldDesc.equals(putFieldInsn.desc)) {
-                        continue classLoop;
-                    }
-                    if (this0FieldName != null && !this0FieldName.equals(putFieldInsn.name)) {
-                        continue classLoop;
-                    }
-                    this0FieldName = putFieldInsn.name;
-                }
-            }
-
-            if (this0FieldDesc == null || this0FieldName == null) {
-                continue;
-            }
-
-            boolean resolvedField = false;
-            for (FieldNode field : node.fields) {
-                if ((field.access & Opcodes.ACC_SYNTHETIC) == 0) {
-                    continue;
-                }
-                if (field.name.equals(this0FieldName) && field.desc.equals(this0FieldDesc)) {
-                    resolvedField = true;
-                    break;
-                }
-            }
-            if (!resolvedField) {
-                continue;
-            }
-
-            // Ensure that the two classes are in the same package
-            int lastIndexOfSlash = node.name.lastIndexOf('/');
-            if (this0FieldDesc.length() <= (lastIndexOfSlash + 1) || this0FieldDesc.codePointAt(lastIndexOfSlash + 1) != '/') {
-                continue;
-            }
-            if (!this0FieldDesc.startsWith(node.name.substring(0, lastIndexOfSlash), 1)) {
-                continue;
-            }
-            localClasses.put(node.name, this0FieldDesc.substring(1, this0FieldDesc.length() - 1));
+        for (Map.Entry<String, String> proposal : collectProposals(Oaktree::proposeLocalClass)) {
+            localClasses.put(proposal.getKey(), proposal.getValue());
         }
-
         return localClasses;
     }
 
+    /**
+     * Indexes the classes of a jar. Versioned classes of multi-release jars (that is classes below "META-INF/versions/")
+     * are neither indexed nor transformed, as they would shadow the unversioned classes of the same name. Instead they
+     * are copied as-is by {@link #write(OutputStream)}. The {@link IntermediaryGenerator} does not include them as they
+     * are not remapped, so the JVM falls back to the unversioned classes when running the remapped jar.
+     *
+     * @param file The jar
+     */
     public void index(JarFile file) {
         Enumeration<JarEntry> entries = file.entries();
         if (!entries.hasMoreElements()) {
@@ -1900,21 +2388,100 @@ public class Oaktree {
         }
         for (JarEntry entry = entries.nextElement(); entries.hasMoreElements(); entry = entries.nextElement()) {
             if (entry.getName().endsWith(".class")) {
-                ClassReader reader;
+                byte[] bytes;
                 try {
                     InputStream is = file.getInputStream(entry);
-                    reader = new ClassReader(is);
+                    bytes = JavaInterop.readAllBytes(is);
                     is.close();
                 } catch (IOException e) {
                     e.printStackTrace();
                     return;
                 }
+                if (entry.getName().startsWith(VERSIONED_CLASSES_PREFIX)) {
+                    versionedClasses.putIfAbsent(entry.getName(), bytes);
+                    continue;
+                }
+                registerClass(readClass(bytes, false));
+            }
+        }
+    }
+
+    /**
+     * Indexes the classes of several jars or directories at once. The sources are read and parsed concurrently,
+     * however the classes are registered in the order of the sources afterwards, so the outcome does not depend
+     * on which source finished reading first.
+     *
+     * <p>The classes of the inputs are indexed like the classes of {@link #index(JarFile)}. The classes of the libraries
+     * only contribute to the hierarchy, so they are neither transformed nor written and never replace classes of the
+     * inputs that have the same name. Indexing the libraries this way spares resolving them through the classloader
+     * of the {@link ClassWrapperPool}. Should several inputs contain a class with the same name, only the class of the
+     * first input is indexed. Versioned classes of multi-release jars are ignored for libraries, while those of the
+     * inputs are copied as-is like it is done by {@link #index(JarFile)}.
+     *
+     * @param inputs The jars or directories whose classes should be deobfuscated
+     * @param libraries The jars or directories of the libraries the inputs depend on
+     * @throws IOException If a source could not be read
+     */
+    public void index(@NotNull List<Path> inputs, @NotNull List<Path> libraries) throws IOException {
+        List<Path> sources = new ArrayList<>(inputs);
+        sources.addAll(libraries);
+        if (sources.isEmpty()) {
+            return;
+        }
+        // Reading mostly waits for I/O, so a dedicated pool is used instead of the class pool
+        ExecutorService readers = Executors.newFixedThreadPool(Math.min(sources.size(), Runtime.getRuntime().availableProcessors()));
+        try {
+            List<CompletableFuture<List<IndexedClass>>> results = new ArrayList<>();
+            for (int i = 0; i < sources.size(); i++) {
+                Path source = sources.get(i);
+                boolean external = i >= inputs.size();
+                results.add(CompletableFuture.supplyAsync(() -> readClasses(source, external), readers));
+            }
+            // Several inputs may shade the same class, in which case the class of the first input is kept
+            Set<String> inputClasses = new HashSet<>();
+            for (int i = 0; i < results.size(); i++) {
+                for (IndexedClass indexed : results.get(i).join()) {
+                    if (!indexed.external && indexed.versionedEntry == null && !inputClasses.add(indexed.node.name)) {
+                        System.err.println("Skipping class " + indexed.node.name + " of " + sources.get(i) + " as it was already indexed from another input.");
+                        continue;
+                    }
+                    registerClass(indexed);
+                }
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        } finally {
+            readers.shutdownNow();
+        }
+    }
+
+    /**
+     * Indexes the headers of all classes of a jar, that is the classes without their code, so the hierarchy is known.
+     * The headers are registered, but are not transformed by any pass.
+     *
+     * @param file The jar
+     * @return The headers of the classes in the order in which they were indexed
+     * @throws IOException If the jar could not be read
+     */
+    @NotNull
+    List<ClassNode> indexHeaders(@NotNull JarFile file) throws IOException {
+        List<ClassNode> headers = new ArrayList<>();
+        for (JarEntry entry : Collections.list(file.entries())) {
+            // Versioned classes would shadow the hierarchy of the unversioned classes
+            if (!entry.getName().endsWith(".class") || entry.getName().startsWith(VERSIONED_CLASSES_PREFIX)) {
+                continue;
+            }
+            try (InputStream is = file.getInputStream(entry)) {
                 ClassNode node = new ClassNode();
-                reader.accept(node, 0);
-                this.nodes.add(node);
-                this.nameToNode.put(node.name, node);
+                newClassReader(JavaInterop.readAllBytes(is)).accept(node, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+                registry.put(node);
+                headers.add(node);
             }
         }
+        return headers;
     }
 
     /**
@@ -1923,8 +2490,7 @@ public class Oaktree {
     public void inferConstructorGenerics() {
 
         // Index constructors
-        Map<MethodReference, List<String>> constructors = new HashMap<>();
-        for (ClassNode node : nodes) {
+        List<MethodReference> constructorReferences = collectProposals((node, out) -> {
             for (MethodNode method : node.methods) {
                 if (method.signature != null) {
                     continue; // No point in guessing the signature if we already know it
@@ -1939,15 +2505,19 @@ public class Oaktree {
                 while (descString.hasNext()) {
                     if (ITERABLES.contains(descString.nextType())) {
                         // The constructor has at least 1 generic-able argument
-                        constructors.put(new MethodReference(node.name, method), null);
+                        out.add(new MethodReference(node.name, method));
                         break;
                     }
                 }
             }
+        });
+        Map<MethodReference, List<String>> constructors = new HashMap<>();
+        for (MethodReference constructor : constructorReferences) {
+            constructors.put(constructor, null);
         }
 
         // Index references to constructors
-        for (ClassNode node : nodes) {
+        List<Map.Entry<MethodReference, List<String>>> references = collectProposals((node, out) -> {
             for (MethodNode method : node.methods) {
                 if (method.instructions == null) {
                     continue; // Abstract method with no body
@@ -2019,7 +2589,7 @@ public class Oaktree {
                                 }
 
                                 // Fetch generic signature of the field
-                                ClassNode ownerNode = nameToNode.get(getstaticInsn.owner);
+                                ClassNode ownerNode = registry.get(getstaticInsn.owner);
                                 if (ownerNode == null) {
                                     // Class does not exist for some reason
                                     ourArgs.add("");
@@ -2049,38 +2619,42 @@ public class Oaktree {
                         }
 
                         if (!invalidate) {
-                            List<String> old = constructors.get(ctorReference);
-                            if (old != null) {
-                                // Merge the two lists
-                                if (old.size() != ourArgs.size()) {
-                                    throw new IllegalStateException("Argument sizes do not match.");
-                                }
-                                for (int i = 0; i < old.size(); i++) {
-                                    String oldElement = old.get(i);
-                                    String newElement = ourArgs.get(i);
-                                    if (oldElement == null || newElement == null) {
-                                        ourArgs.set(i, null);
-                                    } else if (newElement.isEmpty()) {
-                                        ourArgs.set(i, oldElement);
-                                    } else if (oldElement.isEmpty()) {
-                                        // Don't do anything
-                                    } else if (!oldElement.equals(newElement)) {
-                                        ourArgs.set(i, null);
-                                    }
-                                }
-                            }
-                            constructors.put(ctorReference, ourArgs);
+                            out.add(new AbstractMap.SimpleImmutableEntry<>(ctorReference, Collections.unmodifiableList(ourArgs)));
                         }
                     }
                     insn = insn.getNext();
                 }
             }
+        });
+        for (Map.Entry<MethodReference, List<String>> reference : references) {
+            MethodReference ctorReference = reference.getKey();
+            List<String> ourArgs = new ArrayList<>(reference.getValue());
+            List<String> old = constructors.get(ctorReference);
+            if (old != null) {
+                // Merge the two lists
+                if (old.size() != ourArgs.size()) {
+                    throw new IllegalStateException("Argument sizes do not match.");
+                }
+                for (int i = 0; i < old.size(); i++) {
+                    String oldElement = old.get(i);
+                    String newElement = ourArgs.get(i);
+                    if (oldElement == null || newElement == null) {
+                        ourArgs.set(i, null);
+                    } else if (newElement.isEmpty()) {
+                        ourArgs.set(i, oldElement);
+                    } else if (oldElement.isEmpty()) {
+                        // Don't do anything
+                    } else if (!oldElement.equals(newElement)) {
+                        ourArgs.set(i, null);
+                    }
+                }
+            }
+            constructors.put(ctorReference, ourArgs);
         }
 
-        Map<FieldReference, String> fieldSignatures = new HashMap<>();
-        // Apply generic signatures on the constructor
-        StringBuilder signatureAssembler = new StringBuilder();
-        for (ClassNode node : nodes) {
+        // Propose generic signatures for the constructors
+        List<ConstructorSignatureProposal> signatureProposals = collectProposals((node, out) -> {
+            StringBuilder signatureAssembler = new StringBuilder();
             for (MethodNode method : node.methods) {
                 if (method.signature != null) {
                     continue; // reduce memory allocation
@@ -2121,7 +2695,8 @@ public class Oaktree {
                 }
                 signatureAssembler.append(')');
                 signatureAssembler.append('V');
-                method.signature = signatureAssembler.toString();
+                String signature = signatureAssembler.toString();
+                List<Map.Entry<FieldReference, String>> fieldProposals = new ArrayList<>();
 
                 boolean[] damagedParams = new boolean[argumentSignatures.size() + 1];
                 int[] localToParam = new int[paramIndex];
@@ -2158,18 +2733,7 @@ public class Oaktree {
                         if (loadedParameter < damagedParams.length && loadedParameter != -1 && !damagedParams[loadedParameter]) {
                             FieldInsnNode fieldInsn = (FieldInsnNode) insn;
                             if (fieldInsn.getOpcode() == Opcodes.PUTFIELD || fieldInsn.getOpcode() == Opcodes.PUTSTATIC) {
-                                FieldReference fref = new FieldReference(fieldInsn);
-                                if (fieldSignatures.containsKey(fref)) {
-                                    String oldProposal = fieldSignatures.get(fref);
-                                    String suggested = argumentSignatures.get(loadedParameter - 1);
-                                    if (oldProposal != null && suggested != null && !suggested.isEmpty()) {
-                                        if (!oldProposal.equals(suggested)) {
-                                            fieldSignatures.put(fref, null);
-                                        }
-                                    }
-                                } else {
-                                    fieldSignatures.put(fref, argumentSignatures.get(loadedParameter - 1));
-                                }
+                                fieldProposals.add(new AbstractMap.SimpleImmutableEntry<>(new FieldReference(fieldInsn), argumentSignatures.get(loadedParameter - 1)));
                             }
                         }
                     } else {
@@ -2177,9 +2741,32 @@ public class Oaktree {
                     }
                     insn = insn.getNext();
                 }
+                out.add(new ConstructorSignatureProposal(node, method, signature, fieldProposals));
+            }
+        });
+
+        // Apply generic signatures on the constructor
+        Map<FieldReference, String> fieldSignatures = new HashMap<>();
+        for (ConstructorSignatureProposal proposal : signatureProposals) {
+            proposal.method.signature = proposal.signature;
+            markModified(proposal.node);
+            for (Map.Entry<FieldReference, String> fieldProposal : proposal.fieldSignatures) {
+                FieldReference fref = fieldProposal.getKey();
+                String suggested = fieldProposal.getValue();
+                if (fieldSignatures.containsKey(fref)) {
+                    String oldProposal = fieldSignatures.get(fref);
+                    if (oldProposal != null && suggested != null && !suggested.isEmpty()) {
+                        if (!oldProposal.equals(suggested)) {
+                            fieldSignatures.put(fref, null);
+                        }
+                    }
+                } else {
+                    fieldSignatures.put(fref, suggested);
+                }
             }
         }
 
+        StringBuilder signatureAssembler = new StringBuilder();
         for (ClassNode node : nodes) {
             for (FieldNode field : node.fields) {
                 if (field.signature != null) {
@@ -2191,6 +2778,7 @@ public class Oaktree {
                     signatureAssembler.setLength(0);
                     signatureAssembler.append(field.desc.substring(0, field.desc.length() - 1)).append(suggested).append(';');
                     field.signature = signatureAssembler.toString();
+                    markModified(node);
                 }
             }
         }
@@ -2206,7 +2794,9 @@ public class Oaktree {
 
         // Infer generics of getters
         Map<FieldReference, List<MethodNode>> getterRefs = new HashMap<>();
+        Map<MethodNode, ClassNode> getterOwners = new IdentityHashMap<>();
         for (ClassNode classNode : nodes) {
+            acquireMethodBodies(classNode);
             for (MethodNode method : classNode.methods) {
                 if (method.signature != null) {
                     continue; // We already know the signature
@@ -2245,7 +2835,9 @@ public class Oaktree {
                     getterRefs.put(new FieldReference((FieldInsnNode) insn), old);
                 }
                 old.add(method);
+                getterOwners.put(method, classNode);
             }
+            releaseMethodBodies(classNode, false);
         }
 
         // Set the signatures
@@ -2257,6 +2849,7 @@ public class Oaktree {
                         for (MethodNode reference : references) {
                             // FIXME Casts?
                             reference.signature = "()" + field.signature;
+                            markModified(getterOwners.get(reference));
                             addedMethodSignatures++;
                         }
                     }
@@ -2270,18 +2863,21 @@ public class Oaktree {
     /**
      * Invalidate internal {@link ClassNode} {@link ClassNode#name name} caches.
      * Should be invoked when for example class nodes are remapped, at which point
-     * internal caches are no longer valid.
+     * internal caches are no longer valid. Classes renamed through a remapper sharing the
+     * {@link #getClassNodeRegistry() registry} of this instance are already known to the registry.
      */
     public void invalidateNameCaches() {
-        nameToNode.clear();
-        for (ClassNode node : nodes) {
-            nameToNode.put(node.name, node);
-        }
+        // Remapping may have introduced symbols that are not known to the summaries
+        summaries.clear();
+        modifiedClasses.addAll(nodes);
+        // Also refreshes the registry
         wrapperPool.invalidateNameCaches();
     }
 
     public void lambdaStreamGenericSignatureGuessing(final Map<FieldReference, ClassWrapper> fields, final Map<MethodReference, ClassWrapper> methods) {
-        for (ClassNode node : nodes) {
+        List<ClassNode> candidates = getCandidates("stream", "()Ljava/util/stream/Stream;");
+        acquireMethodBodies(candidates);
+        for (ClassNode node : candidates) {
             for (MethodNode method : node.methods) {
                 if (method.instructions == null) {
                     continue;
@@ -2352,18 +2948,495 @@ public class Oaktree {
                 }
             }
         }
+        releaseMethodBodies(candidates, false);
     }
 
-    public void write(OutputStream out) throws IOException {
+    /**
+     * Marks a class as modified, so that it is serialized again when it is written instead of being copied
+     * from its original class file. Needs to be called by every pass for every class it modifies.
+     *
+     * @param node The modified class
+     */
+    private void markModified(@NotNull ClassNode node) {
+        modifiedClasses.add(node);
+    }
+
+    /**
+     * Creates the reader that is used to parse the given class, which {@link #setSymbolInterning(boolean) interns}
+     * the symbols of the class if enabled.
+     *
+     * @param bytes The bytes of the class
+     * @return The reader
+     */
+    @NotNull
+    private ClassReader newClassReader(byte @NotNull[] bytes) {
+        Map<String, String> symbols = this.symbols;
+        return symbols == null ? new ClassReader(bytes) : new InterningClassReader(bytes, symbols);
+    }
+
+    /**
+     * Proposes the inner class node a class should have based on its name and its super class.
+     * Read-only counterpart of the second sweep of {@link #fixInnerClasses()}.
+     *
+     * @param node The class to propose the inner class node for
+     * @param enums The internal names of all enums
+     * @return The proposal, or null if the class does not look like an inner class or already has an inner class node
+     */
+    @Nullable
+    private InnerClassProposal proposeInnerClass(@NotNull ClassNode node, @NotNull Set<String> enums) {
+        // Sweep enum members
+        if (enums.contains(node.superName)) {
+            // Child of (abstract) enum
+            boolean skip = false;
+            for (InnerClassNode innerNode : node.innerClasses) {
+                if (node.name.equals(innerNode.name)) {
+                    skip = true;
+                    break;
+                }
+            }
+            if (!skip) {
+                // Apply fixup
+                // We are using 16400 for access, but are there times where this is not wanted?
+                // 16400 = ACC_FINAL | ACC_ENUM
+                InnerClassNode innerNode = new InnerClassNode(node.name, null, null, 16400);
+                return new InnerClassProposal(node, innerNode, node.superName, node.superName, false);
+            }
+        } else if (node.name.contains("$")) {
+            // Partially unobfuscated inner class.
+
+            // This operation cannot be performed during the first sweep
+            boolean skip = false;
+            for (InnerClassNode innernode : node.innerClasses) {
+                if (innernode.name.equals(node.name)) {
+                    skip = true;
+                    break;
+                }
+            }
+            if (!skip) {
+                int lastSeperator = node.name.lastIndexOf('$');
+                String outerNode = node.name.substring(0, lastSeperator++);
+                String innerMost = node.name.substring(lastSeperator);
+                InnerClassNode innerClassNode;
+                String outerClass = null;
+                if (innerMost.matches("^[0-9]+$")) {
+                    // Anonymous class
+                    // We know that ACC_SUPER is invalid for inner classes, so we remove that flag
+                    innerClassNode = new InnerClassNode(node.name, null, null, node.access & ~Opcodes.ACC_SUPER);
+                    outerClass = outerNode;
+                } else {
+                    // We need to check for static inner classes.
+                    // We already know that anonymous classes can never be static classes by definition,
+                    // So we can skip that step for anonymous classes
+                    boolean staticInnerClass = false;
+                    boolean implicitStatic = false;
+                    // Interfaces, Enums and Records are implicitly static
+                    if (!staticInnerClass) {
+                        staticInnerClass = (node.access & Opcodes.ACC_INTERFACE) != 0
+                                || (node.access & Opcodes.ACC_RECORD) != 0
+                                || ((node.access & Opcodes.ACC_ENUM) != 0 && node.superName.equals("java/lang/Enum"));
+                        implicitStatic = staticInnerClass;
+                    }
+                    // Member classes of interfaces are implicitly static
+                    if (!staticInnerClass) {
+                        ClassNode outerClassNode = registry.get(outerNode);
+                        staticInnerClass = outerClassNode != null && (outerClassNode.access & Opcodes.ACC_INTERFACE) != 0;
+                        implicitStatic = staticInnerClass;
+                    }
+                    // The constructor of non-static inner classes must take in an instance of the outer class an
+                    // argument
+                    if (!staticInnerClass) {
+                        boolean staticConstructor = false;
+                        for (MethodNode method : node.methods) {
+                            if (method.name.equals("<init>")) {
+                                int outernodeLen = outerNode.length();
+                                if (outernodeLen + 2 > method.desc.length()) {
+                                    // The reference to the outer class cannot be passed in via a parameter as there
+                                    // i no space for it in the descriptor, so the class has to be static
+                                    staticConstructor = true;
+                                    break;
+                                }
+                                String arg = method.desc.substring(2, outernodeLen + 2);
+                                if (!arg.equals(outerNode)) {
+                                    // Has to be static. The other parameters are irrelevant as the outer class
+                                    // reference is always at first place.
+                                    staticConstructor = true;
+                                    break;
+                                }
+                            }
+                        }
+                        if (staticConstructor) {
+                            staticInnerClass = true;
+                            implicitStatic = false;
+                        }
+                    }
+                    if (staticInnerClass && !implicitStatic) {
+                        for (FieldNode field : node.fields) {
+                            if ((field.access & Opcodes.ACC_FINAL) != 0 && field.name.startsWith("this$")) {
+                                System.err.println("Falsely identified " + node.name + " as static inner class.");
+                                staticInnerClass = false;
+                            }
+                        }
+                    }
+
+                    int innerClassAccess = node.access & ~Opcodes.ACC_SUPER; // Super is not allowed for inner class nodes
+
+                    // Don't fall to the temptation of adding ACC_STATIC to the class node.
+                    // According the the ASM verifier it is not legal to do so. However the JVM does not seem care
+                    // Nonetheless, we are not adding it the access flags of the class, though we will add it in the inner
+                    // class node
+                    if (!staticInnerClass) {
+                        // Beware of https://docs.oracle.com/javase/specs/jls/se16/html/jls-8.html#jls-8.1.3
+                        outerClass = outerNode;
+                    } else {
+                        innerClassAccess |= Opcodes.ACC_STATIC;
+                    }
+                    innerClassNode = new InnerClassNode(node.name, outerNode, innerMost, innerClassAccess);
+                }
+                return new InnerClassProposal(node, innerClassNode, outerNode, outerClass, true);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses a class that is about to be indexed. Only parses the header of the class if the class only contributes
+     * to the hierarchy. Does not modify the state of this instance, so it may be invoked concurrently.
+     *
+     * @param bytes The bytes of the class
+     * @param external Whether the class stems from a library
+     * @return The parsed class, which still needs to be {@link #registerClass(IndexedClass) registered}
+     */
+    @NotNull
+    private IndexedClass readClass(@NotNull byte[] bytes, boolean external) {
+        ClassReader reader = newClassReader(bytes);
+        ClassNode node = new ClassNode();
+        if (external || !scope.test(reader.getClassName())) {
+            // Library classes only contribute to the hierarchy, so their code is not needed
+            reader.accept(node, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+            return new IndexedClass(node, bytes, null, external);
+        }
+        reader.accept(node, this.methodBodies != null ? ClassReader.SKIP_CODE : 0);
+        return new IndexedClass(node, bytes, ConstantPoolSummary.of(reader), false);
+    }
+
+    /**
+     * Reads and parses all classes of a jar or a directory. Used by {@link #index(List, List)}.
+     *
+     * @param source The jar or directory
+     * @param external Whether the source is a library
+     * @return The parsed classes in the order in which they are stored in the jar or, for directories, sorted by their path
+     */
+    @NotNull
+    private List<IndexedClass> readClasses(@NotNull Path source, boolean external) {
+        List<IndexedClass> classes = new ArrayList<>();
+        try {
+            if (Files.isDirectory(source)) {
+                List<Path> files;
+                try (Stream<Path> stream = Files.walk(source)) {
+                    files = stream.filter(file -> file.toString().endsWith(".class") && Files.isRegularFile(file)).sorted().collect(Collectors.toList());
+                }
+                for (Path file : files) {
+                    String name = source.relativize(file).toString().replace(File.separatorChar, '/');
+                    readClass(classes, name, Files.readAllBytes(file), external);
+                }
+                return classes;
+            }
+            try (JarFile file = new JarFile(source.toFile())) {
+                for (JarEntry entry : Collections.list(file.entries())) {
+                    String name = entry.getName();
+                    if (!name.endsWith(".class")) {
+                        continue;
+                    }
+                    try (InputStream is = file.getInputStream(entry)) {
+                        readClass(classes, name, JavaInterop.readAllBytes(is), external);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read " + source, e);
+        }
+        return classes;
+    }
+
+    /**
+     * Parses a class of a jar or a directory that is read by {@link #readClasses(Path, boolean)}, unless the class is
+     * skipped. Versioned classes of multi-release jars are only retained for inputs, in which case they are not parsed.
+     *
+     * @param classes The list to add the parsed class to
+     * @param name The name of the jar entry or the path of the class relative to the directory
+     * @param bytes The bytes of the class
+     * @param external Whether the class stems from a library
+     */
+    private void readClass(@NotNull List<IndexedClass> classes, @NotNull String name, @NotNull byte[] bytes, boolean external) {
+        // Module descriptors and versioned classes do not contribute to the hierarchy of libraries
+        if (external && (name.startsWith("META-INF/") || name.endsWith("module-info.class"))) {
+            return;
+        }
+        if (name.startsWith(VERSIONED_CLASSES_PREFIX)) {
+            // Versioned classes would shadow the unversioned classes, so they are copied as-is
+            IndexedClass versioned = new IndexedClass(new ClassNode(), bytes, null, false);
+            versioned.versionedEntry = name;
+            classes.add(versioned);
+            return;
+        }
+        classes.add(readClass(bytes, external));
+    }
+
+    /**
+     * Registers a class that was parsed by {@link #readClass(byte[], boolean)}.
+     *
+     * @param indexed The class
+     */
+    private void registerClass(@NotNull IndexedClass indexed) {
+        if (indexed.versionedEntry != null) {
+            this.versionedClasses.putIfAbsent(indexed.versionedEntry, indexed.bytes);
+            return;
+        }
+        ClassNode node = indexed.node;
+        ConstantPoolSummary summary = indexed.summary;
+        if (indexed.external) {
+            this.registry.putIfAbsent(node);
+            return;
+        }
+        if (summary == null) {
+            this.libraryClasses.put(node.name, indexed.bytes);
+            this.registry.put(node);
+            return;
+        }
+        if (this.methodBodies != null) {
+            this.methodBodies.register(node, indexed.bytes);
+        }
+        this.nodes.add(node);
+        this.registry.put(node);
+        this.originalBytes.put(node, indexed.bytes);
+        this.summaries.put(node, summary);
+    }
+
+    /**
+     * Releases the method bodies previously materialized by {@link #acquireMethodBodies(List)}.
+     *
+     * @param classes The classes that were passed to {@link #acquireMethodBodies(List)}
+     * @param modified Whether the pass may have modified the method bodies
+     */
+    private void releaseMethodBodies(@NotNull List<ClassNode> classes, boolean modified) {
+        MethodBodyStore methodBodies = this.methodBodies;
+        if (methodBodies != null) {
+            for (ClassNode node : classes) {
+                methodBodies.release(node, modified);
+            }
+        }
+    }
+
+    /**
+     * Releases the method bodies previously materialized by {@link #acquireMethodBodies(ClassNode)}.
+     *
+     * @param node The class that was passed to {@link #acquireMethodBodies(ClassNode)}
+     * @param modified Whether the pass may have modified the method bodies
+     */
+    private void releaseMethodBodies(@NotNull ClassNode node, boolean modified) {
+        MethodBodyStore methodBodies = this.methodBodies;
+        if (methodBodies != null) {
+            methodBodies.release(node, modified);
+        }
+    }
+
+    /**
+     * Sets the pool on which passes that only modify the class they are visiting (such as {@link #fixParameterLVT()}
+     * or {@link #fixComparators(boolean)}) process the classes in parallel. Defaults to the common pool.
+     *
+     * @param classPool The pool to use
+     */
+    public void setClassPool(@NotNull ForkJoinPool classPool) {
+        this.classPool = classPool;
+    }
+
+    /**
+     * Sets whether the method bodies of the classes within the scope should be loaded lazily. If enabled, classes are
+     * indexed without their code and the bodies are only materialized while a pass needs them. Afterwards they are
+     * stripped again, though they are retained through a soft reference until the garbage collector requires the memory.
+     * This reduces the memory footprint of large jars at the cost of reparsing classes.
+     * Must be set before {@link #index(JarFile) indexing} classes. Defaults to false.
+     *
+     * <p>{@link #getClassNodesDirectly()} permanently materializes all method bodies, as the returned nodes
+     * may be used for anything.
+     *
+     * @param lazy True to load method bodies lazily
+     */
+    public void setLazyMethodBodies(boolean lazy) {
+        this.methodBodies = lazy ? new MethodBodyStore(this::newClassReader) : null;
+    }
+
+    /**
+     * Sets the scope of this instance. Classes outside of the scope (such as shaded libraries) are not
+     * transformed by any pass, instead they only contribute hierarchy information and are written as-is.
+     * The scope is applied when {@link #index(JarFile) indexing} classes, so it must be set beforehand.
+     * Defaults to {@link ClassFilter#ALL}.
+     *
+     * @param scope A predicate that returns true for the internal names of the classes that are within the scope
+     */
+    public void setScope(@NotNull Predicate<String> scope) {
+        this.scope = scope;
+    }
+
+    /**
+     * Sets whether the symbols of classes (that is their names, the names and descriptors of their members,
+     * the owners, names and descriptors referenced by instructions, their signatures and their string constants)
+     * should be interned when parsing classes. If enabled, equal symbols share a single string instance
+     * across all classes read by this instance, which reduces the retained heap of large jars considerably.
+     * Must be set before {@link #index(JarFile) indexing} classes. Defaults to false.
+     *
+     * @param intern True to intern symbols
+     */
+    public void setSymbolInterning(boolean intern) {
+        this.symbols = intern ? new ConcurrentHashMap<>() : null;
+    }
+
+    /**
+     * Applies the passes of {@link #transformStreaming(JarFile, OutputStream, int)} to a single class, which allows
+     * classes to be transformed one at a time as they are needed. The headers of all classes must have been
+     * {@link #indexHeaders(JarFile) indexed} beforehand and the class is not retained afterwards.
+     * The passes are applied on the calling thread rather than the {@link #setClassPool(ForkJoinPool) class pool},
+     * as a single class cannot be processed in parallel anyways. Must not be invoked concurrently.
+     *
+     * @param node The class
+     * @param reader The reader the class was read from
+     * @return True if the class was modified, false if it is unmodified or outside of the scope
+     */
+    boolean transformClass(@NotNull ClassNode node, @NotNull ClassReader reader) {
+        if (!scope.test(node.name)) {
+            return false;
+        }
+        nodes.add(node);
+        summaries.put(node, ConstantPoolSummary.of(reader));
+        sequential = true;
+        try {
+            applyClassLocalPasses();
+        } finally {
+            sequential = false;
+            nodes.clear();
+            summaries.clear();
+        }
+        return modifiedClasses.remove(node);
+    }
+
+    /**
+     * Applies all passes that only modify the class they are visiting ({@link #definalizeAnonymousClasses()},
+     * {@link #fixParameterLVT()}, {@link #fixForeachOnArray()} and {@link #fixComparators(boolean)}) to a jar
+     * without holding all classes in memory at once.
+     *
+     * <p>First the headers of all classes are indexed so the hierarchy is known. Afterwards the entries of the jar are
+     * read, transformed and written in batches of the given size. Reading, transforming and writing happen concurrently,
+     * but as at most {@value #STREAMING_BATCHES_IN_FLIGHT} batches are held in memory at once, reading blocks
+     * should the later stages fall behind. As such the heap usage is governed by the batch size rather than the size of the jar.
+     * Entries are written in the order they are read in, resources and classes outside of the {@link #setScope(Predicate) scope}
+     * are copied as-is.
+     *
+     * <p>This instance must not have indexed any classes beforehand and only retains the headers of the classes afterwards.
+     *
+     * @param file The jar to transform
+     * @param out The stream to write the transformed jar to. It is not closed by this method.
+     * @param batchSize The amount of jar entries per batch
+     * @throws IOException If an I/O error occurred while reading the jar or writing to the stream
+     */
+    public void transformStreaming(@NotNull JarFile file, @NotNull OutputStream out, int batchSize) throws IOException {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("The batch size must be positive, but it is " + batchSize);
+        }
+        if (!nodes.isEmpty() || !registry.isEmpty()) {
+            throw new IllegalStateException("Streaming requires an instance that has not indexed any classes.");
+        }
+        List<JarEntry> entries = Collections.list(file.entries());
+        indexHeaders(file);
+
         JarOutputStream jarOut = new JarOutputStream(out);
-        // TODO: Write nodes in alphabetic order to preserve consistency
-        for (ClassNode node : nodes) {
-            ClassWriter writer = new ClassWriter(0);
-            node.accept(writer);
-            jarOut.putNextEntry(new ZipEntry(node.name + ".class"));
-            jarOut.write(writer.toByteArray());
-            jarOut.closeEntry();
+        ExecutorService transformer = Executors.newSingleThreadExecutor();
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        Semaphore inFlight = new Semaphore(STREAMING_BATCHES_IN_FLIGHT);
+        CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+        try {
+            for (int start = 0; start < entries.size() && !written.isCompletedExceptionally(); start += batchSize) {
+                inFlight.acquire();
+                List<StreamedEntry> batch = new ArrayList<>(batchSize);
+                for (JarEntry entry : entries.subList(start, Math.min(start + batchSize, entries.size()))) {
+                    try (InputStream is = file.getInputStream(entry)) {
+                        batch.add(new StreamedEntry(entry.getName(), JavaInterop.readAllBytes(is)));
+                    }
+                }
+                CompletableFuture<List<StreamedEntry>> transformed = CompletableFuture.supplyAsync(() -> transformStreamedBatch(batch), transformer);
+                written = written.thenCombineAsync(transformed, (ignored, result) -> {
+                    try {
+                        for (StreamedEntry entry : result) {
+                            jarOut.putNextEntry(new ZipEntry(entry.name));
+                            jarOut.write(entry.bytes);
+                            jarOut.closeEntry();
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return (Void) null;
+                }, writer);
+                written.whenComplete((ignored, t) -> inFlight.release());
+            }
+            written.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a batch to be written");
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        } finally {
+            transformer.shutdown();
+            writer.shutdown();
+        }
+        jarOut.finish();
+    }
+
+    /**
+     * Transforms a single batch of {@link #transformStreaming(JarFile, OutputStream, int)}.
+     * Invoked on a single thread, one batch after another.
+     *
+     * @param batch The entries of the batch
+     * @return The batch, with the bytes of the modified classes replaced by their transformed bytes
+     */
+    @NotNull
+    private List<StreamedEntry> transformStreamedBatch(@NotNull List<StreamedEntry> batch) {
+        for (StreamedEntry entry : batch) {
+            if (!entry.name.endsWith(".class")) {
+                continue;
+            }
+            ClassReader reader = newClassReader(entry.bytes);
+            if (!scope.test(reader.getClassName())) {
+                continue;
+            }
+            ClassNode node = new ClassNode();
+            reader.accept(node, 0);
+            entry.node = node;
+            nodes.add(node);
+            summaries.put(node, ConstantPoolSummary.of(reader));
+        }
+        try {
+            applyClassLocalPasses();
+        } finally {
+            nodes.clear();
+            summaries.clear();
+        }
+        for (StreamedEntry entry : batch) {
+            ClassNode node = entry.node;
+            if (node != null && modifiedClasses.remove(node)) {
+                ClassWriter writer = new ClassWriter(0);
+                node.accept(writer);
+                entry.bytes = writer.toByteArray();
+            }
+            entry.node = null;
         }
+        return batch;
+    }
+
+    public void write(OutputStream out) throws IOException {
+        JarOutputStream jarOut = new JarOutputStream(out);
+        writeClasses(jarOut);
         jarOut.close();
     }
 
@@ -2382,14 +3455,7 @@ public class Oaktree {
             throw new IOException("The path (" + resources.toString() + ") specified by \"resources\" does not exist.");
         }
         JarOutputStream jarOut = new JarOutputStream(out);
-        // TODO: Write nodes in alphabetic order to preserve consistency
-        for (ClassNode node : nodes) {
-            ClassWriter writer = new ClassWriter(0);
-            node.accept(writer);
-            jarOut.putNextEntry(new ZipEntry(node.name + ".class"));
-            jarOut.write(writer.toByteArray());
-            jarOut.closeEntry();
-        }
+        writeClasses(jarOut);
         try (ZipInputStream zipIn = new ZipInputStream(Files.newInputStream(resources))) {
             for (ZipEntry entry = zipIn.getNextEntry(); entry != null; entry = zipIn.getNextEntry()) {
                 if (entry.getName().endsWith(".class")) {
@@ -2430,4 +3496,44 @@ public class Oaktree {
         }
         jarOut.close();
     }
+
+    private void writeClasses(@NotNull JarOutputStream jarOut) throws IOException {
+        // TODO: Write nodes in alphabetic order to preserve consistency
+        MethodBodyStore methodBodies = this.methodBodies;
+        for (ClassNode node : nodes) {
+            byte[] original = originalBytes.get(node);
+            if (original != null && !modifiedClasses.contains(node)) {
+                // Untouched classes are copied as-is
+                jarOut.putNextEntry(new ZipEntry(node.name + ".class"));
+                jarOut.write(original);
+                jarOut.closeEntry();
+                continue;
+            }
+            ClassWriter writer = new ClassWriter(0);
+            if (methodBodies == null) {
+                node.accept(writer);
+            } else {
+                methodBodies.acquire(node);
+                try {
+                    node.accept(writer);
+                } finally {
+                    methodBodies.release(node, false);
+                }
+            }
+            jarOut.putNextEntry(new ZipEntry(node.name + ".class"));
+            jarOut.write(writer.toByteArray());
+            jarOut.closeEntry();
+        }
+        // Classes outside of the scope are written as-is
+        for (Map.Entry<String, byte[]> libraryClass : libraryClasses.entrySet()) {
+            jarOut.putNextEntry(new ZipEntry(libraryClass.getKey() + ".class"));
+            jarOut.write(libraryClass.getValue());
+            jarOut.closeEntry();
+        }
+        for (Map.Entry<String, byte[]> versionedClass : versionedClasses.entrySet()) {
+            jarOut.putNextEntry(new ZipEntry(versionedClass.getKey()));
+            jarOut.write(versionedClass.getValue());
+            jarOut.closeEntry();
+        }
+    }
 }
@@ -0,0 +1,324 @@
+package de.geolykt.starloader.deobf;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A long-running process that accepts the jobs of {@link Oaktree#main(String[])} over a local socket, so that
+ * repeated invocations do not need to pay for the startup and warm-up of a new JVM. The hierarchy of library classes
+ * (such as the classes of the JDK) is retained between jobs, so it only needs to be resolved once.
+ * Jobs are run concurrently on a shared executor.
+ *
+ * <p>The daemon only listens on the loopback interface. As jobs read and write files with the permissions of the
+ * daemon, clients are authenticated by a random token that is generated when the daemon starts. The token is written
+ * to a file that only the owner of the daemon can read, which defaults to ".oaktree/daemon-&lt;port&gt;.token" within
+ * the home directory and can be changed through the "oaktree.cli.daemonTokenFile" property. Connections that do not
+ * present the token are rejected. On file systems without POSIX permissions the file is restricted to its owner
+ * as far as the platform permits.
+ *
+ * <p>Jobs are submitted through {@link #submit(int, String[], Properties)}, which is what {@link Oaktree#main(String[])}
+ * does if the "oaktree.cli.daemonPort" property is set. A job consists of the arguments and the "oaktree.cli.*" options
+ * of the command line interface. Relative paths are resolved by the client.
+ */
+public final class OaktreeDaemon implements Closeable {
+
+    private static final String[] PATH_OPTIONS = {"cacheDir", "hierarchySnapshot", "mapFile", "previousJar", "previousMap"};
+    private static final int PROTOCOL_VERSION = 2;
+    // The time in milliseconds a client may take to send its job
+    private static final int REQUEST_TIMEOUT = 10_000;
+    private static final int TOKEN_LENGTH = 32;
+
+    /**
+     * Obtains the file the token of the daemon listening on the given port is stored in.
+     *
+     * @param port The port the daemon listens on
+     * @param properties The properties to read the "oaktree.cli.daemonTokenFile" option from
+     * @return The token file
+     */
+    @NotNull
+    static Path getTokenFile(int port, @NotNull Properties properties) {
+        String tokenFile = properties.getProperty("oaktree.cli.daemonTokenFile");
+        if (tokenFile != null) {
+            return Paths.get(tokenFile).toAbsolutePath();
+        }
+        return Paths.get(System.getProperty("user.home"), ".oaktree", "daemon-" + port + ".token");
+    }
+
+    /**
+     * Starts a daemon. The first argument is the port to listen on, which defaults to a free port.
+     * The second argument is the maximum amount of jobs that are run at the same time, which defaults to the
+     * amount of available processors. The token file is read from the "oaktree.cli.daemonTokenFile" system property.
+     *
+     * @param args The arguments
+     */
+    public static void main(String[] args) {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        int jobs = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        try (OaktreeDaemon daemon = new OaktreeDaemon(port, jobs, System.getProperties())) {
+            System.out.println("Listening for jobs on port " + daemon.getPort() + ", the token is stored in " + daemon.tokenFile);
+            daemon.run();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Submits a job to a daemon running on the local machine and waits for it to complete.
+     * The token of the daemon is read from its token file, see {@link #getTokenFile(int, Properties)}.
+     *
+     * @param port The port the daemon listens on
+     * @param args The arguments of the job, see {@link Oaktree#main(String[])}
+     * @param properties The properties to read the "oaktree.cli.*" options of the job from
+     * @return A message describing the outcome of the job
+     * @throws IOException If the token could not be read, the daemon could not be reached or the job failed
+     */
+    @NotNull
+    public static String submit(int port, @NotNull String[] args, @NotNull Properties properties) throws IOException {
+        Properties options = new Properties();
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith("oaktree.cli.") && !key.equals("oaktree.cli.daemonPort") && !key.equals("oaktree.cli.daemonTokenFile")) {
+                options.setProperty(key, properties.getProperty(key));
+            }
+        }
+        // The daemon has another working directory
+        for (String option : PATH_OPTIONS) {
+            String value = options.getProperty("oaktree.cli." + option);
+            if (value != null) {
+                options.setProperty("oaktree.cli." + option, Paths.get(value).toAbsolutePath().toString());
+            }
+        }
+        if (!options.containsKey("oaktree.cli.mapFile")) {
+            options.setProperty("oaktree.cli.mapFile", Paths.get("map.tiny").toAbsolutePath().toString());
+        }
+        byte[] token = parseToken(new String(Files.readAllBytes(getTokenFile(port, properties)), StandardCharsets.US_ASCII).trim());
+        String[] absoluteArgs = args.clone();
+        for (int i = 0; i < 2 && i < absoluteArgs.length; i++) {
+            absoluteArgs[i] = Paths.get(absoluteArgs[i]).toAbsolutePath().toString();
+        }
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeInt(PROTOCOL_VERSION);
+            out.write(token);
+            out.writeInt(absoluteArgs.length);
+            for (String arg : absoluteArgs) {
+                out.writeUTF(arg);
+            }
+            out.writeInt(options.size());
+            for (String key : options.stringPropertyNames()) {
+                out.writeUTF(key);
+                out.writeUTF(options.getProperty(key));
+            }
+            out.flush();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            boolean success = in.readBoolean();
+            String message = in.readUTF();
+            if (!success) {
+                throw new IOException("The daemon failed to run the job: " + message);
+            }
+            return message;
+        }
+    }
+
+    @NotNull
+    private static byte[] parseToken(@NotNull String hex) throws IOException {
+        if (hex.length() != TOKEN_LENGTH * 2) {
+            throw new IOException("Malformed daemon token");
+        }
+        byte[] token = new byte[TOKEN_LENGTH];
+        for (int i = 0; i < TOKEN_LENGTH; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high == -1 || low == -1) {
+                throw new IOException("Malformed daemon token");
+            }
+            token[i] = (byte) ((high << 4) | low);
+        }
+        return token;
+    }
+
+    @NotNull
+    private final ExecutorService executor;
+    // Retains the hierarchy of library classes between jobs
+    @NotNull
+    private final ClassWrapperPool libraryWrappers;
+    @NotNull
+    private final ServerSocket serverSocket;
+    private final byte @NotNull[] token = new byte[TOKEN_LENGTH];
+    @NotNull
+    private final Path tokenFile;
+
+    /**
+     * Constructor. Binds the socket of the daemon and writes the token file, however jobs are only accepted
+     * once {@link #run()} is called.
+     *
+     * @param port The port to listen on, or 0 to choose a free port
+     * @param jobs The maximum amount of jobs that are run at the same time
+     * @param properties The properties to read the "oaktree.cli.daemonTokenFile" option from
+     * @throws IOException If the socket could not be bound or the token file could not be written
+     */
+    public OaktreeDaemon(int port, int jobs, @NotNull Properties properties) throws IOException {
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        try {
+            this.tokenFile = getTokenFile(this.serverSocket.getLocalPort(), properties);
+            writeToken();
+        } catch (IOException | RuntimeException e) {
+            this.serverSocket.close();
+            throw e;
+        }
+        this.executor = Executors.newFixedThreadPool(jobs);
+        // Uses the same classloader as the pools of Oaktree instances created through the default constructor
+        ClassLoader loader = JavaInterop.newURLClassloader("Oaktree Daemon Library Classloader", new URL[0], Oaktree.class.getClassLoader());
+        this.libraryWrappers = new ClassWrapperPool(new ClassNodeRegistry(), loader);
+    }
+
+    /**
+     * Stops accepting jobs and deletes the token file. Jobs that are already running are completed.
+     *
+     * @throws IOException If the socket could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            this.serverSocket.close();
+            this.executor.shutdown();
+        } finally {
+            Files.deleteIfExists(this.tokenFile);
+        }
+    }
+
+    public int getPort() {
+        return this.serverSocket.getLocalPort();
+    }
+
+    private void handle(@NotNull Socket socket) {
+        long start = System.currentTimeMillis();
+        try (Socket connection = socket) {
+            connection.setSoTimeout(REQUEST_TIMEOUT);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+            int version = in.readInt();
+            if (version != PROTOCOL_VERSION) {
+                out.writeBoolean(false);
+                out.writeUTF("Unsupported protocol version " + version + ", expected " + PROTOCOL_VERSION);
+                out.flush();
+                return;
+            }
+            byte[] presentedToken = new byte[TOKEN_LENGTH];
+            in.readFully(presentedToken);
+            // Compared in constant time so the token cannot be guessed byte by byte
+            if (!MessageDigest.isEqual(presentedToken, this.token)) {
+                System.err.println("Rejected a connection from " + connection.getRemoteSocketAddress() + " as it did not present the token of the daemon.");
+                out.writeBoolean(false);
+                out.writeUTF("Invalid token");
+                out.flush();
+                return;
+            }
+            String[] args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = in.readUTF();
+            }
+            Properties properties = new Properties();
+            int optionCount = in.readInt();
+            for (int i = 0; i < optionCount; i++) {
+                properties.setProperty(in.readUTF(), in.readUTF());
+            }
+            boolean success;
+            String message;
+            if (args.length < 2) {
+                success = false;
+                message = "Not enough arguments. The first argument is the source jar, the second one the target jar.";
+            } else {
+                try {
+                    Oaktree.run(args, properties, this.libraryWrappers);
+                    success = true;
+                    message = "Finished processing " + args[0] + " in " + (System.currentTimeMillis() - start) + " ms.";
+                } catch (Exception e) {
+                    StringWriter stackTrace = new StringWriter();
+                    e.printStackTrace(new PrintWriter(stackTrace));
+                    success = false;
+                    message = stackTrace.toString();
+                }
+            }
+            out.writeBoolean(success);
+            // The length of strings written through writeUTF is limited
+            out.writeUTF(message.length() > 16_000 ? message.substring(0, 16_000) : message);
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Accepts jobs until the daemon is {@link #close() closed}.
+     *
+     * @throws IOException If an I/O error occurred while accepting a connection
+     */
+    public void run() throws IOException {
+        while (!this.serverSocket.isClosed()) {
+            Socket connection;
+            try {
+                connection = this.serverSocket.accept();
+            } catch (SocketException e) {
+                if (this.serverSocket.isClosed()) {
+                    return;
+                }
+                throw e;
+            }
+            this.executor.execute(() -> handle(connection));
+        }
+    }
+
+    private void writeToken() throws IOException {
+        new SecureRandom().nextBytes(this.token);
+        StringBuilder hex = new StringBuilder(TOKEN_LENGTH * 2);
+        for (byte b : this.token) {
+            hex.append(Character.forDigit((b >>> 4) & 0x0F, 16));
+            hex.append(Character.forDigit(b & 0x0F, 16));
+        }
+        Path parent = this.tokenFile.getParent();
+        // A stale file may have been created by another user, so it is never reused
+        Files.deleteIfExists(this.tokenFile);
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            if (parent != null && !Files.isDirectory(parent)) {
+                Files.createDirectories(parent, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            }
+            Files.createFile(this.tokenFile, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Files.createFile(this.tokenFile);
+            File file = this.tokenFile.toFile();
+            if (!(file.setReadable(false, false) && file.setReadable(true, true) && file.setWritable(false, false) && file.setWritable(true, true))) {
+                System.err.println("Unable to restrict the access to the daemon token file " + this.tokenFile + " to its owner.");
+            }
+        }
+        Files.write(this.tokenFile, hex.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,273 @@
+package de.geolykt.starloader.deobf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A declarative sequence of {@link Oaktree} passes. Every pass declares which parts of the class nodes
+ * it reads and which parts it writes. When the pipeline is run, a pass only waits for the earlier passes it
+ * conflicts with - that is passes that write something it reads or writes, or that read something it writes.
+ * All other passes are run concurrently on the supplied executor.
+ *
+ * <p>As passes are only ever reordered if they do not conflict, the result of running the pipeline is the same
+ * as the result of running all passes sequentially in the order in which they were added.
+ * The declarations are not verified, a pass that touches more than it declares may cause data races.
+ */
+public final class OaktreePipeline {
+
+    /**
+     * The parts of the class nodes (and auxiliary structures) that passes can read or write.
+     */
+    public enum Resource {
+
+        /**
+         * The access flags of classes.
+         */
+        CLASS_ACCESS,
+
+        /**
+         * The caches of the {@link ClassWrapperPool} used by the {@link Oaktree} instance, which are not thread-safe.
+         */
+        CLASS_WRAPPERS,
+
+        /**
+         * The InnerClasses and EnclosingMethod attributes of classes.
+         */
+        INNER_CLASSES,
+
+        /**
+         * The instruction lists of methods, including their labels.
+         */
+        INSTRUCTIONS,
+
+        /**
+         * The local variable tables and parameter lists of methods.
+         */
+        LOCAL_VARIABLES,
+
+        /**
+         * The access flags of fields and methods.
+         */
+        MEMBER_ACCESS,
+
+        /**
+         * The names of fields and methods, including the names used by instructions referencing them.
+         */
+        MEMBER_NAMES,
+
+        /**
+         * The generic signatures of classes, fields and methods.
+         */
+        SIGNATURES;
+    }
+
+    /**
+     * A single pass of the pipeline.
+     */
+    public static final class Pass {
+
+        @NotNull
+        private final Consumer<Oaktree> action;
+        @NotNull
+        private final String name;
+        @NotNull
+        private final Set<Resource> reads;
+        @NotNull
+        private final Set<Resource> writes;
+
+        private Pass(@NotNull String name, @NotNull Set<Resource> reads, @NotNull Set<Resource> writes, @NotNull Consumer<Oaktree> action) {
+            this.name = name;
+            this.reads = reads;
+            this.writes = writes;
+            this.action = action;
+        }
+
+        /**
+         * Checks whether this pass must not be run concurrently with another pass.
+         *
+         * @param other The other pass
+         * @return True if either pass writes something the other pass reads or writes
+         */
+        public boolean conflictsWith(@NotNull Pass other) {
+            for (Resource resource : this.writes) {
+                if (other.reads.contains(resource) || other.writes.contains(resource)) {
+                    return true;
+                }
+            }
+            for (Resource resource : other.writes) {
+                if (this.reads.contains(resource)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @NotNull
+        public String getName() {
+            return this.name;
+        }
+
+        @NotNull
+        public Set<Resource> getReads() {
+            return Collections.unmodifiableSet(this.reads);
+        }
+
+        @NotNull
+        public Set<Resource> getWrites() {
+            return Collections.unmodifiableSet(this.writes);
+        }
+    }
+
+    /**
+     * Creates the pipeline that is used by {@link Oaktree#main(String[])}.
+     *
+     * @return A new pipeline containing all default passes
+     */
+    @NotNull
+    public static OaktreePipeline createDefault() {
+        OaktreePipeline pipeline = new OaktreePipeline();
+        pipeline.addPass("definalizeAnonymousClasses",
+                EnumSet.noneOf(Resource.class),
+                EnumSet.of(Resource.CLASS_ACCESS),
+                Oaktree::definalizeAnonymousClasses);
+        pipeline.addPass("fixInnerClasses",
+                EnumSet.of(Resource.CLASS_ACCESS, Resource.MEMBER_ACCESS, Resource.MEMBER_NAMES),
+                EnumSet.of(Resource.INNER_CLASSES),
+                Oaktree::fixInnerClasses);
+        pipeline.addPass("fixParameterLVT",
+                EnumSet.of(Resource.MEMBER_ACCESS),
+                EnumSet.of(Resource.LOCAL_VARIABLES),
+                Oaktree::fixParameterLVT);
+        pipeline.addPass("guessFieldGenerics",
+                EnumSet.of(Resource.MEMBER_NAMES),
+                EnumSet.of(Resource.CLASS_WRAPPERS, Resource.INSTRUCTIONS, Resource.LOCAL_VARIABLES, Resource.SIGNATURES),
+                Oaktree::guessFieldGenerics);
+        pipeline.addPass("inferMethodGenerics",
+                EnumSet.of(Resource.INSTRUCTIONS, Resource.MEMBER_ACCESS, Resource.MEMBER_NAMES),
+                EnumSet.of(Resource.SIGNATURES),
+                Oaktree::inferMethodGenerics);
+        pipeline.addPass("inferConstructorGenerics",
+                EnumSet.of(Resource.INSTRUCTIONS, Resource.MEMBER_ACCESS, Resource.MEMBER_NAMES),
+                EnumSet.of(Resource.SIGNATURES),
+                Oaktree::inferConstructorGenerics);
+        pipeline.addPass("fixForeachOnArray",
+                EnumSet.noneOf(Resource.class),
+                EnumSet.of(Resource.INSTRUCTIONS, Resource.LOCAL_VARIABLES),
+                Oaktree::fixForeachOnArray);
+        pipeline.addPass("fixComparators",
+                EnumSet.noneOf(Resource.class),
+                EnumSet.of(Resource.INSTRUCTIONS, Resource.MEMBER_ACCESS, Resource.MEMBER_NAMES, Resource.SIGNATURES),
+                oaktree -> oaktree.fixComparators(true));
+        pipeline.addPass("guessAnonymousClasses",
+                EnumSet.of(Resource.CLASS_ACCESS, Resource.INNER_CLASSES, Resource.INSTRUCTIONS, Resource.MEMBER_ACCESS),
+                EnumSet.noneOf(Resource.class),
+                Oaktree::guessAnonymousClasses);
+        pipeline.addPass("fixSwitchMaps",
+                EnumSet.of(Resource.CLASS_ACCESS, Resource.INSTRUCTIONS),
+                EnumSet.of(Resource.INNER_CLASSES, Resource.MEMBER_NAMES),
+                Oaktree::fixSwitchMaps);
+        pipeline.addPass("applyInnerclasses",
+                EnumSet.of(Resource.INSTRUCTIONS),
+                EnumSet.of(Resource.INNER_CLASSES),
+                oaktree -> {
+                    long startStep = System.currentTimeMillis();
+                    oaktree.applyInnerclasses();
+                    System.out.println("Applied inner class nodes to referencing classes. (" + (System.currentTimeMillis() - startStep) + " ms)");
+                });
+        return pipeline;
+    }
+
+    @NotNull
+    private final List<Pass> passes = new ArrayList<>();
+
+    /**
+     * Appends a pass to the pipeline. The pass is run after all previously added passes it conflicts with.
+     *
+     * @param name The name of the pass, used in error messages
+     * @param reads The resources the pass reads, but does not modify
+     * @param writes The resources the pass modifies. A pass is implicitly assumed to read the resources it writes.
+     * @param action The pass itself
+     * @return This instance, for chaining
+     */
+    @NotNull
+    public OaktreePipeline addPass(@NotNull String name, @NotNull Set<Resource> reads, @NotNull Set<Resource> writes, @NotNull Consumer<Oaktree> action) {
+        Set<Resource> readSet = EnumSet.noneOf(Resource.class);
+        readSet.addAll(reads);
+        Set<Resource> writeSet = EnumSet.noneOf(Resource.class);
+        writeSet.addAll(writes);
+        this.passes.add(new Pass(name, readSet, writeSet, action));
+        return this;
+    }
+
+    /**
+     * Obtains the passes that need to complete before the pass at the given index can be started.
+     * Passes that are already implied through other dependencies are not omitted.
+     *
+     * @param index The index of the pass within the pipeline
+     * @return The indices of the passes the pass depends on, in ascending order
+     */
+    @NotNull
+    public List<Integer> getDependencies(int index) {
+        Pass pass = this.passes.get(index);
+        List<Integer> dependencies = new ArrayList<>();
+        for (int i = 0; i < index; i++) {
+            if (pass.conflictsWith(this.passes.get(i))) {
+                dependencies.add(i);
+            }
+        }
+        return dependencies;
+    }
+
+    @NotNull
+    public List<Pass> getPasses() {
+        return Collections.unmodifiableList(this.passes);
+    }
+
+    /**
+     * Runs all passes on the current thread in the order in which they were added.
+     *
+     * @param oaktree The instance to run the passes on
+     */
+    public void run(@NotNull Oaktree oaktree) {
+        for (Pass pass : this.passes) {
+            pass.action.accept(oaktree);
+        }
+    }
+
+    /**
+     * Runs all passes on the given executor, running passes that do not conflict with each other concurrently.
+     * This method blocks until all passes have completed.
+     *
+     * @param oaktree The instance to run the passes on
+     * @param executor The executor to run the passes on
+     * @throws CompletionException If any pass threw an exception. Passes that depend on the failed pass are not run.
+     */
+    public void run(@NotNull Oaktree oaktree, @NotNull Executor executor) {
+        List<CompletableFuture<Void>> futures = new ArrayList<>(this.passes.size());
+        for (int i = 0; i < this.passes.size(); i++) {
+            Pass pass = this.passes.get(i);
+            List<Integer> dependencies = getDependencies(i);
+            CompletableFuture<?>[] dependencyFutures = new CompletableFuture<?>[dependencies.size()];
+            for (int j = 0; j < dependencyFutures.length; j++) {
+                dependencyFutures[j] = futures.get(dependencies.get(j));
+            }
+            futures.add(CompletableFuture.allOf(dependencyFutures).thenRunAsync(() -> {
+                try {
+                    pass.action.accept(oaktree);
+                } catch (RuntimeException e) {
+                    throw new IllegalStateException("Pass " + pass.name + " failed", e);
+                }
+            }, executor));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+    }
+}
@@ -0,0 +1,164 @@
+package de.geolykt.starloader.deobf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.JarFile;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.ClassNode;
+
+import de.geolykt.starloader.deobf.remapper.ConflicitingMappingException;
+import de.geolykt.starloader.deobf.remapper.MappingSet;
+import de.geolykt.starloader.deobf.remapper.MappingSink;
+import de.geolykt.starloader.deobf.remapper.Remapper;
+import de.geolykt.starloader.deobf.remapper.RemapperUtils;
+
+/**
+ * Deobfuscates the classes of a jar lazily as they are loaded instead of transforming the entire jar ahead of time.
+ * Only the headers of the classes are indexed up front so the hierarchy is known. Each class is then transformed with
+ * the passes of {@link Oaktree#transformStreaming(JarFile, OutputStream, int)} and remapped with the given mappings
+ * once it is needed.
+ *
+ * <p>Class loaders can transform classes through {@link #transform(byte[])}. As renamed classes are requested by their
+ * new name, the class loader needs to look up the class file through {@link #getObfuscatedName(String)}.
+ *
+ * <p>This class can also be used as a java agent through {@link #premain(String, Instrumentation)}. However, the JVM
+ * defines classes under the name they are requested as, so agents cannot rename classes. Class renames are thus
+ * discarded by the agent, while fields and methods are still renamed.
+ *
+ * <p>Classes are transformed one at a time, so concurrently loaded classes wait for each other.
+ */
+public final class OaktreeTransformer implements ClassFileTransformer {
+
+    /**
+     * The entrypoint of the java agent. The arguments of the agent are the path to the jar whose classes should be
+     * transformed and optionally the path to a tiny v1 file with the mappings to apply, separated by the
+     * {@link File#pathSeparator path separator}.
+     *
+     * <p>ASM is not bundled with the agent. The jars of ASM and ASM-tree need to be placed next to the jar of the agent,
+     * from where they are put on the boot class path as declared by the manifest of the agent.
+     *
+     * @param agentArgs The arguments of the agent
+     * @param instrumentation The instrumentation to register the transformer with
+     */
+    public static void premain(String agentArgs, Instrumentation instrumentation) {
+        if (agentArgs == null || agentArgs.isEmpty()) {
+            System.err.println("Oaktree agent: No jar specified, no classes will be transformed.");
+            return;
+        }
+        String[] args = agentArgs.split(File.pathSeparator);
+        MappingSet mappings = new MappingSet();
+        try (JarFile file = new JarFile(args[0])) {
+            if (args.length > 1) {
+                RemapperUtils.readTinyV1File(new File(args[1]), mappings);
+            }
+            instrumentation.addTransformer(new OaktreeTransformer(file, mappings, false));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @NotNull
+    private final Map<String, String> obfuscatedNames = new HashMap<>();
+    @NotNull
+    private final Oaktree oaktree = new Oaktree();
+    @NotNull
+    private final Remapper remapper;
+
+    /**
+     * Constructor. Indexes the headers of all classes of the jar. The jar is not needed afterwards.
+     *
+     * @param file The jar whose classes should be transformed
+     * @param mappings The mappings to apply to the classes
+     * @param renameClasses Whether classes should be renamed. If false, only fields and methods are renamed.
+     * @throws IOException If the jar could not be read
+     */
+    public OaktreeTransformer(@NotNull JarFile file, @NotNull MappingSet mappings, boolean renameClasses) throws IOException {
+        this.remapper = new Remapper(this.oaktree.getClassNodeRegistry());
+        // The headers are only needed to propagate field renames, they are never remapped themselves
+        this.remapper.addTargets(this.oaktree.indexHeaders(file));
+        mappings.forEach(new MappingSink() {
+            @Override
+            public void acceptClass(@NotNull String oldName, @NotNull String newName) {
+                if (renameClasses) {
+                    remapper.remapClassName(oldName, newName);
+                    obfuscatedNames.put(newName, oldName);
+                }
+            }
+
+            @Override
+            public void acceptField(@NotNull String owner, @NotNull String desc, @NotNull String oldName, @NotNull String newName) {
+                remapper.remapField(owner, desc, oldName, newName);
+            }
+
+            @Override
+            public void acceptMethod(@NotNull String owner, @NotNull String desc, @NotNull String oldName, @NotNull String newName) {
+                try {
+                    remapper.remapMethod(owner, desc, oldName, newName);
+                } catch (ConflicitingMappingException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Obtains the name a class had before it was renamed.
+     *
+     * @param name The internal name of the class after it was renamed
+     * @return The internal name of the class within the jar, which is the given name if the class was not renamed
+     */
+    @NotNull
+    public String getObfuscatedName(@NotNull String name) {
+        return this.obfuscatedNames.getOrDefault(name, name);
+    }
+
+    /**
+     * Transforms a class of the jar.
+     *
+     * @param classfile The class file as it is stored in the jar
+     * @return The transformed class file, or the given class file if the class was not modified
+     */
+    public byte @NotNull[] transform(byte @NotNull[] classfile) {
+        ClassReader reader = new ClassReader(classfile);
+        ClassNode node = new ClassNode();
+        reader.accept(node, 0);
+        boolean modified;
+        synchronized (this) {
+            modified = this.oaktree.transformClass(node, reader);
+            modified |= this.remapper.remapDetached(node);
+        }
+        if (!modified) {
+            return classfile;
+        }
+        ClassWriter writer = new ClassWriter(0);
+        node.accept(writer);
+        return writer.toByteArray();
+    }
+
+    @Override
+    public byte @Nullable[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        // The passes may alter the access of classes and members, which is not permitted when redefining classes
+        if (className == null || classBeingRedefined != null || this.oaktree.getClassNodeRegistry().get(className) == null) {
+            return null;
+        }
+        try {
+            byte[] transformed = transform(classfileBuffer);
+            return transformed == classfileBuffer ? null : transformed;
+        } catch (RuntimeException e) {
+            // Exceptions thrown by transformers are silently discarded by the JVM
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package de.geolykt.starloader.deobf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A content-addressed cache of deobfuscated jars and the mappings that were generated alongside them.
+ * Entries are keyed by the digest of everything that influences the output, that is the input jar, the configuration
+ * of the passes and any mapping files that are read. Running the deobfuscator again against the same input
+ * can thus be skipped entirely by {@link #restore(String, Path, Path) restoring} the previous output.
+ *
+ * <p>Every entry is a directory within the cache directory named after its key. Once the cache exceeds its
+ * maximum size, the least recently used entries are deleted. Entries are written to a temporary directory
+ * first and moved in place afterwards, so other processes never observe a partially written entry.
+ */
+public final class OutputCache {
+
+    private static final String JAR_FILE = "out.jar";
+    private static final String MAP_FILE = "map.tiny";
+    // Bump whenever the layout of the entries or the computation of the keys changes
+    private static final int VERSION = 1;
+
+    /**
+     * Computes the key of the output produced from the given inputs.
+     *
+     * @param input The jar that is deobfuscated
+     * @param configuration Everything else that influences the output, such as the passes that are run,
+     * their settings and the version of the deobfuscator. The order of the entries is irrelevant.
+     * @param mappingInputs Mapping files that are read while deobfuscating. Files that do not exist are
+     * accounted for as such.
+     * @return The key, which is the hex-encoded SHA-256 digest of all inputs
+     * @throws IOException If an input could not be read
+     */
+    @NotNull
+    public static String computeKey(@NotNull Path input, @NotNull Map<String, String> configuration, @NotNull Path... mappingInputs) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every Java platform is required to support SHA-256", e);
+        }
+        update(digest, VERSION);
+        updateFile(digest, input);
+        TreeMap<String, String> sortedConfiguration = new TreeMap<>(configuration);
+        update(digest, sortedConfiguration.size());
+        sortedConfiguration.forEach((key, value) -> {
+            update(digest, key);
+            update(digest, value);
+        });
+        update(digest, mappingInputs.length);
+        for (Path mappingInput : mappingInputs) {
+            if (Files.exists(mappingInput)) {
+                digest.update((byte) 1);
+                updateFile(digest, mappingInput);
+            } else {
+                digest.update((byte) 0);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Computes the digest of a single file, for example to account for the jar of the deobfuscator
+     * within the configuration that is passed to {@link #computeKey(Path, Map, Path...)}.
+     *
+     * @param file The file to digest
+     * @return The hex-encoded SHA-256 digest of the file
+     * @throws IOException If the file could not be read
+     */
+    @NotNull
+    static String computeFileDigest(@NotNull Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every Java platform is required to support SHA-256", e);
+        }
+        updateFile(digest, file);
+        return toHex(digest.digest());
+    }
+
+    private static void delete(@NotNull Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> files = Files.list(path)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    delete(file);
+                }
+            }
+        }
+        Files.deleteIfExists(path);
+    }
+
+    private static long getSize(@NotNull Path entry) throws IOException {
+        long size = 0;
+        try (Stream<Path> files = Files.list(entry)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                size += Files.size(file);
+            }
+        }
+        return size;
+    }
+
+    @NotNull
+    private static String toHex(byte @NotNull[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >>> 4) & 0x0F, 16));
+            hex.append(Character.forDigit(b & 0x0F, 16));
+        }
+        return hex.toString();
+    }
+
+    private static void update(@NotNull MessageDigest digest, @NotNull String string) {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        update(digest, bytes.length);
+        digest.update(bytes);
+    }
+
+    private static void update(@NotNull MessageDigest digest, long value) {
+        for (int i = 0; i < 8; i++) {
+            digest.update((byte) (value >>> (i * 8)));
+        }
+    }
+
+    private static void updateFile(@NotNull MessageDigest digest, @NotNull Path file) throws IOException {
+        update(digest, Files.size(file));
+        byte[] buffer = new byte[8192];
+        try (InputStream in = Files.newInputStream(file)) {
+            for (int len = in.read(buffer); len != -1; len = in.read(buffer)) {
+                digest.update(buffer, 0, len);
+            }
+        }
+    }
+
+    @NotNull
+    private final Path directory;
+    private final long maxSize;
+
+    /**
+     * Constructor.
+     *
+     * @param directory The directory to store the entries in. It is created if it does not exist.
+     * @param maxSize The maximum total size of all entries in bytes
+     */
+    public OutputCache(@NotNull Path directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Deletes the least recently used entries until the total size of all entries no longer exceeds the maximum size.
+     *
+     * @throws IOException If the entries could not be listed or deleted
+     */
+    public void evict() throws IOException {
+        if (!Files.isDirectory(this.directory)) {
+            return;
+        }
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory)) {
+            for (Path entry : stream) {
+                // Temporary directories of entries that are currently being stored start with a dot
+                if (Files.isDirectory(entry) && !entry.getFileName().toString().startsWith(".")) {
+                    entries.add(entry);
+                }
+            }
+        }
+        Map<Path, FileTime> lastUsed = new HashMap<>();
+        Map<Path, Long> sizes = new HashMap<>();
+        long totalSize = 0;
+        for (Path entry : entries) {
+            lastUsed.put(entry, Files.getLastModifiedTime(entry));
+            long size = getSize(entry);
+            sizes.put(entry, size);
+            totalSize += size;
+        }
+        entries.sort(Comparator.comparing(lastUsed::get));
+        for (int i = 0; i < entries.size() && totalSize > this.maxSize; i++) {
+            Path entry = entries.get(i);
+            delete(entry);
+            totalSize -= sizes.get(entry);
+        }
+    }
+
+    /**
+     * Copies the output stored under the given key to the given locations.
+     *
+     * @param key The key, as computed by {@link #computeKey(Path, Map, Path...)}
+     * @param jar The path to copy the deobfuscated jar to
+     * @param map The path to copy the mappings to, or null if the mappings are not needed
+     * @return True if the output was restored, false if there is no entry for the key or the entry lacks mappings
+     * @throws IOException If the entry could not be copied
+     */
+    public boolean restore(@NotNull String key, @NotNull Path jar, @Nullable Path map) throws IOException {
+        Path entry = this.directory.resolve(key);
+        Path cachedJar = entry.resolve(JAR_FILE);
+        Path cachedMap = entry.resolve(MAP_FILE);
+        if (!Files.isRegularFile(cachedJar) || (map != null && !Files.isRegularFile(cachedMap))) {
+            return false;
+        }
+        Files.copy(cachedJar, jar, StandardCopyOption.REPLACE_EXISTING);
+        if (map != null) {
+            Files.copy(cachedMap, map, StandardCopyOption.REPLACE_EXISTING);
+        }
+        // Used as the time of the last access for the eviction
+        Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        return true;
+    }
+
+    /**
+     * Stores an output in the cache and evicts entries should the cache exceed its maximum size afterwards.
+     * Nothing happens if there already is an entry for the key.
+     *
+     * @param key The key, as computed by {@link #computeKey(Path, Map, Path...)}
+     * @param jar The deobfuscated jar
+     * @param map The mappings, or null if no mappings were generated
+     * @throws IOException If the output could not be stored
+     */
+    public void store(@NotNull String key, @NotNull Path jar, @Nullable Path map) throws IOException {
+        Path entry = this.directory.resolve(key);
+        if (Files.isDirectory(entry)) {
+            return;
+        }
+        Files.createDirectories(this.directory);
+        Path temporary = Files.createTempDirectory(this.directory, "." + key);
+        try {
+            Files.copy(jar, temporary.resolve(JAR_FILE));
+            if (map != null) {
+                Files.copy(map, temporary.resolve(MAP_FILE));
+            }
+            Files.move(temporary, entry, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            delete(temporary);
+            if (Files.isDirectory(entry)) {
+                // Another process stored the same output in the meantime
+                return;
+            }
+            throw e;
+        }
+        evict();
+    }
+}
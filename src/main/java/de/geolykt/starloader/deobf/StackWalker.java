@@ -1,11 +1,18 @@
 package de.geolykt.starloader.deobf;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
 
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.objectweb.asm.ConstantDynamic;
 import org.objectweb.asm.Handle;
 import org.objectweb.asm.Opcodes;
@@ -87,6 +94,30 @@ public class StackWalker {
         }
     }
 
+    /**
+     * Factory for the {@link StackWalkerConsumer consumers} used by
+     * {@link StackWalker#walkStacks(ForkJoinPool, Collection, StackWalkerConsumerFactory, BinaryOperator)}.
+     *
+     * @param <K> The type of the keys of the results
+     * @param <V> The type of the values of the results
+     */
+    @FunctionalInterface
+    public interface StackWalkerConsumerFactory<K, V> {
+
+        /**
+         * Creates the consumer that walks over a single method. As every method gets its own consumer,
+         * the consumer can keep state without having to care about thread safety. However the consumer
+         * may be invoked on any thread, so state that is shared between consumers must be thread-safe.
+         *
+         * @param owner The class that declares the method
+         * @param method The method to walk over
+         * @param results The sink for the results of the walk. Results with the same key are merged using the reducer.
+         * @return The consumer, or null if the method should not be walked over
+         */
+        @Nullable
+        public StackWalkerConsumer createConsumer(@NotNull ClassNode owner, @NotNull MethodNode method, @NotNull BiConsumer<K, V> results);
+    }
+
     public static void walkStack(ClassNode owner, MethodNode method, StackWalkerConsumer consumer) {
 
         if ((owner.version & 0x00FF) <= Opcodes.V1_5) {
@@ -715,6 +746,82 @@ public class StackWalker {
         consumer.endMethod();
     }
 
+    /**
+     * Walks over the stacks of all methods of the given classes in parallel. The methods are distributed
+     * over the given pool, where each walk has its own consumer that is created by the consumer factory.
+     * Every worker collects the results of the walks it performed in its own map, so results are only shared
+     * once the workers are merged at the end.
+     *
+     * <p>Results with the same key are merged using the reducer, similar to {@link Map#merge(Object, Object, java.util.function.BiFunction)}.
+     * The reducer is always applied in the order in which the results would have been produced if the methods
+     * were walked over sequentially, so an associative reducer yields the same results as a sequential walk.
+     *
+     * @param <K> The type of the keys of the results
+     * @param <V> The type of the values of the results
+     * @param pool The pool to walk over the methods on
+     * @param nodes The classes whose methods should be walked over
+     * @param consumerFactory The factory that creates the consumer for each method
+     * @param reducer The function used to merge two results with the same key, such as
+     * {@link ClassWrapperPool#getCommonSuperClass(ClassWrapper, ClassWrapper)}
+     * @return The merged results of all walks
+     */
+    @NotNull
+    public static <K, V> Map<K, V> walkStacks(@NotNull ForkJoinPool pool, @NotNull Collection<ClassNode> nodes,
+            @NotNull StackWalkerConsumerFactory<K, V> consumerFactory, @NotNull BinaryOperator<V> reducer) {
+        return walkStacks(pool, nodes, consumerFactory, reducer, null);
+    }
+
+    /**
+     * Walks over the stacks of all methods of the given classes in parallel, see
+     * {@link #walkStacks(ForkJoinPool, Collection, StackWalkerConsumerFactory, BinaryOperator)}.
+     * If the method bodies of the classes are loaded lazily, the classes are distributed over the pool instead of
+     * the methods, so that the bodies of a class only need to be materialized while its methods are walked over.
+     *
+     * @param <K> The type of the keys of the results
+     * @param <V> The type of the values of the results
+     * @param pool The pool to walk over the methods on
+     * @param nodes The classes whose methods should be walked over
+     * @param consumerFactory The factory that creates the consumer for each method
+     * @param reducer The function used to merge two results with the same key
+     * @param methodBodies The store of the method bodies of the classes, or null if the bodies are always materialized
+     * @return The merged results of all walks
+     */
+    @NotNull
+    static <K, V> Map<K, V> walkStacks(@NotNull ForkJoinPool pool, @NotNull Collection<ClassNode> nodes,
+            @NotNull StackWalkerConsumerFactory<K, V> consumerFactory, @NotNull BinaryOperator<V> reducer,
+            @Nullable MethodBodyStore methodBodies) {
+        if (methodBodies != null) {
+            return pool.submit(() -> nodes.parallelStream()
+                    .collect(() -> new HashMap<K, V>(), (results, node) -> {
+                        methodBodies.acquire(node);
+                        try {
+                            for (MethodNode method : node.methods) {
+                                StackWalkerConsumer consumer = consumerFactory.createConsumer(node, method,
+                                        (key, value) -> results.merge(key, value, reducer));
+                                if (consumer != null) {
+                                    walkStack(node, method, consumer);
+                                }
+                            }
+                        } finally {
+                            methodBodies.release(node, false);
+                        }
+                    }, (results, otherResults) -> {
+                        otherResults.forEach((key, value) -> results.merge(key, value, reducer));
+                    })).join();
+        }
+        return pool.submit(() -> nodes.parallelStream()
+                .flatMap(node -> node.methods.stream().map(method -> new AbstractMap.SimpleImmutableEntry<>(node, method)))
+                .collect(() -> new HashMap<K, V>(), (results, target) -> {
+                    StackWalkerConsumer consumer = consumerFactory.createConsumer(target.getKey(), target.getValue(),
+                            (key, value) -> results.merge(key, value, reducer));
+                    if (consumer != null) {
+                        walkStack(target.getKey(), target.getValue(), consumer);
+                    }
+                }, (results, otherResults) -> {
+                    otherResults.forEach((key, value) -> results.merge(key, value, reducer));
+                })).join();
+    }
+
     private static StackElement getStackElement(ClassNode ownerClass, FrameSource source, Object frame) {
         if (frame instanceof String) {
            return new StackElement(source, 'L' + frame.toString() + ';');
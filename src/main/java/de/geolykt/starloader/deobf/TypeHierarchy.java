@@ -0,0 +1,243 @@
+package de.geolykt.starloader.deobf;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A compact representation of the transitive type hierarchy of a set of classes.
+ *
+ * <p>Every class is assigned an index and the transitive supertypes of each class are stored
+ * as a sorted array of indices. As such diamond inheritance through interfaces does not produce
+ * duplicate entries and no per-class list of strings is retained. The transitive subtypes are
+ * derived from the supertypes lazily the first time they are requested and are stored as a single
+ * flat array.
+ *
+ * <p>The lists returned by this class are unmodifiable views that resolve the names of the types
+ * while being iterated over.
+ */
+final class TypeHierarchy {
+
+    private static final int[] EMPTY = new int[0];
+
+    /**
+     * Merges two sorted arrays of indices into a single sorted array without duplicates.
+     *
+     * @param a The first array
+     * @param b The second array
+     * @return The union of both arrays
+     */
+    private static int[] union(int[] a, int[] b) {
+        if (a.length == 0) {
+            return b;
+        } else if (b.length == 0) {
+            return a;
+        }
+        int[] out = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                out[k++] = a[i++];
+            } else if (a[i] > b[j]) {
+                out[k++] = b[j++];
+            } else {
+                out[k++] = a[i++];
+                j++;
+            }
+        }
+        while (i < a.length) {
+            out[k++] = a[i++];
+        }
+        while (j < b.length) {
+            out[k++] = b[j++];
+        }
+        return k == out.length ? out : Arrays.copyOf(out, k);
+    }
+
+    private final Map<String, Integer> indices;
+    private final String[] names;
+    private int[] subtypeOffsets;
+    private int[] subtypes;
+    private final int[][] supertypes;
+
+    /**
+     * Constructor. The keys of the passed map are the classes that make up the hierarchy,
+     * the values are the direct subtypes of the class. Subtypes that are not keys of the map
+     * themselves are ignored.
+     *
+     * @param directSubtypes The direct subtypes of every class
+     */
+    public TypeHierarchy(@NotNull Map<String, ? extends Iterable<String>> directSubtypes) {
+        this.names = directSubtypes.keySet().toArray(new String[0]);
+        Arrays.sort(this.names);
+        this.indices = new HashMap<>(this.names.length * 2);
+        for (int i = 0; i < this.names.length; i++) {
+            this.indices.put(this.names[i], i);
+        }
+
+        int[][] directSupertypes = new int[this.names.length][];
+        int[] directSupertypeCount = new int[this.names.length];
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < this.names.length; i++) {
+                for (String subtype : directSubtypes.get(this.names[i])) {
+                    Integer subtypeIndex = this.indices.get(subtype);
+                    if (subtypeIndex == null) {
+                        continue;
+                    }
+                    if (pass == 0) {
+                        directSupertypeCount[subtypeIndex]++;
+                    } else {
+                        directSupertypes[subtypeIndex][--directSupertypeCount[subtypeIndex]] = i;
+                    }
+                }
+            }
+            if (pass == 0) {
+                for (int i = 0; i < this.names.length; i++) {
+                    directSupertypes[i] = directSupertypeCount[i] == 0 ? EMPTY : new int[directSupertypeCount[i]];
+                }
+            }
+        }
+
+        this.supertypes = new int[this.names.length][];
+        boolean[] visiting = new boolean[this.names.length];
+        for (int i = 0; i < this.names.length; i++) {
+            computeSupertypes(i, directSupertypes, visiting);
+        }
+    }
+
+    private int[] computeSupertypes(int type, int[][] directSupertypes, boolean[] visiting) {
+        int[] result = this.supertypes[type];
+        if (result != null) {
+            return result;
+        }
+        if (visiting[type]) {
+            // Circular hierarchy - the JVM would refuse to load such classes anyways
+            return EMPTY;
+        }
+        visiting[type] = true;
+        result = EMPTY;
+        for (int directSupertype : directSupertypes[type]) {
+            result = union(result, union(new int[] {directSupertype}, computeSupertypes(directSupertype, directSupertypes, visiting)));
+        }
+        visiting[type] = false;
+        this.supertypes[type] = result;
+        return result;
+    }
+
+    private void computeSubtypes() {
+        int[] offsets = new int[this.names.length + 1];
+        for (int[] typeSupertypes : this.supertypes) {
+            for (int supertype : typeSupertypes) {
+                offsets[supertype + 1]++;
+            }
+        }
+        for (int i = 0; i < this.names.length; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        int[] flat = new int[offsets[this.names.length]];
+        int[] fill = Arrays.copyOf(offsets, this.names.length);
+        // Iterating in ascending order keeps the subtypes of every class sorted
+        for (int i = 0; i < this.names.length; i++) {
+            for (int supertype : this.supertypes[i]) {
+                flat[fill[supertype]++] = i;
+            }
+        }
+        this.subtypes = flat;
+        this.subtypeOffsets = offsets;
+    }
+
+    /**
+     * Obtains all direct and indirect subtypes of a class. Each subtype is only returned once.
+     *
+     * @param name The internal name of the class
+     * @return An unmodifiable view of the subtypes, empty if the class is not part of the hierarchy
+     */
+    @NotNull
+    public List<String> getAllSubtypes(@NotNull String name) {
+        Integer index = this.indices.get(name);
+        if (index == null) {
+            return Collections.emptyList();
+        }
+        if (this.subtypes == null) {
+            computeSubtypes();
+        }
+        return new NameView(this.subtypes, this.subtypeOffsets[index], this.subtypeOffsets[index + 1]);
+    }
+
+    /**
+     * Obtains all direct and indirect supertypes of a class. Each supertype is only returned once.
+     *
+     * @param name The internal name of the class
+     * @return An unmodifiable view of the supertypes, empty if the class is not part of the hierarchy
+     */
+    @NotNull
+    public List<String> getAllSupertypes(@NotNull String name) {
+        Integer index = this.indices.get(name);
+        if (index == null) {
+            return Collections.emptyList();
+        }
+        int[] typeSupertypes = this.supertypes[index];
+        return new NameView(typeSupertypes, 0, typeSupertypes.length);
+    }
+
+    /**
+     * Obtains the internal names of all classes that are part of this hierarchy.
+     *
+     * @return An unmodifiable view of the names of all classes
+     */
+    @NotNull
+    public List<String> getTypes() {
+        return Collections.unmodifiableList(Arrays.asList(this.names));
+    }
+
+    /**
+     * Checks whether a class is a direct or indirect subtype of another class.
+     * A class is not considered to be a subtype of itself.
+     *
+     * @param subtype The internal name of the potential subtype
+     * @param supertype The internal name of the potential supertype
+     * @return True if subtype extends or implements supertype
+     */
+    public boolean isSubtype(@NotNull String subtype, @NotNull String supertype) {
+        Integer subtypeIndex = this.indices.get(subtype);
+        Integer supertypeIndex = this.indices.get(supertype);
+        if (subtypeIndex == null || supertypeIndex == null) {
+            return false;
+        }
+        return Arrays.binarySearch(this.supertypes[subtypeIndex], supertypeIndex) >= 0;
+    }
+
+    private class NameView extends AbstractList<String> implements RandomAccess {
+
+        private final int end;
+        private final int[] source;
+        private final int start;
+
+        private NameView(int[] source, int start, int end) {
+            this.source = source;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public String get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size());
+            }
+            return TypeHierarchy.this.names[this.source[this.start + index]];
+        }
+
+        @Override
+        public int size() {
+            return this.end - this.start;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package de.geolykt.starloader.deobf;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A disjoint-set forest (also known as union-find structure) that uses path compression
+ * and union by size. Elements are compared through {@link Object#equals(Object)}.
+ *
+ * @param <E> The type of elements stored in the forest
+ */
+final class UnionFind<E> {
+
+    private final Map<E, E> parents = new HashMap<>();
+    private final Map<E, Integer> sizes = new HashMap<>();
+
+    /**
+     * Adds an element as a set of it's own if it was not added before.
+     *
+     * @param element The element to add
+     */
+    public void add(E element) {
+        if (this.parents.putIfAbsent(element, element) == null) {
+            this.sizes.put(element, 1);
+        }
+    }
+
+    /**
+     * Obtains a map where each element is mapped to the set it belongs to.
+     * All elements of the same set share the same {@link Set} instance.
+     *
+     * @return A newly created map of each element to their sets
+     */
+    public Map<E, Set<E>> asSetMap() {
+        Map<E, Set<E>> rootSets = new HashMap<>();
+        Map<E, Set<E>> sets = new HashMap<>(this.parents.size());
+        for (E element : this.parents.keySet()) {
+            Set<E> set = rootSets.computeIfAbsent(find(element), (root) -> new HashSet<>(this.sizes.get(root) * 2));
+            set.add(element);
+            sets.put(element, set);
+        }
+        return sets;
+    }
+
+    /**
+     * Obtains the representative element of the set the element belongs to.
+     * Elements that were not added beforehand are added implicitly.
+     *
+     * @param element The element
+     * @return The representative element of it's set
+     */
+    public E find(E element) {
+        E root = this.parents.get(element);
+        if (root == null) {
+            add(element);
+            return element;
+        }
+        while (true) {
+            E parent = this.parents.get(root);
+            if (parent.equals(root)) {
+                break;
+            }
+            root = parent;
+        }
+        // Path compression
+        while (!element.equals(root)) {
+            element = this.parents.put(element, root);
+        }
+        return root;
+    }
+
+    /**
+     * Merges the sets of both elements.
+     *
+     * @param a The first element
+     * @param b The second element
+     */
+    public void union(E a, E b) {
+        a = find(a);
+        b = find(b);
+        if (a.equals(b)) {
+            return;
+        }
+        int sizeA = this.sizes.get(a);
+        int sizeB = this.sizes.get(b);
+        if (sizeA < sizeB) {
+            E temp = a;
+            a = b;
+            b = temp;
+        }
+        this.parents.put(b, a);
+        this.sizes.put(a, sizeA + sizeB);
+        this.sizes.remove(b);
+    }
+}
@@ -0,0 +1,234 @@
+package de.geolykt.starloader.deobf.remapper;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Storage of class name mappings where the keys are split into their package and their simple name.
+ * The package names are stored in a string table, which means that each package name is only retained once
+ * regardless of how many classes within the package are mapped. As the game and the libraries bundled with it
+ * tend to use few but long package names, this considerably reduces the footprint of large mapping sets.
+ *
+ * <p>Both the string table and the mappings themselves are stored in flat open-addressing tables.
+ * Lookups are performed on regions of the requested name, so no substrings need to be created in order
+ * to look up a mapping. Lookups of classes whose package is not known to the map are rejected
+ * without looking at the mappings themselves.
+ *
+ * <p>Internal names are expected to be used as keys, though array descriptors are tolerated as they
+ * simply never match.
+ */
+final class ClassNameMap {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Computes the hash code of a region of a string in the same way {@link String#hashCode()} does.
+     *
+     * @param string The string
+     * @param start The start of the region, inclusive
+     * @param end The end of the region, exclusive
+     * @return The hash code of the region
+     */
+    private static int hash(@NotNull String string, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + string.charAt(i);
+        }
+        // Spread the higher bits as the tables are indexed with the lower bits
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean regionEquals(@NotNull String stored, @NotNull String name, int start, int end) {
+        return stored.length() == end - start && stored.regionMatches(0, name, start, end - start);
+    }
+
+    private int[] entryPackages;
+    private String[] entrySimpleNames;
+    private String[] entryValues;
+    private int[] packageSlots;
+    private String[] packages;
+    private int packageCount;
+    private int size;
+
+    public ClassNameMap() {
+        clear();
+    }
+
+    public void clear() {
+        this.packages = new String[INITIAL_CAPACITY / 2];
+        this.packageSlots = new int[INITIAL_CAPACITY];
+        this.packageCount = 0;
+        this.entryPackages = new int[INITIAL_CAPACITY];
+        this.entrySimpleNames = new String[INITIAL_CAPACITY];
+        this.entryValues = new String[INITIAL_CAPACITY];
+        this.size = 0;
+    }
+
+    public boolean containsKey(@Nullable String name) {
+        return get(name) != null;
+    }
+
+    private int findEntry(int packageIndex, @NotNull String name, int start, int end) {
+        int mask = this.entryValues.length - 1;
+        int slot = (hash(name, start, end) * 31 + packageIndex) & mask;
+        while (true) {
+            if (this.entryValues[slot] == null) {
+                return -1 - slot; // Free slot
+            }
+            if (this.entryPackages[slot] == packageIndex && regionEquals(this.entrySimpleNames[slot], name, start, end)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private int findPackage(@NotNull String name, int end) {
+        int mask = this.packageSlots.length - 1;
+        int slot = hash(name, 0, end) & mask;
+        while (true) {
+            int index = this.packageSlots[slot] - 1;
+            if (index == -1) {
+                return -1 - slot; // Free slot
+            }
+            if (regionEquals(this.packages[index], name, 0, end)) {
+                return index;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Invokes the given action for every mapping stored in this map. The key is the old name of
+     * the class, the value the new name.
+     *
+     * @param action The action to invoke
+     */
+    public void forEach(@NotNull BiConsumer<String, String> action) {
+        for (int i = 0; i < this.entryValues.length; i++) {
+            String value = this.entryValues[i];
+            if (value == null) {
+                continue;
+            }
+            String packageName = this.packages[this.entryPackages[i]];
+            if (packageName.isEmpty()) {
+                action.accept(this.entrySimpleNames[i], value);
+            } else {
+                action.accept(packageName + '/' + this.entrySimpleNames[i], value);
+            }
+        }
+    }
+
+    /**
+     * Obtains the new name of a class. Like {@link Map#get(Object)}, null is tolerated as the key,
+     * in which case null is returned as null is never mapped.
+     *
+     * @param name The old name of the class
+     * @return The new name of the class, or null if the class is not mapped
+     */
+    @Nullable
+    public String get(@Nullable String name) {
+        if (name == null) {
+            return null;
+        }
+        int lastSlash = name.lastIndexOf('/');
+        int packageIndex = findPackage(name, Math.max(lastSlash, 0));
+        if (packageIndex < 0) {
+            return null;
+        }
+        int slot = findEntry(packageIndex, name, lastSlash + 1, name.length());
+        if (slot < 0) {
+            return null;
+        }
+        return this.entryValues[slot];
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Inserts a class mapping, overwriting the previous mapping of the class should it exist.
+     * Null is not permitted as the new name, as it marks free slots within the table.
+     *
+     * @param name The old name of the class
+     * @param newName The new name of the class
+     * @return The previous new name of the class, or null if the class was not mapped before
+     */
+    @Nullable
+    public String put(@NotNull String name, @NotNull String newName) {
+        if (newName == null) {
+            throw new NullPointerException("Cannot map class " + name + " to a null name.");
+        }
+        int lastSlash = name.lastIndexOf('/');
+        int packageEnd = Math.max(lastSlash, 0);
+        int packageIndex = findPackage(name, packageEnd);
+        if (packageIndex < 0) {
+            if ((this.packageCount + 1) * 2 > this.packageSlots.length) {
+                resizePackages();
+                packageIndex = findPackage(name, packageEnd);
+            }
+            if (this.packageCount == this.packages.length) {
+                this.packages = Arrays.copyOf(this.packages, this.packageCount * 2);
+            }
+            this.packages[this.packageCount] = name.substring(0, packageEnd);
+            this.packageSlots[-1 - packageIndex] = ++this.packageCount;
+            packageIndex = this.packageCount - 1;
+        }
+        int slot = findEntry(packageIndex, name, lastSlash + 1, name.length());
+        if (slot >= 0) {
+            String oldValue = this.entryValues[slot];
+            this.entryValues[slot] = newName;
+            return oldValue;
+        }
+        if ((this.size + 1) * 2 > this.entryValues.length) {
+            resizeEntries();
+            slot = findEntry(packageIndex, name, lastSlash + 1, name.length());
+        }
+        slot = -1 - slot;
+        this.entryPackages[slot] = packageIndex;
+        this.entrySimpleNames[slot] = name.substring(lastSlash + 1);
+        this.entryValues[slot] = newName;
+        this.size++;
+        return null;
+    }
+
+    public void putAll(@NotNull Map<String, String> mappings) {
+        mappings.forEach(this::put);
+    }
+
+    private void resizeEntries() {
+        int[] oldPackages = this.entryPackages;
+        String[] oldSimpleNames = this.entrySimpleNames;
+        String[] oldValues = this.entryValues;
+        int capacity = oldValues.length * 2;
+        this.entryPackages = new int[capacity];
+        this.entrySimpleNames = new String[capacity];
+        this.entryValues = new String[capacity];
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] == null) {
+                continue;
+            }
+            String simpleName = oldSimpleNames[i];
+            int slot = -1 - findEntry(oldPackages[i], simpleName, 0, simpleName.length());
+            this.entryPackages[slot] = oldPackages[i];
+            this.entrySimpleNames[slot] = simpleName;
+            this.entryValues[slot] = oldValues[i];
+        }
+    }
+
+    private void resizePackages() {
+        this.packageSlots = new int[this.packageSlots.length * 2];
+        for (int i = 0; i < this.packageCount; i++) {
+            String packageName = this.packages[i];
+            this.packageSlots[-1 - findPackage(packageName, packageName.length())] = i + 1;
+        }
+    }
+
+    public int size() {
+        return this.size;
+    }
+}
@@ -2,6 +2,7 @@ package de.geolykt.starloader.deobf.remapper;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.BiConsumer;
 
 import org.jetbrains.annotations.Nullable;
 
@@ -18,6 +19,16 @@ final class FieldRenameMap {
         renames.clear();
     }
 
+    /**
+     * Invokes the given action for every rename entry stored in this map.
+     * The key of each entry is the field as it is known before remapping, the value the new name of the field.
+     *
+     * @param action The action to invoke
+     */
+    public void forEach(BiConsumer<FieldReference, String> action) {
+        renames.forEach(action);
+    }
+
     @Nullable
     public String get(String owner, String descriptor, String oldName) {
         return this.renames.get(new FieldReference(owner, descriptor, oldName));
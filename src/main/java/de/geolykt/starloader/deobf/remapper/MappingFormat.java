@@ -0,0 +1,30 @@
+package de.geolykt.starloader.deobf.remapper;
+
+/**
+ * The formats a {@link MappingSet} can be written in.
+ */
+public enum MappingFormat {
+
+    /**
+     * A compact binary format. The file starts with the magic number {@link MappingSet#BINARY_MAGIC}
+     * and the format version (both as a 32-bit integer). Then the class, field and method mappings follow
+     * as three blocks, each prefixed by the amount of mappings within the block. Class mappings consist of the
+     * old and the new name while member mappings consist of the owner, descriptor, old and new name. All
+     * strings are written in the modified UTF-8 format as defined by {@link java.io.DataOutput#writeUTF(String)}.
+     * Can be read via {@link RemapperUtils#readBinaryMappings(java.io.File, Remapper)}.
+     */
+    BINARY,
+
+    /**
+     * The tiny v1 format with the namespaces "official" and "intermediary".
+     * Can be read via {@link RemapperUtils#readTinyV1File(java.io.File, Remapper)}.
+     */
+    TINY_V1,
+
+    /**
+     * The tiny v2 format with the namespaces "official" and "intermediary". Members are nested within
+     * their owning class, which is why classes that are not mapped but have mapped members are listed
+     * with their old name as their new name.
+     */
+    TINY_V2;
+}
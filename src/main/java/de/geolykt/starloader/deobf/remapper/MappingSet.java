@@ -0,0 +1,321 @@
+package de.geolykt.starloader.deobf.remapper;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * An in-memory {@link MappingSink} that keeps all mappings sorted so they can be written
+ * in a single pass once all mappings have been proposed. Classes are sorted by their name, members are
+ * sorted by their owner, their name and their descriptor, in that order. As such the output
+ * does not depend on the order in which the mappings were proposed.
+ *
+ * <p>If the same class or member is mapped twice, the latter mapping overwrites the former.
+ * This class is not thread-safe, however {@link #writeAsync(Path, MappingFormat)} operates on a snapshot
+ * so the set can be modified further while it is being written.
+ */
+public final class MappingSet implements MappingSink {
+
+    private static final class MemberKey implements Comparable<MemberKey> {
+
+        @NotNull
+        private final String desc;
+        @NotNull
+        private final String name;
+        @NotNull
+        private final String owner;
+
+        private MemberKey(@NotNull String owner, @NotNull String desc, @NotNull String name) {
+            this.owner = owner;
+            this.desc = desc;
+            this.name = name;
+        }
+
+        @Override
+        public int compareTo(MemberKey o) {
+            int cmp = this.owner.compareTo(o.owner);
+            if (cmp != 0) {
+                return cmp;
+            }
+            cmp = this.name.compareTo(o.name);
+            if (cmp != 0) {
+                return cmp;
+            }
+            return this.desc.compareTo(o.desc);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof MemberKey && compareTo((MemberKey) obj) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.owner.hashCode() ^ this.name.hashCode() ^ this.desc.hashCode();
+        }
+    }
+
+    /**
+     * The magic number that is written at the start of the {@link MappingFormat#BINARY binary format}.
+     * Corresponds to the ASCII string "OTMS".
+     */
+    public static final int BINARY_MAGIC = 0x4F544D53;
+
+    /**
+     * The current version of the {@link MappingFormat#BINARY binary format}.
+     */
+    public static final int BINARY_VERSION = 1;
+
+    private final TreeMap<String, String> classes = new TreeMap<>();
+    private final TreeMap<MemberKey, String> fields = new TreeMap<>();
+    private final TreeMap<MemberKey, String> methods = new TreeMap<>();
+
+    @Override
+    public void acceptClass(@NotNull String oldName, @NotNull String newName) {
+        this.classes.put(oldName, newName);
+    }
+
+    @Override
+    public void acceptField(@NotNull String owner, @NotNull String desc, @NotNull String oldName, @NotNull String newName) {
+        this.fields.put(new MemberKey(owner, desc, oldName), newName);
+    }
+
+    @Override
+    public void acceptMethod(@NotNull String owner, @NotNull String desc, @NotNull String oldName, @NotNull String newName) {
+        this.methods.put(new MemberKey(owner, desc, oldName), newName);
+    }
+
+    /**
+     * Removes all mappings from this set.
+     */
+    public void clear() {
+        this.classes.clear();
+        this.fields.clear();
+        this.methods.clear();
+    }
+
+    /**
+     * Creates a copy of this set. Later modifications of either set are not reflected by the other.
+     *
+     * @return The copy
+     */
+    @NotNull
+    public MappingSet copy() {
+        MappingSet copy = new MappingSet();
+        copy.classes.putAll(this.classes);
+        copy.fields.putAll(this.fields);
+        copy.methods.putAll(this.methods);
+        return copy;
+    }
+
+    /**
+     * Passes all mappings of this set to another sink. Classes are passed first, then fields and then methods.
+     *
+     * @param sink The sink to pass the mappings to
+     */
+    public void forEach(@NotNull MappingSink sink) {
+        this.classes.forEach(sink::acceptClass);
+        this.fields.forEach((key, newName) -> sink.acceptField(key.owner, key.desc, key.name, newName));
+        this.methods.forEach((key, newName) -> sink.acceptMethod(key.owner, key.desc, key.name, newName));
+    }
+
+    /**
+     * Obtains the new name of a class.
+     *
+     * @param oldName The internal name of the class
+     * @return The new internal name of the class, or null if the class is not mapped
+     */
+    @Nullable
+    public String getClassMapping(@NotNull String oldName) {
+        return this.classes.get(oldName);
+    }
+
+    public boolean isEmpty() {
+        return this.classes.isEmpty() && this.fields.isEmpty() && this.methods.isEmpty();
+    }
+
+    public int size() {
+        return this.classes.size() + this.fields.size() + this.methods.size();
+    }
+
+    /**
+     * Writes all mappings to a stream in the given format. The stream is not closed by this method,
+     * but it is flushed.
+     *
+     * @param out The stream to write to
+     * @param format The format to use
+     * @throws IOException If an I/O error occurred
+     */
+    public void write(@NotNull OutputStream out, @NotNull MappingFormat format) throws IOException {
+        if (format == MappingFormat.BINARY) {
+            DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(out));
+            writeBinary(dataOut);
+            dataOut.flush();
+            return;
+        }
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        // The tiny format does not make use of system-dependent newlines
+        if (format == MappingFormat.TINY_V1) {
+            writeTinyV1(writer);
+        } else {
+            writeTinyV2(writer);
+        }
+        writer.flush();
+    }
+
+    /**
+     * Writes all mappings to a file in the given format, overwriting the file should it already exist.
+     *
+     * @param file The file to write to
+     * @param format The format to use
+     * @throws IOException If an I/O error occurred
+     */
+    public void write(@NotNull Path file, @NotNull MappingFormat format) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file)) {
+            write(out, format);
+        }
+    }
+
+    /**
+     * Writes a snapshot of all mappings to a file on a separate writer thread. This allows the caller
+     * to continue with other work (or to further modify this set) while the file is being written.
+     *
+     * @param file The file to write to
+     * @param format The format to use
+     * @return A future that is completed once the file was written, or completed exceptionally if an I/O error occurred
+     */
+    @NotNull
+    public CompletableFuture<Void> writeAsync(@NotNull Path file, @NotNull MappingFormat format) {
+        MappingSet snapshot = copy();
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        Thread writerThread = new Thread(() -> {
+            try {
+                snapshot.write(file, format);
+                future.complete(null);
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }, "MappingSet writer");
+        writerThread.start();
+        return future;
+    }
+
+    private void writeBinary(@NotNull DataOutputStream out) throws IOException {
+        out.writeInt(BINARY_MAGIC);
+        out.writeInt(BINARY_VERSION);
+        out.writeInt(this.classes.size());
+        for (Map.Entry<String, String> entry : this.classes.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+        writeBinaryMembers(out, this.fields);
+        writeBinaryMembers(out, this.methods);
+    }
+
+    private void writeBinaryMembers(@NotNull DataOutputStream out, @NotNull Map<MemberKey, String> members) throws IOException {
+        out.writeInt(members.size());
+        for (Map.Entry<MemberKey, String> entry : members.entrySet()) {
+            MemberKey key = entry.getKey();
+            out.writeUTF(key.owner);
+            out.writeUTF(key.desc);
+            out.writeUTF(key.name);
+            out.writeUTF(entry.getValue());
+        }
+    }
+
+    private void writeTinyV1(@NotNull Writer writer) throws IOException {
+        writer.write("v1\tofficial\tintermediary\n");
+        for (Map.Entry<String, String> entry : this.classes.entrySet()) {
+            writer.write("CLASS\t");
+            writer.write(entry.getKey());
+            writer.write('\t');
+            writer.write(entry.getValue());
+            writer.write('\n');
+        }
+        writeTinyV1Members(writer, "FIELD\t", this.fields);
+        writeTinyV1Members(writer, "METHOD\t", this.methods);
+    }
+
+    private void writeTinyV1Members(@NotNull Writer writer, @NotNull String prefix, @NotNull Map<MemberKey, String> members) throws IOException {
+        for (Map.Entry<MemberKey, String> entry : members.entrySet()) {
+            MemberKey key = entry.getKey();
+            writer.write(prefix);
+            writer.write(key.owner);
+            writer.write('\t');
+            writer.write(key.desc);
+            writer.write('\t');
+            writer.write(key.name);
+            writer.write('\t');
+            writer.write(entry.getValue());
+            writer.write('\n');
+        }
+    }
+
+    private void writeTinyV2(@NotNull Writer writer) throws IOException {
+        writer.write("tiny\t2\t0\tofficial\tintermediary\n");
+        Iterator<Map.Entry<String, String>> classIterator = this.classes.entrySet().iterator();
+        Map.Entry<String, String> nextClass = classIterator.hasNext() ? classIterator.next() : null;
+        Iterator<Map.Entry<MemberKey, String>> fieldIterator = this.fields.entrySet().iterator();
+        Map.Entry<MemberKey, String> nextField = fieldIterator.hasNext() ? fieldIterator.next() : null;
+        Iterator<Map.Entry<MemberKey, String>> methodIterator = this.methods.entrySet().iterator();
+        Map.Entry<MemberKey, String> nextMethod = methodIterator.hasNext() ? methodIterator.next() : null;
+
+        // All three maps are sorted by the (owning) class, so they can be merged in a single pass
+        while (nextClass != null || nextField != null || nextMethod != null) {
+            String owner = null;
+            if (nextClass != null) {
+                owner = nextClass.getKey();
+            }
+            if (nextField != null && (owner == null || nextField.getKey().owner.compareTo(owner) < 0)) {
+                owner = nextField.getKey().owner;
+            }
+            if (nextMethod != null && (owner == null || nextMethod.getKey().owner.compareTo(owner) < 0)) {
+                owner = nextMethod.getKey().owner;
+            }
+
+            writer.write("c\t");
+            writer.write(owner);
+            writer.write('\t');
+            if (nextClass != null && nextClass.getKey().equals(owner)) {
+                writer.write(nextClass.getValue());
+                nextClass = classIterator.hasNext() ? classIterator.next() : null;
+            } else {
+                writer.write(owner);
+            }
+            writer.write('\n');
+
+            while (nextField != null && nextField.getKey().owner.equals(owner)) {
+                writeTinyV2Member(writer, "\tf\t", nextField);
+                nextField = fieldIterator.hasNext() ? fieldIterator.next() : null;
+            }
+            while (nextMethod != null && nextMethod.getKey().owner.equals(owner)) {
+                writeTinyV2Member(writer, "\tm\t", nextMethod);
+                nextMethod = methodIterator.hasNext() ? methodIterator.next() : null;
+            }
+        }
+    }
+
+    private void writeTinyV2Member(@NotNull Writer writer, @NotNull String prefix, @NotNull Map.Entry<MemberKey, String> member) throws IOException {
+        writer.write(prefix);
+        writer.write(member.getKey().desc);
+        writer.write('\t');
+        writer.write(member.getKey().name);
+        writer.write('\t');
+        writer.write(member.getValue());
+        writer.write('\n');
+    }
+}
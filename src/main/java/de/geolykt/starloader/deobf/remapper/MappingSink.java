@@ -0,0 +1,38 @@
+package de.geolykt.starloader.deobf.remapper;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A receiver of proposed mappings. All names and descriptors are in the namespace of the
+ * unmapped classes (the "official" namespace in tiny terminology).
+ */
+public interface MappingSink {
+
+    /**
+     * Accepts the mapping of a class.
+     *
+     * @param oldName The internal name of the class
+     * @param newName The new internal name of the class
+     */
+    void acceptClass(@NotNull String oldName, @NotNull String newName);
+
+    /**
+     * Accepts the mapping of a field.
+     *
+     * @param owner The internal name of the class that declares the field
+     * @param desc The descriptor of the field
+     * @param oldName The name of the field
+     * @param newName The new name of the field
+     */
+    void acceptField(@NotNull String owner, @NotNull String desc, @NotNull String oldName, @NotNull String newName);
+
+    /**
+     * Accepts the mapping of a method.
+     *
+     * @param owner The internal name of the class that declares the method
+     * @param desc The descriptor of the method
+     * @param oldName The name of the method
+     * @param newName The new name of the method
+     */
+    void acceptMethod(@NotNull String owner, @NotNull String desc, @NotNull String oldName, @NotNull String newName);
+}
@@ -3,6 +3,7 @@ package de.geolykt.starloader.deobf.remapper;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
+import java.util.function.BiConsumer;
 
 import de.geolykt.starloader.deobf.MethodReference;
 
@@ -17,6 +18,16 @@ public class MethodRenameMap {
         renames.clear();
     }
 
+    /**
+     * Invokes the given action for every rename entry stored in this map.
+     * The key of each entry is the method as it is known before remapping, the value the new name of the method.
+     *
+     * @param action The action to invoke
+     */
+    public void forEach(BiConsumer<MethodReference, String> action) {
+        renames.forEach(action);
+    }
+
     public String get(String owner, String descriptor, String oldName) {
         return renames.get(new MethodReference(owner, descriptor, oldName));
     }
@@ -39,6 +50,20 @@ public class MethodRenameMap {
         }
     }
 
+    /**
+     * Inserts a method rename entry if no entry exists for the given method yet.
+     * Unlike {@link #put(String, String, String, String)} this method will silently keep the old
+     * entry should there be a conflict.
+     *
+     * @param owner The owner of the method
+     * @param descriptor The descriptor of the method
+     * @param name The current name of the method
+     * @param newName The new name of the method
+     */
+    void putIfAbsent(String owner, String descriptor, String name, String newName) {
+        renames.putIfAbsent(new MethodReference(owner, descriptor, name), Objects.requireNonNull(newName, "newName cannot be null."));
+    }
+
     /**
      * Removes a method remapping entry from the method remapping list. This method practically undoes {@link MethodRenameMap#put(String, String, String, String)}.
      * Like put remove only affects a SINGLE method in a SINGLE class and it's references.
@@ -3,6 +3,7 @@ package de.geolykt.starloader.deobf.remapper;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
@@ -34,6 +35,10 @@ import org.objectweb.asm.tree.RecordComponentNode;
 import org.objectweb.asm.tree.TryCatchBlockNode;
 import org.objectweb.asm.tree.TypeInsnNode;
 
+import de.geolykt.starloader.deobf.ClassNodeRegistry;
+import de.geolykt.starloader.deobf.FieldReference;
+import de.geolykt.starloader.deobf.MethodReference;
+
 /**
  * Simple in-memory remapping engine. Unlike many other remappers it is able to take in already parsed
  * {@link org.objectweb.asm.tree.ClassNode Objectweb ASM Classnodes} as input and output them without having
@@ -47,11 +52,29 @@ public final class Remapper {
     private final FieldRenameMap fieldRenames = new FieldRenameMap();
     private final FieldRenameMap hierarchisedFieldRenames = new FieldRenameMap();
     private final MethodRenameMap methodRenames = new MethodRenameMap();
-    private final Map<String, ClassNode> nameToNode = new HashMap<>();
-    private final Map<String, String> oldToNewClassName = new HashMap<>();
+    private final Set<ClassNode> modifiedTargets = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final ClassNameMap oldToNewClassName = new ClassNameMap();
+    @NotNull
+    private final ClassNodeRegistry registry;
     private final List<ClassNode> targets = new ArrayList<>();
 
     private boolean fieldRenameHierarchyOutdated = false;
+    // Set whenever anything of the target that is currently being processed is remapped
+    private boolean targetModified;
+
+    public Remapper() {
+        this(new ClassNodeRegistry());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param registry The registry the targets are registered in. Renamed targets are re-registered under their new name
+     * once {@link #process()} is called, so the registry may be shared with other components operating on the targets.
+     */
+    public Remapper(@NotNull ClassNodeRegistry registry) {
+        this.registry = registry;
+    }
 
     /**
      * Adds a single class node to remap
@@ -59,9 +82,7 @@ public final class Remapper {
      * @param node The class node
      */
     public void addTarget(ClassNode node) {
-        if (nameToNode.put(node.name, node) != null) {
-            throw new IllegalStateException("The same class node was registered more than twice.");
-        }
+        registerTarget(node);
         targets.add(node);
     }
 
@@ -72,16 +93,100 @@ public final class Remapper {
      */
     public void addTargets(Collection<ClassNode> nodes) {
         targets.addAll(Objects.requireNonNull(nodes, "Cannot add a null class node list to the target pool."));
-        nodes.forEach(node -> {
-            if (nameToNode.put(node.name, node) != null) {
-                throw new IllegalStateException("The same class node was registered more than twice.");
-            }
-        });
+        nodes.forEach(this::registerTarget);
     }
 
+    /**
+     * Removes all targets from this remapper and unregisters them from the registry.
+     */
     public void clearTargets() {
+        targets.forEach(registry::remove);
         targets.clear();
-        nameToNode.clear();
+        modifiedTargets.clear();
+    }
+
+    /**
+     * Composes the mappings of this remapper with the mappings of another remapper, so that a single
+     * {@link #process()} call applies both mapping sets at once. Where as the mappings of this instance map
+     * names from namespace A to namespace B, the mappings of the "next" remapper are expected to map names from
+     * namespace B to namespace C. After this method returns, this remapper will map names from A to C directly.
+     *
+     * <p>A typical use case is composing the mappings proposed by the {@link de.geolykt.starloader.deobf.IntermediaryGenerator}
+     * with a tiny file that maps the intermediary names to human-readable names, which would otherwise require
+     * the classes to be remapped twice.
+     *
+     * <p>Method and field renames of the "next" remapper are looked up using the owner and the descriptor
+     * as they would be after the class renames of this remapper are applied.
+     * Renames that are only present in the "next" remapper are translated back to namespace A.
+     * Where both mapping sets disagree, the composed mapping of this remapper is kept.
+     *
+     * <p>This method must be called before {@link #process()} as the class renames are discarded by it.
+     * The targets as well as the mappings of the "next" remapper are not modified.
+     *
+     * @param next The remapper storing the mappings that should be applied after the mappings of this remapper
+     */
+    public void composeMappings(@NotNull Remapper next) {
+        StringBuilder sharedBuilder = new StringBuilder();
+        // Remaps names from namespace B back to namespace A
+        Remapper reverse = new Remapper();
+        this.oldToNewClassName.forEach((oldName, newName) -> reverse.oldToNewClassName.put(newName, oldName));
+
+        Map<String, String> composedClasses = new HashMap<>();
+        this.oldToNewClassName.forEach((oldName, intermediateName) -> {
+            composedClasses.put(oldName, next.getRemappedClassName(intermediateName));
+        });
+        next.oldToNewClassName.forEach((intermediateName, newName) -> {
+            if (!reverse.oldToNewClassName.containsKey(intermediateName)) {
+                // Not renamed by this remapper, the name is the same in namespace A and B
+                composedClasses.putIfAbsent(intermediateName, newName);
+            }
+        });
+
+        MethodRenameMap composedMethods = new MethodRenameMap();
+        Set<MethodReference> renamedMethods = new HashSet<>(); // Methods of namespace B that have a counterpart in A
+        this.methodRenames.forEach((ref, intermediateName) -> {
+            String owner = getRemappedClassName(ref.getOwner());
+            String desc = getRemappedMethodDescriptor(ref.getDesc(), sharedBuilder);
+            renamedMethods.add(new MethodReference(owner, desc, intermediateName));
+            String newName = next.methodRenames.optGet(owner, desc, intermediateName);
+            composedMethods.putIfAbsent(ref.getOwner(), ref.getDesc(), ref.getName(), newName);
+        });
+        next.methodRenames.forEach((ref, newName) -> {
+            if (renamedMethods.contains(ref)) {
+                return;
+            }
+            String owner = reverse.getRemappedClassName(ref.getOwner());
+            String desc = reverse.getRemappedMethodDescriptor(ref.getDesc(), sharedBuilder);
+            composedMethods.putIfAbsent(owner, desc, ref.getName(), newName);
+        });
+
+        FieldRenameMap composedFields = new FieldRenameMap();
+        Set<FieldReference> renamedFields = new HashSet<>(); // Fields of namespace B that have a counterpart in A
+        this.fieldRenames.forEach((ref, intermediateName) -> {
+            String owner = getRemappedClassName(ref.getOwner());
+            String desc = getRemappedFieldDescriptor(ref.getDesc(), sharedBuilder);
+            renamedFields.add(new FieldReference(owner, desc, intermediateName));
+            String newName = next.fieldRenames.optGet(owner, desc, intermediateName);
+            composedFields.put(ref.getOwner(), ref.getDesc(), ref.getName(), newName);
+        });
+        next.fieldRenames.forEach((ref, newName) -> {
+            if (renamedFields.contains(ref)) {
+                return;
+            }
+            String owner = reverse.getRemappedClassName(ref.getOwner());
+            String desc = reverse.getRemappedFieldDescriptor(ref.getDesc(), sharedBuilder);
+            if (composedFields.get(owner, desc, ref.getName()) == null) {
+                composedFields.put(owner, desc, ref.getName(), newName);
+            }
+        });
+
+        this.oldToNewClassName.clear();
+        this.oldToNewClassName.putAll(composedClasses);
+        this.methodRenames.clear();
+        composedMethods.forEach((ref, newName) -> this.methodRenames.putIfAbsent(ref.getOwner(), ref.getDesc(), ref.getName(), newName));
+        this.fieldRenames.clear();
+        this.fieldRenames.putAllIfAbsent(composedFields);
+        this.fieldRenameHierarchyOutdated = true;
     }
 
     private void createFieldHierarchy() {
@@ -327,6 +432,18 @@ public final class Remapper {
         return s;
     }
 
+    /**
+     * Checks whether {@link #process()} changed anything about a target since the targets were last
+     * {@link #clearTargets() cleared}, for example because the class was renamed or because it references a renamed class or member.
+     * Targets that were not changed can be written using their original class file.
+     *
+     * @param node The target
+     * @return True if the target was modified
+     */
+    public boolean isModified(@NotNull ClassNode node) {
+        return modifiedTargets.contains(node);
+    }
+
     /**
      * Processes all remap orders and clears the remap orders afterwards. The classes that need to be processed remain in the targets
      * list until {@link #clearTargets()} is invoked. This allows for reusability of the same remapper instance.
@@ -341,124 +458,39 @@ public final class Remapper {
         }
 
         IdentityHashMap<ModuleNode, Boolean> remappedModules = new IdentityHashMap<>();
+        Map<ClassNode, String> renamedTargets = new IdentityHashMap<>();
         for (ClassNode node : targets) {
-            for (FieldNode field : node.fields) {
-                remapField(node.name, field, sharedStringBuilder);
-            }
-            for (InnerClassNode innerClass : node.innerClasses) {
-                // TODO: Should we also remap the inner names?
-                String newOuterName = oldToNewClassName.get(innerClass.outerName);
-                if (newOuterName != null) {
-                    innerClass.outerName = newOuterName;
-                }
-                String newName = oldToNewClassName.get(innerClass.name);
-                if (newName != null) {
-                    innerClass.name = newName;
-                }
-            }
-            for (int i = 0; i < node.interfaces.size(); i++) {
-                String newInterfaceName = oldToNewClassName.get(node.interfaces.get(i));
-                if (newInterfaceName != null) {
-                    node.interfaces.set(i, newInterfaceName);
-                }
-            }
-            remapAnnotations(node.invisibleTypeAnnotations, sharedStringBuilder);
-            remapAnnotations(node.invisibleAnnotations, sharedStringBuilder);
-            remapAnnotations(node.visibleTypeAnnotations, sharedStringBuilder);
-            remapAnnotations(node.visibleAnnotations, sharedStringBuilder);
-            for (MethodNode method : node.methods) {
-                remapMethod(node, method, sharedStringBuilder);
-            }
-            ModuleNode module = node.module;
-            if (module != null) {
-                Boolean boole = remappedModules.get(module);
-                if (boole == null) {
-                    remappedModules.put(module, Boolean.TRUE);
-                    remapModule(module, sharedStringBuilder);
-                }
-            }
-            if (node.nestHostClass != null) {
-                node.nestHostClass = remapInternalName(node.nestHostClass, sharedStringBuilder);
-            }
-            if (node.nestMembers != null) {
-                int size = node.nestMembers.size();
-                for (int i = 0; i < size; i++) {
-                    String member = node.nestMembers.get(i);
-                    String remapped = remapInternalName(member, sharedStringBuilder);
-                    if (member != remapped) {
-                        node.nestMembers.set(i, remapped);
-                    }
-                }
-            }
-            if (node.outerClass != null) {
-                if (node.outerMethod != null && node.outerMethodDesc != null) {
-                    node.outerMethod = methodRenames.optGet(node.outerClass, node.outerMethodDesc, node.outerMethod);
-                }
-                node.outerClass = remapInternalName(node.outerClass, sharedStringBuilder);
-            }
-            if (node.outerMethodDesc != null) {
-                sharedStringBuilder.setLength(0);
-                if (remapSignature(node.outerMethodDesc, sharedStringBuilder)) {
-                    node.outerMethodDesc = sharedStringBuilder.toString();
-                }
-            }
-            if (node.permittedSubclasses != null) {
-                int size = node.permittedSubclasses.size();
-                for (int i = 0; i < size; i++) {
-                    String member = node.permittedSubclasses.get(i);
-                    String remapped = remapInternalName(member, sharedStringBuilder);
-                    if (member != remapped) {
-                        node.permittedSubclasses.set(i, remapped);
-                    }
-                }
-            }
-            if (node.recordComponents != null) {
-                // This requires eventual testing as I do not make use of codesets with Java9+ features.
-                for (RecordComponentNode record : node.recordComponents) {
-                    sharedStringBuilder.setLength(0);
-                    if (remapSignature(record.descriptor, sharedStringBuilder)) {
-                        record.descriptor = sharedStringBuilder.toString();
-                    }
-                    remapAnnotations(record.invisibleAnnotations, sharedStringBuilder);
-                    remapAnnotations(record.invisibleTypeAnnotations, sharedStringBuilder);
-                    remapAnnotations(record.visibleAnnotations, sharedStringBuilder);
-                    remapAnnotations(record.visibleTypeAnnotations, sharedStringBuilder);
-                    if (record.signature != null) {
-                        sharedStringBuilder.setLength(0);
-                        if (remapSignature(record.signature, sharedStringBuilder)) {
-                            record.signature = sharedStringBuilder.toString();
-                        }
-                    }
-                }
-            }
-            if (node.signature != null) {
-                sharedStringBuilder.setLength(0);
-                // Class signatures are formatted differently than method or field signatures, but we can just ignore this
-                // caveat here as the method will consider the invalid tokens are primitive objects. (sometimes laziness pays off)
-                if (remapSignature(node.signature, sharedStringBuilder)) {
-                    node.signature = sharedStringBuilder.toString();
-                }
-            }
-            if (node.superName != null) {
-                node.superName = remapInternalName(node.superName, sharedStringBuilder);
-            }
+            targetModified = false;
+            remapContents(node, remappedModules, sharedStringBuilder);
             // remap the node's name if required
             String newName = oldToNewClassName.get(node.name);
             if (newName == null) {
+                if (targetModified) {
+                    modifiedTargets.add(node);
+                }
                 continue;
             }
-            nameToNode.remove(node.name);
+            modifiedTargets.add(node);
+            renamedTargets.put(node, node.name);
             node.name = newName;
-            nameToNode.put(node.name, node);
         }
+        registry.rename(renamedTargets);
         oldToNewClassName.clear();
     }
 
+    private void registerTarget(ClassNode node) {
+        ClassNode registered = registry.putIfAbsent(node);
+        if (registered != null && registered != node) {
+            throw new IllegalStateException("Another class node with the name " + node.name + " was already registered.");
+        }
+    }
+
     private void remapAnnotation(AnnotationNode annotation, StringBuilder sharedStringBuilder) {
         String internalName = annotation.desc.substring(1, annotation.desc.length() - 1);
         String newInternalName = oldToNewClassName.get(internalName);
         if (newInternalName != null) {
             annotation.desc = 'L' + newInternalName + ';';
+            targetModified = true;
         }
         if (annotation.values != null) {
             int size = annotation.values.size();
@@ -489,10 +521,15 @@ public final class Remapper {
         } else if (value instanceof String[]) {
             String[] enumvals = (String[]) value;
             String internalName = enumvals[0].substring(1, enumvals[0].length() - 1);
-            enumvals[1] = hierarchisedFieldRenames.optGet(internalName, enumvals[0], enumvals[1]);
+            String newConstantName = hierarchisedFieldRenames.optGet(internalName, enumvals[0], enumvals[1]);
+            if (newConstantName != enumvals[1]) { // Instance comparison intended
+                enumvals[1] = newConstantName;
+                targetModified = true;
+            }
             String newInternalName = oldToNewClassName.get(internalName);
             if (newInternalName != null) {
                 enumvals[0] = 'L' + newInternalName + ';';
+                targetModified = true;
             }
         } else if (value instanceof AnnotationNode) {
             remapAnnotation((AnnotationNode) value, sharedStringBuilder);
@@ -546,6 +583,7 @@ public final class Remapper {
             }
             if (modified) {
                 bsmArgs[index] = new Handle(handle.getTag(), hOwner, newName, desc, handle.isInterface());
+                targetModified = true;
             }
         } else if (bsmArg instanceof String) {
             // Do nothing. I'm kind of surprised that I built this method modular enough that this was a straightforward fix
@@ -576,8 +614,149 @@ public final class Remapper {
         oldToNewClassName.putAll(mappings);
     }
 
+    private void remapContents(@NotNull ClassNode node, @NotNull IdentityHashMap<ModuleNode, Boolean> remappedModules, @NotNull StringBuilder sharedStringBuilder) {
+        for (FieldNode field : node.fields) {
+            remapField(node.name, field, sharedStringBuilder);
+        }
+        for (InnerClassNode innerClass : node.innerClasses) {
+            // TODO: Should we also remap the inner names?
+            String newOuterName = oldToNewClassName.get(innerClass.outerName);
+            if (newOuterName != null) {
+                innerClass.outerName = newOuterName;
+                targetModified = true;
+            }
+            String newName = oldToNewClassName.get(innerClass.name);
+            if (newName != null) {
+                innerClass.name = newName;
+                targetModified = true;
+            }
+        }
+        for (int i = 0; i < node.interfaces.size(); i++) {
+            String newInterfaceName = oldToNewClassName.get(node.interfaces.get(i));
+            if (newInterfaceName != null) {
+                node.interfaces.set(i, newInterfaceName);
+                targetModified = true;
+            }
+        }
+        remapAnnotations(node.invisibleTypeAnnotations, sharedStringBuilder);
+        remapAnnotations(node.invisibleAnnotations, sharedStringBuilder);
+        remapAnnotations(node.visibleTypeAnnotations, sharedStringBuilder);
+        remapAnnotations(node.visibleAnnotations, sharedStringBuilder);
+        for (MethodNode method : node.methods) {
+            remapMethod(node, method, sharedStringBuilder);
+        }
+        ModuleNode module = node.module;
+        if (module != null) {
+            Boolean boole = remappedModules.get(module);
+            if (boole == null) {
+                remappedModules.put(module, Boolean.TRUE);
+                remapModule(module, sharedStringBuilder);
+            }
+        }
+        if (node.nestHostClass != null) {
+            node.nestHostClass = remapInternalName(node.nestHostClass, sharedStringBuilder);
+        }
+        if (node.nestMembers != null) {
+            int size = node.nestMembers.size();
+            for (int i = 0; i < size; i++) {
+                String member = node.nestMembers.get(i);
+                String remapped = remapInternalName(member, sharedStringBuilder);
+                if (member != remapped) {
+                    node.nestMembers.set(i, remapped);
+                }
+            }
+        }
+        if (node.outerClass != null) {
+            if (node.outerMethod != null && node.outerMethodDesc != null) {
+                String newOuterMethod = methodRenames.optGet(node.outerClass, node.outerMethodDesc, node.outerMethod);
+                if (newOuterMethod != node.outerMethod) { // Instance comparison intended
+                    node.outerMethod = newOuterMethod;
+                    targetModified = true;
+                }
+            }
+            node.outerClass = remapInternalName(node.outerClass, sharedStringBuilder);
+        }
+        if (node.outerMethodDesc != null) {
+            sharedStringBuilder.setLength(0);
+            if (remapSignature(node.outerMethodDesc, sharedStringBuilder)) {
+                node.outerMethodDesc = sharedStringBuilder.toString();
+            }
+        }
+        if (node.permittedSubclasses != null) {
+            int size = node.permittedSubclasses.size();
+            for (int i = 0; i < size; i++) {
+                String member = node.permittedSubclasses.get(i);
+                String remapped = remapInternalName(member, sharedStringBuilder);
+                if (member != remapped) {
+                    node.permittedSubclasses.set(i, remapped);
+                }
+            }
+        }
+        if (node.recordComponents != null) {
+            // This requires eventual testing as I do not make use of codesets with Java9+ features.
+            for (RecordComponentNode record : node.recordComponents) {
+                sharedStringBuilder.setLength(0);
+                if (remapSignature(record.descriptor, sharedStringBuilder)) {
+                    record.descriptor = sharedStringBuilder.toString();
+                }
+                remapAnnotations(record.invisibleAnnotations, sharedStringBuilder);
+                remapAnnotations(record.invisibleTypeAnnotations, sharedStringBuilder);
+                remapAnnotations(record.visibleAnnotations, sharedStringBuilder);
+                remapAnnotations(record.visibleTypeAnnotations, sharedStringBuilder);
+                if (record.signature != null) {
+                    sharedStringBuilder.setLength(0);
+                    if (remapSignature(record.signature, sharedStringBuilder)) {
+                        record.signature = sharedStringBuilder.toString();
+                    }
+                }
+            }
+        }
+        if (node.signature != null) {
+            sharedStringBuilder.setLength(0);
+            // Class signatures are formatted differently than method or field signatures, but we can just ignore this
+            // caveat here as the method will consider the invalid tokens are primitive objects. (sometimes laziness pays off)
+            if (remapSignature(node.signature, sharedStringBuilder)) {
+                node.signature = sharedStringBuilder.toString();
+            }
+        }
+        if (node.superName != null) {
+            node.superName = remapInternalName(node.superName, sharedStringBuilder);
+        }
+    }
+
+    /**
+     * Remaps a single class node that is not a target of this remapper. Unlike {@link #process()}, the remap orders
+     * are retained afterwards, so this method can be invoked for any amount of classes, for example as they are
+     * needed instead of all at once. The targets are still used to propagate field renames to child classes,
+     * so headers of all classes (that is classes read with {@link org.objectweb.asm.ClassReader#SKIP_CODE}) should
+     * be added as targets beforehand. The node is not registered in the registry of this remapper.
+     *
+     * <p>This method must not be invoked concurrently with any other method of this instance.
+     *
+     * @param node The class node to remap
+     * @return True if the class node was modified
+     */
+    public boolean remapDetached(@NotNull ClassNode node) {
+        if (fieldRenameHierarchyOutdated) {
+            createFieldHierarchy();
+            fieldRenameHierarchyOutdated = false;
+        }
+        targetModified = false;
+        remapContents(node, new IdentityHashMap<>(), new StringBuilder());
+        String newName = oldToNewClassName.get(node.name);
+        if (newName != null) {
+            node.name = newName;
+            targetModified = true;
+        }
+        return targetModified;
+    }
+
     private void remapField(String owner, FieldNode field, StringBuilder sharedStringBuilder) {
-        field.name = hierarchisedFieldRenames.optGet(owner, field.desc, field.name);
+        String newName = hierarchisedFieldRenames.optGet(owner, field.desc, field.name);
+        if (newName != field.name) { // Instance comparison intended
+            field.name = newName;
+            targetModified = true;
+        }
 
         int typeType = field.desc.charAt(0);
         if (typeType == '[' || typeType == 'L') {
@@ -649,6 +828,7 @@ public final class Remapper {
         } else {
             String remapped = oldToNewClassName.get(internalName);
             if (remapped != null) {
+                targetModified = true;
                 return remapped;
             }
             return internalName;
@@ -656,11 +836,16 @@ public final class Remapper {
     }
 
     private void remapMethod(ClassNode owner, MethodNode method, StringBuilder sharedStringBuilder) {
-        method.name = methodRenames.optGet(owner.name, method.desc, method.name);
+        String newMethodName = methodRenames.optGet(owner.name, method.desc, method.name);
+        if (newMethodName != method.name) { // Instance comparison intended
+            method.name = newMethodName;
+            targetModified = true;
+        }
         for (int i = 0; i < method.exceptions.size(); i++) {
             String newExceptionName = oldToNewClassName.get(method.exceptions.get(i));
             if (newExceptionName != null) {
                 method.exceptions.set(i, newExceptionName);
+                targetModified = true;
             }
         }
         remapAnnotations(method.invisibleTypeAnnotations, sharedStringBuilder);
@@ -696,6 +881,7 @@ public final class Remapper {
                     String internalName = type.getInternalName();
                     String newInternalName = oldToNewClassName.get(internalName);
                     if (newInternalName != null) {
+                        targetModified = true;
                         if (isObjectArray) {
                             sharedStringBuilder.setLength(arrayDimension);
                             for (int i = 0; i < arrayDimension; i++) {
@@ -722,6 +908,7 @@ public final class Remapper {
                 String newName = oldToNewClassName.get(catchBlock.type);
                 if (newName != null) {
                     catchBlock.type = newName;
+                    targetModified = true;
                 }
             }
             remapAnnotations(catchBlock.visibleTypeAnnotations, sharedStringBuilder);
@@ -754,6 +941,7 @@ public final class Remapper {
                     String fieldName = hierarchisedFieldRenames.get(instruction.owner, instruction.desc, instruction.name);
                     if (fieldName != null) {
                         instruction.name = fieldName;
+                        targetModified = true;
                     }
                     instruction.desc = remapSingleDesc(instruction.desc, sharedStringBuilder);
                     instruction.owner = remapInternalName(instruction.owner, sharedStringBuilder);
@@ -783,10 +971,15 @@ public final class Remapper {
                     MethodInsnNode instruction = (MethodInsnNode) insn;
                     boolean isArray = instruction.owner.codePointAt(0) == '[';
                     if (!isArray) { // Javac sometimes invokes methods on array objects
-                        instruction.name = methodRenames.optGet(instruction.owner, instruction.desc, instruction.name);
+                        String newName = methodRenames.optGet(instruction.owner, instruction.desc, instruction.name);
+                        if (newName != instruction.name) { // Instance comparison intended
+                            instruction.name = newName;
+                            targetModified = true;
+                        }
                         String newOwner = oldToNewClassName.get(instruction.owner);
                         if (newOwner != null) {
                             instruction.owner = newOwner;
+                            targetModified = true;
                         }
                     } else {
                         sharedStringBuilder.setLength(0);
@@ -834,6 +1027,7 @@ public final class Remapper {
             String newMainClass = oldToNewClassName.get(module.mainClass);
             if (newMainClass != null) {
                 module.mainClass = newMainClass;
+                targetModified = true;
             }
         }
         if (module.uses != null) {
@@ -849,7 +1043,11 @@ public final class Remapper {
     }
 
     private boolean remapSignature(String signature, StringBuilder out) {
-        return remapSignature(out, signature, 0, signature.length());
+        if (remapSignature(out, signature, 0, signature.length())) {
+            targetModified = true;
+            return true;
+        }
+        return false;
     }
 
     private boolean remapSignature(StringBuilder signatureOut, String signature, int start, int end) {
@@ -942,6 +1140,7 @@ public final class Remapper {
         if (newInternalName == null) {
             return input;
         }
+        targetModified = true;
         sharedBuilder.setLength(indexofL + 1);
         sharedBuilder.setCharAt(indexofL, 'L');
         while(indexofL != 0) {
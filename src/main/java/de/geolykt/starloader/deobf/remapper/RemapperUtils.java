@@ -1,15 +1,85 @@
 package de.geolykt.starloader.deobf.remapper;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 import org.jetbrains.annotations.NotNull;
 
 public final class RemapperUtils {
 
+    /**
+     * Converts a java source-style type as used within ProGuard mapping files (for example "java.lang.String[]")
+     * into a type descriptor (for example "[Ljava/lang/String;"). Converted types are stored in the cache
+     * as the same types tend to be used many times within a single mapping file.
+     *
+     * @param type The java source-style type. Spaces must have been trimmed beforehand
+     * @param cache The conversion cache
+     * @param sharedBuilder A shared {@link StringBuilder} whose contents are undefined after the invocation of this method
+     * @return The type descriptor
+     */
+    @NotNull
+    private static String getProguardTypeDescriptor(@NotNull String type, @NotNull Map<String, String> cache, @NotNull StringBuilder sharedBuilder) {
+        String desc = cache.get(type);
+        if (desc != null) {
+            return desc;
+        }
+        int end = type.length();
+        sharedBuilder.setLength(0);
+        while (end > 2 && type.charAt(end - 1) == ']' && type.charAt(end - 2) == '[') {
+            sharedBuilder.append('[');
+            end -= 2;
+        }
+        String elementType = type.substring(0, end);
+        switch (elementType) {
+        case "boolean":
+            sharedBuilder.append('Z');
+            break;
+        case "byte":
+            sharedBuilder.append('B');
+            break;
+        case "char":
+            sharedBuilder.append('C');
+            break;
+        case "double":
+            sharedBuilder.append('D');
+            break;
+        case "float":
+            sharedBuilder.append('F');
+            break;
+        case "int":
+            sharedBuilder.append('I');
+            break;
+        case "long":
+            sharedBuilder.append('J');
+            break;
+        case "short":
+            sharedBuilder.append('S');
+            break;
+        case "void":
+            sharedBuilder.append('V');
+            break;
+        default:
+            sharedBuilder.append('L');
+            sharedBuilder.append(elementType.replace('.', '/'));
+            sharedBuilder.append(';');
+        }
+        desc = sharedBuilder.toString();
+        cache.put(type, desc);
+        return desc;
+    }
+
     private static final boolean isBlank(@NotNull String string) {
         int length = string.length();
         for (int i = 0; i < length; i++) {
@@ -26,7 +96,48 @@ public final class RemapperUtils {
     private RemapperUtils() {
     }
 
-    public static void readTinyV1File(File tinyMap, Remapper remapper) throws IOException {
+    /**
+     * Reads a mappings file that was written in the {@link MappingFormat#BINARY binary format}
+     * and applies the mappings to the remapper.
+     *
+     * @param binaryMap The file to read
+     * @param remapper The remapper to apply the mappings to
+     * @throws IOException If an I/O error occurred
+     */
+    public static void readBinaryMappings(File binaryMap, Remapper remapper) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(binaryMap)))) {
+            int magic = in.readInt();
+            if (magic != MappingSet.BINARY_MAGIC) {
+                throw new IllegalStateException("Invalid magic number: 0x" + Integer.toHexString(magic));
+            }
+            int version = in.readInt();
+            if (version != MappingSet.BINARY_VERSION) {
+                throw new IllegalStateException("Unsupported binary mappings version: " + version);
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                remapper.remapClassName(in.readUTF(), in.readUTF());
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                remapper.remapField(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF());
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                try {
+                    remapper.remapMethod(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF());
+                } catch (ConflicitingMappingException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a tiny v1 file and passes all mappings to the given sink. The namespaces of the file are not checked.
+     *
+     * @param tinyMap The file to read
+     * @param sink The sink to pass the mappings to
+     * @throws IOException If an I/O error occurred
+     */
+    public static void readTinyV1File(File tinyMap, MappingSink sink) throws IOException {
         int lineNr = 0;
         try (BufferedReader br = new BufferedReader(new FileReader(tinyMap))) {
             // the first line must specify the version of tiny and the namespace.
@@ -62,28 +173,47 @@ public final class RemapperUtils {
                     if (colums.length != 3) {
                         throw new IllegalStateException("Line " + lineNr + " is of type CLASS, but only " + colums.length + " colums are present, even though it expects 3.");
                     }
-                    remapper.remapClassName(colums[1], colums[2]);
+                    sink.acceptClass(colums[1], colums[2]);
                 } else if (type.equals("METHOD")) {
                     // Format: METHOD owner descriptor originalName newName
                     if (colums.length != 5) {
                         throw new IllegalStateException("Line " + lineNr + " is of type CLASS, but only " + colums.length + " colums are present, even though it expects 5.");
                     }
-                    try {
-                        remapper.remapMethod(colums[1], colums[2], colums[3], colums[4]);
-                    } catch (ConflicitingMappingException e) {
-                        e.printStackTrace();
-                    }
+                    sink.acceptMethod(colums[1], colums[2], colums[3], colums[4]);
                 } else if (type.equals("FIELD")) {
                     // Format: FIELD owner descriptor originalName newName
                     if (colums.length != 5) {
                         throw new IllegalStateException("Line " + lineNr + " is of type CLASS, but only " + colums.length + " colums are present, even though it expects 5.");
                     }
-                    remapper.remapField(colums[1], colums[2], colums[3], colums[4]);
+                    sink.acceptField(colums[1], colums[2], colums[3], colums[4]);
                 }
             }
         }
     }
 
+    public static void readTinyV1File(File tinyMap, Remapper remapper) throws IOException {
+        readTinyV1File(tinyMap, new MappingSink() {
+            @Override
+            public void acceptClass(@NotNull String oldName, @NotNull String newName) {
+                remapper.remapClassName(oldName, newName);
+            }
+
+            @Override
+            public void acceptField(@NotNull String owner, @NotNull String desc, @NotNull String oldName, @NotNull String newName) {
+                remapper.remapField(owner, desc, oldName, newName);
+            }
+
+            @Override
+            public void acceptMethod(@NotNull String owner, @NotNull String desc, @NotNull String oldName, @NotNull String newName) {
+                try {
+                    remapper.remapMethod(owner, desc, oldName, newName);
+                } catch (ConflicitingMappingException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
     public static void readReversedTinyV1File(File tinyMap, Remapper remapper) throws IOException {
         int lineNr = 0;
         try (BufferedReader br = new BufferedReader(new FileReader(tinyMap))) {
@@ -142,4 +272,161 @@ public final class RemapperUtils {
             }
         }
     }
+
+    /**
+     * Reads a ProGuard mapping file (commonly named "mapping.txt") and inserts the mappings into the remapper
+     * so that the obfuscated names are mapped back to the original names.
+     * As the member descriptors of ProGuard mapping files make use of the original names, the member mappings are
+     * only inserted into the remapper once the entire file was read.
+     *
+     * <p>Members that were inlined from another class (that is members whose name is qualified) are ignored,
+     * as is line number information.
+     *
+     * @param proguardMap The mapping file to read
+     * @param remapper The remapper to insert the mappings into
+     * @throws IOException If an IO error occurs while reading the file
+     * @see #readReversedProguardFile(File, Remapper)
+     */
+    public static void readProguardFile(File proguardMap, Remapper remapper) throws IOException {
+        readProguardFile0(proguardMap, remapper, false);
+    }
+
+    private static void readProguardFile0(File proguardMap, Remapper remapper, boolean reversed) throws IOException {
+        Map<String, String> typeCache = new HashMap<>();
+        StringBuilder sharedBuilder = new StringBuilder();
+        // Used to remap the descriptors of members from the original namespace to the obfuscated namespace
+        Remapper descRemapper = reversed ? null : new Remapper();
+        // Stored in the order owner, descriptor, original name, obfuscated name
+        List<String> fields = new ArrayList<>();
+        List<String> methods = new ArrayList<>();
+        int lineNr = 0;
+        String currentClass = null;
+
+        try (BufferedReader br = Files.newBufferedReader(proguardMap.toPath(), StandardCharsets.UTF_8)) {
+            for (String line = br.readLine(); line != null; line = br.readLine()) {
+                lineNr++;
+                int length = line.length();
+                int start = 0;
+                while (start < length && Character.isWhitespace(line.charAt(start))) {
+                    start++;
+                }
+                if (start == length || line.charAt(start) == '#') {
+                    continue;
+                }
+                int arrow = line.indexOf(" -> ", start);
+                if (arrow == -1) {
+                    throw new IllegalStateException("Line " + lineNr + " does not contain a mapping.");
+                }
+                int end = length;
+                while (Character.isWhitespace(line.charAt(end - 1))) {
+                    end--;
+                }
+                if (start == 0) {
+                    // Format: original.ClassName -> obfuscated.ClassName:
+                    if (line.charAt(end - 1) != ':') {
+                        throw new IllegalStateException("Line " + lineNr + " is a class mapping, but does not end with a colon.");
+                    }
+                    currentClass = line.substring(0, arrow).replace('.', '/');
+                    String obfuscatedClass = line.substring(arrow + 4, end - 1).replace('.', '/');
+                    if (reversed) {
+                        remapper.remapClassName(currentClass, obfuscatedClass);
+                    } else {
+                        remapper.remapClassName(obfuscatedClass, currentClass);
+                        descRemapper.remapClassName(currentClass, obfuscatedClass);
+                    }
+                    continue;
+                }
+                if (currentClass == null) {
+                    throw new IllegalStateException("Line " + lineNr + " is a member mapping, but no class was declared before it.");
+                }
+                String obfuscatedName = line.substring(arrow + 4, end);
+                // Skip the line numbers of methods - Format: startLine:endLine:returnType name(arguments):originalStart:originalEnd
+                for (int i = 0; i < 2 && start < arrow && Character.isDigit(line.charAt(start)); i++) {
+                    start = line.indexOf(':', start) + 1;
+                }
+                int typeEnd = line.indexOf(' ', start);
+                if (typeEnd == -1 || typeEnd >= arrow) {
+                    throw new IllegalStateException("Line " + lineNr + " is a member mapping, but no member type is present.");
+                }
+                String type = getProguardTypeDescriptor(line.substring(start, typeEnd), typeCache, sharedBuilder);
+                int openingParenthesis = line.indexOf('(', typeEnd);
+                if (openingParenthesis == -1 || openingParenthesis > arrow) {
+                    // Format: type originalName -> obfuscatedName
+                    String originalName = line.substring(typeEnd + 1, arrow);
+                    fields.add(currentClass);
+                    fields.add(type);
+                    fields.add(originalName);
+                    fields.add(obfuscatedName);
+                    continue;
+                }
+                String originalName = line.substring(typeEnd + 1, openingParenthesis);
+                if (originalName.indexOf('.') != -1) {
+                    // Method inlined from another class
+                    continue;
+                }
+                int closingParenthesis = line.indexOf(')', openingParenthesis);
+                if (closingParenthesis == -1 || closingParenthesis > arrow) {
+                    throw new IllegalStateException("Line " + lineNr + " is a method mapping, but the argument list is not closed.");
+                }
+                StringBuilder desc = new StringBuilder();
+                desc.append('(');
+                for (int argStart = openingParenthesis + 1; argStart < closingParenthesis;) {
+                    int argEnd = line.indexOf(',', argStart);
+                    if (argEnd == -1 || argEnd > closingParenthesis) {
+                        argEnd = closingParenthesis;
+                    }
+                    desc.append(getProguardTypeDescriptor(line.substring(argStart, argEnd), typeCache, sharedBuilder));
+                    argStart = argEnd + 1;
+                }
+                desc.append(')');
+                desc.append(type);
+                methods.add(currentClass);
+                methods.add(desc.toString());
+                methods.add(originalName);
+                methods.add(obfuscatedName);
+            }
+        }
+
+        for (int i = 0; i < fields.size(); i += 4) {
+            String owner = fields.get(i);
+            String desc = fields.get(i + 1);
+            if (reversed) {
+                remapper.remapField(owner, desc, fields.get(i + 2), fields.get(i + 3));
+            } else {
+                owner = descRemapper.getRemappedClassName(owner);
+                desc = descRemapper.getRemappedFieldDescriptor(desc, sharedBuilder);
+                remapper.remapField(owner, desc, fields.get(i + 3), fields.get(i + 2));
+            }
+        }
+        for (int i = 0; i < methods.size(); i += 4) {
+            String owner = methods.get(i);
+            String desc = methods.get(i + 1);
+            try {
+                if (reversed) {
+                    remapper.remapMethod(owner, desc, methods.get(i + 2), methods.get(i + 3));
+                } else {
+                    owner = descRemapper.getRemappedClassName(owner);
+                    desc = descRemapper.getRemappedMethodDescriptor(desc, sharedBuilder);
+                    remapper.remapMethod(owner, desc, methods.get(i + 3), methods.get(i + 2));
+                }
+            } catch (ConflicitingMappingException e) {
+                e.printStackTrace();
+                System.err.println("This is NOT a fatal error, but it is worth looking into.");
+            }
+        }
+    }
+
+    /**
+     * Reads a ProGuard mapping file (commonly named "mapping.txt") and inserts the mappings into the remapper
+     * so that the original names are mapped to the obfuscated names - that is in the same direction ProGuard
+     * applied them.
+     *
+     * @param proguardMap The mapping file to read
+     * @param remapper The remapper to insert the mappings into
+     * @throws IOException If an IO error occurs while reading the file
+     * @see #readProguardFile(File, Remapper)
+     */
+    public static void readReversedProguardFile(File proguardMap, Remapper remapper) throws IOException {
+        readProguardFile0(proguardMap, remapper, true);
+    }
 }